@@ -0,0 +1,78 @@
+package io.smallfast.profiler;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+
+import static net.bytebuddy.matcher.ElementMatchers.named;
+
+/**
+ * A tiny method woven with the real {@link TraceAdvice}, the same way
+ * {@link FlameAgent} weaves application classes, next to the identical
+ * uninstrumented method. The difference is the overhead the agent adds per call.
+ * {@code stateAdvice} is the same with {@link StateTraceAdvice} ({@code advice=state}).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AdviceBenchmark {
+
+    public static class Workload implements IntUnaryOperator {
+        @Override
+        public int applyAsInt(int x) {
+            return x * 31 + 7;
+        }
+    }
+
+    @Param({"false", "true"})
+    public boolean histogram;
+
+    private IntUnaryOperator baseline;
+    private IntUnaryOperator woven;
+    private IntUnaryOperator wovenState;
+    private int x = 42;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Profiler.setHistogramEnabled(histogram);
+        baseline = new Workload();
+        woven = weave(TraceAdvice.class);
+        wovenState = weave(StateTraceAdvice.class);
+    }
+
+    static IntUnaryOperator weave(Class<?> advice) throws ReflectiveOperationException {
+        Class<? extends Workload> type = new ByteBuddy()
+                .redefine(Workload.class)
+                .name(AdviceBenchmark.class.getPackageName() + ".Woven" + advice.getSimpleName())
+                .visit(Advice.withCustomMapping()
+                        .bind(new MethodIdMapping.Factory())
+                        .to(advice)
+                        .on(named("applyAsInt")))
+                .make()
+                .load(Workload.class.getClassLoader(), ClassLoadingStrategy.Default.WRAPPER)
+                .getLoaded();
+        return type.getDeclaredConstructor().newInstance();
+    }
+
+    @Benchmark
+    public int baseline() {
+        return baseline.applyAsInt(x);
+    }
+
+    @Benchmark
+    public int traceAdvice() {
+        return woven.applyAsInt(x);
+    }
+
+    @Benchmark
+    public int stateAdvice() {
+        return wovenState.applyAsInt(x);
+    }
+}
@@ -0,0 +1,135 @@
+package io.smallfast.profiler;
+
+import org.HdrHistogram.Histogram;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Export cost on large trees: capturing a live tree (per tree layout), path
+ * collection, the speedscope / percentile CSV writers (plain and gzipped), the
+ * pprof writer and the binary writer. Output goes to a null stream, so this measures formatting
+ * (and compression) only.
+ *
+ * Nodes share a small pool of pre-filled histograms: a real 1M-node tree with
+ * one histogram each would not fit in a benchmark heap, and the writers only
+ * read them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+@State(Scope.Benchmark)
+public class DumpBenchmark {
+
+    private static final int FAN_OUT = 10;
+
+    @Param({"10000", "1000000"})
+    public int nodes;
+
+    @Param({"nodes", "arrays"})
+    public String layout;
+
+    private Profiler.State state;
+    private TreeSnapshot tree;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Profiler.setHistogramEnabled(false);
+        Profiler.setArrayTree("arrays".equals(layout));
+        int depth = (int) Math.round(Math.log10(nodes));
+        for (int level = 0; level < depth; level++) {
+            for (int c = 0; c < FAN_OUT; c++) {
+                MethodRegistry.register(methodId(level, c),
+                        "com.example.service.Component" + level + ".handle" + c + "(Ljava/lang/String;)V");
+            }
+        }
+        build(0, depth);
+
+        state = Profiler.detachCurrentThread();
+        tree = TreeSnapshot.capture(state, 0);
+
+        Histogram[] shared = new Histogram[64];
+        for (int i = 0; i < shared.length; i++) {
+            shared[i] = new Histogram(30_000_000_000L, 3);
+            for (int v = 1; v <= 1000; v++) shared[i].recordValue(v * (i + 1L) * 10);
+        }
+        for (int i = 1; i < tree.size; i++) {
+            tree.selfNs[i] = 1 + (i % 1000);
+            tree.hist[i] = shared[i & 63];
+        }
+        Profiler.setHistogramEnabled(true);
+    }
+
+    private static int methodId(int level, int child) {
+        return 1 + level * FAN_OUT + child;
+    }
+
+    private static void build(int level, int depth) {
+        if (level == depth) return;
+        for (int c = 0; c < FAN_OUT; c++) {
+            Profiler.enter(methodId(level, c));
+            build(level + 1, depth);
+            Profiler.exit();
+        }
+    }
+
+    private static DumpOutput nullOutput(boolean gzip) throws IOException {
+        return DumpOutput.of(Channels.newChannel(OutputStream.nullOutputStream()), gzip);
+    }
+
+    @Benchmark
+    public TreeSnapshot capture() {
+        return TreeSnapshot.capture(state, 0);
+    }
+
+    @Benchmark
+    public List<Profiler.PathEntry> collectPathEntries() {
+        return Profiler.collectPathEntries(tree);
+    }
+
+    @Benchmark
+    public void speedscope() throws IOException {
+        try (DumpOutput out = nullOutput(false)) {
+            TreeWriter.speedscope(out, tree, "bench");
+        }
+    }
+
+    @Benchmark
+    public void percentilesCsv() throws IOException {
+        try (DumpOutput out = nullOutput(false)) {
+            TreeWriter.percentilesCsv(out, tree, true);
+        }
+    }
+
+    @Benchmark
+    public void percentilesCsvGzip() throws IOException {
+        try (DumpOutput out = nullOutput(true)) {
+            TreeWriter.percentilesCsv(out, tree, true);
+        }
+    }
+
+    @Benchmark
+    public void pprof() throws IOException {
+        try (DumpOutput out = nullOutput(true)) {
+            Pprof.write(out, List.of(tree), true);
+        }
+    }
+
+    @Benchmark
+    public void methods() throws IOException {
+        try (DumpOutput out = nullOutput(false)) {
+            MethodRollup.of(List.of(tree)).write(out);
+        }
+    }
+
+    @Benchmark
+    public void binary() throws IOException {
+        BinaryProfile.write(Channels.newChannel(OutputStream.nullOutputStream()), List.of(tree), true);
+    }
+}
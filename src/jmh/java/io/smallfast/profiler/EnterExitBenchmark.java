@@ -0,0 +1,113 @@
+package io.smallfast.profiler;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of {@link Profiler#enter(int)} / {@link Profiler#exit()} called
+ * directly, without any weaving. Every score is nanoseconds per enter/exit pair.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EnterExitBenchmark {
+
+    private static final int SHALLOW_ID = 1;
+    private static final int DEEP_ID = 2;
+    private static final int PARENT_ID = 3;
+    private static final int FIRST_CHILD_ID = 16;
+
+    static final int DEEP = 1000;
+
+    @Param({"false", "true"})
+    public boolean histogram;
+
+    // Every trial runs in a fresh fork, so threads create their state with this layout.
+    @Param({"nodes", "arrays"})
+    public String tree;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Profiler.setHistogramEnabled(histogram);
+        Profiler.setArrayTree("arrays".equals(tree));
+    }
+
+    // Low vs. high fan-out under one parent: Node.getOrCreateChild scans, ArrayTree hashes.
+    @State(Scope.Thread)
+    public static class FanOut {
+        @Param({"4", "512"})
+        public int fanOut;
+
+        int next;
+
+        int nextChild() {
+            int c = next;
+            next = (c + 1 == fanOut) ? 0 : c + 1;
+            return FIRST_CHILD_ID + c;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void shallow_t1() {
+        shallow();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void shallow_t8() {
+        shallow();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public void shallow_t64() {
+        shallow();
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(DEEP)
+    public void deep_t1() {
+        deep();
+    }
+
+    @Benchmark
+    @Threads(8)
+    @OperationsPerInvocation(DEEP)
+    public void deep_t8() {
+        deep();
+    }
+
+    @Benchmark
+    @Threads(64)
+    @OperationsPerInvocation(DEEP)
+    public void deep_t64() {
+        deep();
+    }
+
+    @Benchmark
+    @Threads(1)
+    @OperationsPerInvocation(2)
+    public void fanOut_t1(FanOut f) {
+        Profiler.enter(PARENT_ID);
+        Profiler.enter(f.nextChild());
+        Profiler.exit();
+        Profiler.exit();
+    }
+
+    private static void shallow() {
+        Profiler.enter(SHALLOW_ID);
+        Profiler.exit();
+    }
+
+    // 1000-deep recursion of one method; the first call outgrows the 256-slot stacks.
+    private static void deep() {
+        for (int i = 0; i < DEEP; i++) Profiler.enter(DEEP_ID);
+        for (int i = 0; i < DEEP; i++) Profiler.exit();
+    }
+}
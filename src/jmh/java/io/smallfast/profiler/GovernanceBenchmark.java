@@ -0,0 +1,54 @@
+package io.smallfast.profiler;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What the tree bounds add to an enter/exit pair: a branch when the path
+ * exists, the ancestor walk and open-frame counting under recursion. Every
+ * score is nanoseconds per pair.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class GovernanceBenchmark {
+
+    private static final int SHALLOW_ID = 1;
+    private static final int DEEP_ID = 2;
+
+    static final int DEEP = 1000;
+
+    @Param({"off", "foldRecursion", "maxDepth=64", "maxNodes=100"})
+    public String bound;
+
+    @Param({"nodes", "arrays"})
+    public String tree;
+
+    // Every trial runs in a fresh fork, so threads create their state with these bounds.
+    @Setup(Level.Trial)
+    public void setup() {
+        Profiler.setArrayTree("arrays".equals(tree));
+        Governance.configure(bound.equals("foldRecursion"),
+                bound.equals("maxDepth=64") ? 64 : 0,
+                bound.equals("maxNodes=100") ? 100 : 0, 0);
+    }
+
+    @Benchmark
+    public void shallow() {
+        Profiler.enter(SHALLOW_ID);
+        Profiler.exit();
+    }
+
+    // 1000-deep recursion of one method: 1000 nodes unbounded, one folded,
+    // 64 and a truncated one, or 100 and an over-budget one.
+    @Benchmark
+    @OperationsPerInvocation(DEEP)
+    public void deep() {
+        for (int i = 0; i < DEEP; i++) Profiler.enter(DEEP_ID);
+        for (int i = 0; i < DEEP; i++) Profiler.exit();
+    }
+}
@@ -0,0 +1,51 @@
+package io.smallfast.profiler;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What {@code metrics=cpu|alloc} adds to an enter/exit pair: two counter reads
+ * per metric and measured frame. Every score is nanoseconds per pair.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MetricsBenchmark {
+
+    private static final int FIRST_ID = 1;
+
+    static final int NESTED = 4;
+
+    @Param({"wall", "cpu", "alloc", "cpu|alloc"})
+    public String metrics;
+
+    // 0: every frame is measured; 1: only the outermost one
+    @Param({"0", "1"})
+    public int metricsDepth;
+
+    // Every trial runs in a fresh fork, so threads create their state with these metrics.
+    @Setup(Level.Trial)
+    public void setup() {
+        int m = 0;
+        if (metrics.contains("cpu")) m |= Metrics.CPU;
+        if (metrics.contains("alloc")) m |= Metrics.ALLOC;
+        Metrics.configure(m, metricsDepth, null);
+    }
+
+    @Benchmark
+    public void shallow() {
+        Profiler.enter(FIRST_ID);
+        Profiler.exit();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NESTED)
+    public void nested() {
+        for (int i = 0; i < NESTED; i++) Profiler.enter(FIRST_ID + i);
+        for (int i = 0; i < NESTED; i++) Profiler.exit();
+    }
+}
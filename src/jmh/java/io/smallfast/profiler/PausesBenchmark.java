@@ -0,0 +1,47 @@
+package io.smallfast.profiler;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What {@code pauses=true} adds to an enter/exit pair: one comparison on
+ * exit, as these calls are too short to wait for the pauses that the
+ * benchmark's own GCs record.
+ * Every score is nanoseconds per pair.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PausesBenchmark {
+
+    private static final int FIRST_ID = 1;
+
+    static final int NESTED = 4;
+
+    @Param({"false", "true"})
+    public boolean pauses;
+
+    // Every trial runs in a fresh fork, and GC listeners are never removed.
+    @Setup(Level.Trial)
+    public void setup() {
+        Profiler.setHistogramEnabled(true);
+        if (pauses) Pauses.start(0L);
+    }
+
+    @Benchmark
+    public void shallow() {
+        Profiler.enter(FIRST_ID);
+        Profiler.exit();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NESTED)
+    public void nested() {
+        for (int i = 0; i < NESTED; i++) Profiler.enter(FIRST_ID + i);
+        for (int i = 0; i < NESTED; i++) Profiler.exit();
+    }
+}
@@ -0,0 +1,136 @@
+package io.smallfast.profiler;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.agent.ByteBuddyAgent;
+import net.bytebuddy.dynamic.loading.ByteArrayClassLoader;
+import net.bytebuddy.dynamic.loading.PackageDefinitionStrategy;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Agent startup: installing the transformer (which also matches every class
+ * already loaded, {@link #install}) and then loading {@code classes} fresh classes through it,
+ * half of them matched by {@code packages}. Each class has five accessors
+ * and five methods with loops, see {@link Template}. Every score is one
+ * complete startup in milliseconds.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Benchmark)
+public class StartupBenchmark {
+
+    private static final String MATCHED = "bench.app.";
+    private static final String OTHER = "bench.lib.";
+
+    public static class Template {
+        private int a, b, c, d, e;
+
+        public int getA() { return a; }
+        public int getB() { return b; }
+        public int getC() { return c; }
+        public int getD() { return d; }
+        public int getE() { return e; }
+
+        public int sumTo(int n) {
+            int s = 0;
+            for (int i = 0; i < n; i++) s += i * a;
+            return s;
+        }
+
+        public int maxOf(int[] v) {
+            int m = Integer.MIN_VALUE;
+            for (int x : v) if (x > m) m = x;
+            return m;
+        }
+
+        public String describe() {
+            return "Template[" + a + "," + b + "," + c + "," + d + "," + e + "]";
+        }
+
+        public int mix(int x) {
+            x ^= x >>> 16;
+            x *= 0x85ebca6b;
+            x ^= x >>> 13;
+            return x * b + c;
+        }
+
+        public void reset(int v) {
+            if (v < 0) throw new IllegalArgumentException("negative");
+            a = b = c = d = e = v;
+        }
+    }
+
+    @Param({"2000"})
+    public int classes;
+
+    // Agent arguments besides packages.
+    @Param({"log=errors", "log=errors,minSize=8"})
+    public String args;
+
+    private Instrumentation inst;
+    private Config cfg;
+    private final Map<String, byte[]> types = new LinkedHashMap<>();
+
+    private ClassLoader loader;
+    private ClassFileTransformer transformer;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        inst = ByteBuddyAgent.install();
+        cfg = Config.parse("packages=" + MATCHED.substring(0, MATCHED.length() - 1) + "," + args);
+        for (int i = 0; i < classes; i++) {
+            String name = ((i & 1) == 0 ? MATCHED : OTHER) + "p" + (i % 50) + ".C" + i;
+            types.put(name, new ByteBuddy().redefine(Template.class).name(name).noNestMate().make().getBytes());
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void freshLoader() {
+        // woven code calls Profiler, so the parent must see the profiler
+        loader = new ByteArrayClassLoader(StartupBenchmark.class.getClassLoader(), false, types, null,
+                ByteArrayClassLoader.PersistenceHandler.MANIFEST, PackageDefinitionStrategy.Trivial.INSTANCE);
+    }
+
+    @TearDown(Level.Invocation)
+    public void uninstall() {
+        if (transformer != null) inst.removeTransformer(transformer);
+        transformer = null;
+        // unload this invocation's classes, or the next install retransforms them
+        loader = null;
+        System.gc();
+    }
+
+    /** Installation alone: matching every class already loaded in this JVM. */
+    @Benchmark
+    public Object install() {
+        return transformer = FlameAgent.install(cfg, TraceAdvice.class, inst);
+    }
+
+    /** The same classes loaded without the agent. */
+    @Benchmark
+    public int baseline() throws ClassNotFoundException {
+        return load();
+    }
+
+    @Benchmark
+    public int startup() throws ClassNotFoundException {
+        transformer = FlameAgent.install(cfg, TraceAdvice.class, inst);
+        return load();
+    }
+
+    private int load() throws ClassNotFoundException {
+        int n = 0;
+        for (String name : types.keySet()) {
+            n += Class.forName(name, false, loader).getDeclaredMethods().length;
+        }
+        return n;
+    }
+}
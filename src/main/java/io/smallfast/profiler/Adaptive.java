@@ -0,0 +1,134 @@
+package io.smallfast.profiler;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Adaptive de-instrumentation ({@code adaptive=true}): methods that are both
+ * hot and trivially cheap cost more in enter/exit advice than they do
+ * themselves. Every {@code adaptiveEvery} the per-method call rate and mean
+ * self time of the last window are computed from the live trees; a leaf method
+ * (no instrumented callees) that stays above {@code adaptiveMinRate} calls/s
+ * and at or below {@code adaptiveMaxSelfNs} for {@value #WINDOWS} consecutive
+ * windows has its class retransformed without advice for it.
+ *
+ * From then on its time is part of its callers' self time. What it recorded
+ * before stays in the trees, under its name suffixed with {@value #MARK}, so
+ * every dump shows which methods were removed.
+ */
+final class Adaptive {
+
+    static final String MARK = " [deinstrumented]";
+    private static final int WINDOWS = 2;
+
+    // Method names (see MethodIdMapping.nameOf) the agent's matcher leaves out.
+    private static final Set<String> REMOVED = ConcurrentHashMap.newKeySet();
+
+    private final Instrumentation inst;
+    private final long maxSelfNs;
+    private final long minCallsPerSec;
+
+    private long[] lastCalls = new long[0];
+    private long[] lastSelfNs = new long[0];
+    private int[] strikes = new int[0];
+
+    private Adaptive(Instrumentation inst, long maxSelfNs, long minCallsPerSec) {
+        this.inst = inst;
+        this.maxSelfNs = maxSelfNs;
+        this.minCallsPerSec = minCallsPerSec;
+    }
+
+    static boolean isRemoved(String methodName) {
+        return !REMOVED.isEmpty() && REMOVED.contains(methodName);
+    }
+
+    /** Requires the agent to be installed with retransformation enabled. */
+    static void start(Instrumentation inst, long maxSelfNs, long minCallsPerSec, long everyMs) {
+        Adaptive a = new Adaptive(inst, maxSelfNs, minCallsPerSec);
+        long period = Math.max(100L, everyMs);
+        Thread t = new Thread(() -> {
+            long last = System.nanoTime();
+            try {
+                while (true) {
+                    Thread.sleep(period);
+                    long now = System.nanoTime();
+                    a.check(Math.max(1L, (now - last) / 1_000_000L));
+                    last = now;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "precise-profiler-adaptive");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void check(long elapsedMs) {
+        int n = MethodRegistry.idLimit();
+        long[] calls = new long[n];
+        long[] selfNs = new long[n];
+        boolean[] hasCallees = new boolean[n];
+        Profiler.sumByMethod(calls, selfNs, hasCallees);
+
+        if (lastCalls.length < n) {
+            lastCalls = Arrays.copyOf(lastCalls, n);
+            lastSelfNs = Arrays.copyOf(lastSelfNs, n);
+            strikes = Arrays.copyOf(strikes, n);
+        }
+
+        List<Integer> remove = new ArrayList<>();
+        for (int id = 1; id < n; id++) {
+            // exited threads drop out of the live sums, so a window can go negative
+            long dc = calls[id] - lastCalls[id];
+            long ds = selfNs[id] - lastSelfNs[id];
+            lastCalls[id] = calls[id];
+            lastSelfNs[id] = selfNs[id];
+
+            boolean cheap = dc > 0 && !hasCallees[id]
+                    && dc * 1000L / elapsedMs >= minCallsPerSec
+                    && ds / dc <= maxSelfNs;
+            strikes[id] = cheap ? strikes[id] + 1 : 0;
+            if (strikes[id] == WINDOWS) {
+                String name = MethodRegistry.nameFor(id);
+                // "[...]": contexts and [queued], frames without a method to remove
+                if (!name.endsWith(MARK) && !name.startsWith("[") && REMOVED.add(name)) remove.add(id);
+            }
+        }
+        if (!remove.isEmpty()) deinstrument(remove, calls, selfNs, elapsedMs);
+    }
+
+    private void deinstrument(List<Integer> ids, long[] calls, long[] selfNs, long elapsedMs) {
+        Set<String> types = new HashSet<>();
+        for (int id : ids) types.add(typeOf(MethodRegistry.nameFor(id)));
+
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> c : inst.getAllLoadedClasses()) {
+            if (types.contains(c.getName()) && inst.isModifiableClass(c)) classes.add(c);
+        }
+        try {
+            inst.retransformClasses(classes.toArray(new Class<?>[0]));
+        } catch (Throwable e) {
+            // stays in REMOVED: no retry storm, and later loaders of the class skip it too
+            System.err.println("[precise-profiler] de-instrumentation of " + types + " failed: " + e);
+            return;
+        }
+
+        for (int id : ids) {
+            String name = MethodRegistry.nameFor(id);
+            MethodRegistry.register(id, name + MARK);
+            System.out.println("[precise-profiler] de-instrumented " + name
+                    + " (mean self " + (selfNs[id] / Math.max(1L, calls[id])) + "ns over "
+                    + calls[id] + " calls, " + strikes[id] + " windows of " + elapsedMs + "ms)");
+        }
+    }
+
+    // "com.foo.Bar$Inner.get()I" -> "com.foo.Bar$Inner"
+    private static String typeOf(String methodName) {
+        return methodName.substring(0, methodName.lastIndexOf('.', methodName.indexOf('(')));
+    }
+}
@@ -0,0 +1,268 @@
+package io.smallfast.profiler;
+
+import org.HdrHistogram.Histogram;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * Call tree of one thread as parallel primitive arrays ({@code tree=arrays}),
+ * the alternative to linked {@link Profiler.Node} objects.
+ *
+ * A node is an index; nodes are appended, so {@code parent[i] < i} holds and
+ * the arrays already have {@link TreeSnapshot}'s layout: a snapshot is a bulk
+ * copy. Children are found through an open-addressed
+ * {@code (parent, methodId) -> index} hash, constant time at any fan-out,
+ * where {@link Profiler.Node} scans its children.
+ *
+ * Same rules as the node tree: accumulators are monotonic and written by the
+ * owning thread only, and {@link #size} is published with a release store
+ * after a new node's slots are written, so other threads read below it.
+ */
+final class ArrayTree {
+
+    private static final VarHandle SIZE;
+    static {
+        try {
+            SIZE = MethodHandles.lookup().findVarHandle(ArrayTree.class, "size", int.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private int size;
+    int[] parent = new int[64];
+    int[] methodId = new int[64];
+    long[] calls = new long[64];
+    long[] selfNs = new long[64];     // raw, includes calibrated overhead
+    long[] overheadNs = new long[64]; // part of selfNs attributed to instrumentation
+    long[] cpuNs;                     // null unless metrics=cpu
+    long[] allocBytes;                // null unless metrics=alloc
+    long[] inclNs;                    // null unless metrics=inclusive
+    long[] recursions;                // null unless foldRecursion, see Governance
+    int[] open;                       // null unless foldRecursion: frames of the node on the stack
+    long[] pausedCalls;               // null unless pauses, see Pauses
+    private final HistColumn hist = new HistColumn();
+    private final HistColumn cpuHist;
+    private final HistColumn allocHist;
+    private final HistColumn inclHist;
+    private final HistColumn pausedHist;
+
+    private final TreeSnapshot.PathIndex children = new TreeSnapshot.PathIndex(64);
+
+    long[] callsAtLastScan = new long[0]; // budget keeper only
+
+    ArrayTree() {
+        parent[0] = -1; // synthetic root, methodId 0
+        size = 1;
+        if (Metrics.cpu()) cpuNs = new long[64];
+        if (Metrics.alloc()) allocBytes = new long[64];
+        cpuHist = Metrics.cpu() ? new HistColumn() : null;
+        allocHist = Metrics.alloc() ? new HistColumn() : null;
+        if (Metrics.inclusive()) inclNs = new long[64];
+        inclHist = Metrics.inclusive() ? new HistColumn() : null;
+        if (Governance.FOLD) {
+            recursions = new long[64];
+            open = new int[64];
+        }
+        if (Pauses.ON) pausedCalls = new long[64];
+        pausedHist = Pauses.ON ? new HistColumn() : null;
+    }
+
+    /** Nodes that are fully visible to the calling thread. */
+    int publishedSize() {
+        return (int) SIZE.getAcquire(this);
+    }
+
+    // Owner only; -1 if there is none.
+    int find(int parentIdx, int mid) {
+        return children.find(parentIdx, mid);
+    }
+
+    // Owner only.
+    int child(int parentIdx, int mid) {
+        int idx = children.find(parentIdx, mid);
+        if (idx >= 0) return idx;
+
+        idx = size;
+        if (idx == parent.length) grow();
+        parent[idx] = parentIdx;
+        methodId[idx] = mid;
+        children.put(parentIdx, mid, idx);
+        SIZE.setRelease(this, idx + 1);
+        return idx;
+    }
+
+    // Owner only. Same accounting as Profiler.pop does on a Node.
+    void record(int idx, long self, long overhead, boolean histogram) {
+        calls[idx]++;
+        if (self <= 0) return;
+        selfNs[idx] += self;
+        overheadNs[idx] += overhead;
+        if (histogram) hist.record(idx, calls[idx], self - overhead);
+    }
+
+    // Owner only: a call kept back by Pauses, once judged; value -1 if none.
+    void settle(int idx, long value, boolean paused, boolean histogram) {
+        if (paused) pausedCalls[idx]++;
+        if (histogram && value >= 0) (paused ? pausedHist : hist).record(idx, calls[idx], value);
+    }
+
+    // Owner only, after record; a negative amount is not measured.
+    void recordMetrics(int idx, long cpu, long alloc, long incl, boolean histogram) {
+        if (cpu >= 0) {
+            cpuNs[idx] += cpu;
+            if (histogram) cpuHist.record(idx, calls[idx], cpu);
+        }
+        if (alloc >= 0) {
+            allocBytes[idx] += alloc;
+            if (histogram) allocHist.record(idx, calls[idx], alloc);
+        }
+        if (incl >= 0) {
+            inclNs[idx] += incl;
+            if (histogram) inclHist.record(idx, calls[idx], incl);
+        }
+    }
+
+    // Latency histogram of node idx, null if none; readable from any thread.
+    NodeHistogram histogram(int idx) {
+        return hist.get(idx);
+    }
+
+    // Budget keeper only: drops every histogram of node idx, returns how many.
+    int dropHistograms(int idx) {
+        int dropped = hist.drop(idx);
+        if (cpuHist != null) dropped += cpuHist.drop(idx);
+        if (allocHist != null) dropped += allocHist.drop(idx);
+        if (inclHist != null) dropped += inclHist.drop(idx);
+        if (pausedHist != null) dropped += pausedHist.drop(idx);
+        return dropped;
+    }
+
+    // Once the owner has exited: gives the budget back.
+    void releaseHistograms() {
+        int n = publishedSize();
+        hist.release(n);
+        if (cpuHist != null) cpuHist.release(n);
+        if (allocHist != null) allocHist.release(n);
+        if (inclHist != null) inclHist.release(n);
+        if (pausedHist != null) pausedHist.release(n);
+    }
+
+    /** Bulk copy into {@code t}, which must be empty and have the same metrics. */
+    void copyInto(TreeSnapshot t) {
+        int n = publishedSize();
+        t.size = n;
+        t.parent = Arrays.copyOf(parent, n);
+        t.methodId = Arrays.copyOf(methodId, n);
+        t.calls = Arrays.copyOf(calls, n);
+        t.selfNs = Arrays.copyOf(selfNs, n);
+        t.overheadNs = Arrays.copyOf(overheadNs, n);
+        t.hist = hist.snapshot(n);
+        if (cpuNs != null) {
+            t.cpuNs = Arrays.copyOf(cpuNs, n);
+            t.cpuHist = cpuHist.snapshot(n);
+        }
+        if (allocBytes != null) {
+            t.allocBytes = Arrays.copyOf(allocBytes, n);
+            t.allocHist = allocHist.snapshot(n);
+        }
+        if (inclNs != null) {
+            t.inclNs = Arrays.copyOf(inclNs, n);
+            t.inclHist = inclHist.snapshot(n);
+        }
+        if (recursions != null) t.recursions = Arrays.copyOf(recursions, n);
+        if (pausedCalls != null) {
+            t.pausedCalls = Arrays.copyOf(pausedCalls, n);
+            t.pausedHist = pausedHist.snapshot(n);
+        }
+    }
+
+    private void grow() {
+        int newCap = parent.length << 1;
+        calls = Arrays.copyOf(calls, newCap);
+        selfNs = Arrays.copyOf(selfNs, newCap);
+        overheadNs = Arrays.copyOf(overheadNs, newCap);
+        if (cpuNs != null) cpuNs = Arrays.copyOf(cpuNs, newCap);
+        if (allocBytes != null) allocBytes = Arrays.copyOf(allocBytes, newCap);
+        if (inclNs != null) inclNs = Arrays.copyOf(inclNs, newCap);
+        if (recursions != null) {
+            recursions = Arrays.copyOf(recursions, newCap);
+            open = Arrays.copyOf(open, newCap);
+        }
+        if (pausedCalls != null) pausedCalls = Arrays.copyOf(pausedCalls, newCap);
+        methodId = Arrays.copyOf(methodId, newCap);
+        parent = Arrays.copyOf(parent, newCap);
+        hist.grow(newCap);
+        if (cpuHist != null) cpuHist.grow(newCap);
+        if (allocHist != null) allocHist.grow(newCap);
+        if (inclHist != null) inclHist.grow(newCap);
+        if (pausedHist != null) pausedHist.grow(newCap);
+    }
+
+    /**
+     * One histogram slot per node, in fixed chunks that never move, so the
+     * budget keeper can drop one while the owner grows the tree without either
+     * write getting lost.
+     */
+    private static final class HistColumn {
+        private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(NodeHistogram[].class);
+        private static final int CHUNK_BITS = 10;
+        private static final int CHUNK = 1 << CHUNK_BITS;
+
+        private NodeHistogram[][] chunks = new NodeHistogram[1][];
+
+        NodeHistogram get(int idx) {
+            NodeHistogram[][] dir = chunks;
+            int c = idx >>> CHUNK_BITS;
+            if (c >= dir.length) return null;
+            NodeHistogram[] chunk = dir[c];
+            return (chunk == null) ? null : (NodeHistogram) SLOT.getAcquire(chunk, idx & (CHUNK - 1));
+        }
+
+        // Owner only.
+        void record(int idx, long calls, long value) {
+            NodeHistogram h = get(idx);
+            if (h == null) {
+                h = NodeHistogram.allocate(calls);
+                if (h == null) return;
+                NodeHistogram[] chunk = chunks[idx >>> CHUNK_BITS];
+                if (chunk == null) {
+                    chunk = new NodeHistogram[CHUNK];
+                    chunks[idx >>> CHUNK_BITS] = chunk;
+                }
+                SLOT.setRelease(chunk, idx & (CHUNK - 1), h);
+            }
+            h.record(value);
+        }
+
+        // Owner only.
+        void grow(int capacity) {
+            int n = (capacity + CHUNK - 1) >>> CHUNK_BITS;
+            if (n > chunks.length) chunks = Arrays.copyOf(chunks, n);
+        }
+
+        int drop(int idx) {
+            NodeHistogram h = get(idx);
+            if (!NodeHistogram.isLive(h)) return 0;
+            NodeHistogram[] chunk = chunks[idx >>> CHUNK_BITS];
+            if (!SLOT.compareAndSet(chunk, idx & (CHUNK - 1), h, NodeHistogram.DROPPED)) return 0;
+            NodeHistogram.release(h);
+            return 1;
+        }
+
+        void release(int n) {
+            for (int i = 1; i < n; i++) NodeHistogram.release(get(i));
+        }
+
+        Histogram[] snapshot(int n) {
+            Histogram[] out = new Histogram[n];
+            for (int i = 1; i < n; i++) {
+                NodeHistogram h = get(i);
+                if (h != null) out[i] = h.snapshot();
+            }
+            return out;
+        }
+    }
+}
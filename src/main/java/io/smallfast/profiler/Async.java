@@ -0,0 +1,134 @@
+package io.smallfast.profiler;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RunnableFuture;
+import java.util.function.Supplier;
+
+/**
+ * Cross-thread stitching ({@code async=true}). In woven classes, calls that
+ * hand work to another thread are redirected here (see
+ * {@link FlameAgent}): {@link Executor#execute}, {@link ExecutorService#submit}
+ * and {@link CompletableFuture#runAsync} / {@code supplyAsync}. The task is
+ * wrapped with where it was submitted from, a {@link Profiler.Origin}, and
+ * when it runs its calls are recorded under the submitter's path in the
+ * running thread's tree, after a {@code [queued]} call for its time in the
+ * queue. Merged dumps then show pool work below the code that caused it.
+ *
+ * Submitting takes a reference to the submitter's current node only; the
+ * path is read when the task runs. Tasks submitted outside any instrumented
+ * call, or already wrapped by an outer hand-off, are passed through as they are.
+ * So are tasks whose type the executor may rely on: {@link Comparable} ones
+ * (a {@code PriorityBlockingQueue} orders by it) and {@link RunnableFuture}s
+ * (seen again by {@code afterExecute} and {@code remove}); they run unstitched.
+ */
+public final class Async {
+
+    private Async() {}
+
+    public static void execute(Executor e, Runnable task) {
+        e.execute(wrap(task));
+    }
+
+    public static Future<?> submit(ExecutorService e, Runnable task) {
+        return e.submit(wrap(task));
+    }
+
+    public static <T> Future<T> submit(ExecutorService e, Runnable task, T result) {
+        return e.submit(wrap(task), result);
+    }
+
+    public static <T> Future<T> submit(ExecutorService e, Callable<T> task) {
+        return e.submit(wrap(task));
+    }
+
+    public static CompletableFuture<Void> runAsync(Runnable task) {
+        return CompletableFuture.runAsync(wrap(task));
+    }
+
+    public static CompletableFuture<Void> runAsync(Runnable task, Executor e) {
+        return CompletableFuture.runAsync(wrap(task), e);
+    }
+
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(wrap(task));
+    }
+
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> task, Executor e) {
+        return CompletableFuture.supplyAsync(wrap(task), e);
+    }
+
+    static Runnable wrap(Runnable task) {
+        Profiler.Origin o = (task == null || task instanceof Task || task instanceof Comparable
+                || task instanceof RunnableFuture) ? null : Profiler.origin();
+        return (o == null) ? task : new Task<Void>(o, task, null, null);
+    }
+
+    static <T> Callable<T> wrap(Callable<T> task) {
+        Profiler.Origin o = (task == null || task instanceof Task || task instanceof Comparable)
+                ? null : Profiler.origin();
+        return (o == null) ? task : new Task<>(o, null, task, null);
+    }
+
+    static <T> Supplier<T> wrap(Supplier<T> task) {
+        Profiler.Origin o = (task == null || task instanceof Task) ? null : Profiler.origin();
+        return (o == null) ? task : new Task<>(o, null, null, task);
+    }
+
+    // One wrapper for all three shapes; exactly one delegate is set.
+    private static final class Task<T> implements Runnable, Callable<T>, Supplier<T> {
+        private final Profiler.Origin origin;
+        private final Runnable runnable;
+        private final Callable<T> callable;
+        private final Supplier<T> supplier;
+
+        Task(Profiler.Origin origin, Runnable runnable, Callable<T> callable, Supplier<T> supplier) {
+            this.origin = origin;
+            this.runnable = runnable;
+            this.callable = callable;
+            this.supplier = supplier;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            int base = Profiler.beginStitched(origin);
+            try {
+                runnable.run();
+            } finally {
+                Profiler.endStitched(origin, base, start);
+            }
+        }
+
+        @Override
+        public T call() throws Exception {
+            long start = System.nanoTime();
+            int base = Profiler.beginStitched(origin);
+            try {
+                return callable.call();
+            } finally {
+                Profiler.endStitched(origin, base, start);
+            }
+        }
+
+        @Override
+        public T get() {
+            long start = System.nanoTime();
+            int base = Profiler.beginStitched(origin);
+            try {
+                return supplier.get();
+            } finally {
+                Profiler.endStitched(origin, base, start);
+            }
+        }
+
+        @Override
+        public String toString() {
+            Object d = (runnable != null) ? runnable : (callable != null) ? callable : supplier;
+            return String.valueOf(d);
+        }
+    }
+}
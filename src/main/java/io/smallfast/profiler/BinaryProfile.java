@@ -0,0 +1,379 @@
+package io.smallfast.profiler;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compact binary profile: what the JVM under profiling writes cheaply, to be
+ * formatted later by {@link ProfileTool}. Big-endian, laid out as:
+ *
+ * <pre>
+ * int    magic 'PPRF', int version, int flags (1 = histograms), long createdAtMs
+ * int    name count, then per name: int methodId, long stableId (since version 5),
+ *        int length, UTF-8 bytes (only methods referenced by the trees below)
+ * int    tree count, then per tree:
+ *        int length, UTF-8 thread name, long tid, long epoch, long capturedAtNs, int size,
+ *        int metrics (Metrics.CPU | Metrics.ALLOC, since version 2; | Metrics.INCLUSIVE, since 3),
+ *        int columns (1 = recursions, since version 4; 2 = pauses, since 6),
+ *        int[size] parent, int[size] methodId, long[size] calls, long[size] selfNs, long[size] overheadNs,
+ *        if cpu: long[size] cpuNs, if alloc: long[size] allocBytes, if inclusive: long[size] inclNs,
+ *        if recursions: long[size] recursions, if pauses: long[size] pausedCalls,
+ *        if histograms: int length, then one deflate stream holding per node
+ *        int length (0 = none) and the HdrHistogram encoding; the same again
+ *        for the cpu, the alloc, the inclusive and the paused histograms, if the tree has them
+ * </pre>
+ *
+ * The methodIds are the writing JVM's; the reader maps them to its own
+ * through the stable ids (see {@link MethodRegistry}), so files of other
+ * runs and hosts can be read side by side. The writer streams the snapshot
+ * arrays in bulk through one reusable buffer; nothing per node is turned
+ * into a String.
+ */
+final class BinaryProfile {
+
+    static final int MAGIC = 0x50505246; // "PPRF"
+    static final int VERSION = 6; // 1: no metrics, 2: no inclusive time, 3: no recursions, 4: no stable ids, 5: no pauses
+    static final int FLAG_HISTOGRAMS = 1;
+    static final int COLUMN_RECURSIONS = 1;
+    static final int COLUMN_PAUSES = 2;
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    final long createdAtMs;
+    final boolean histograms;
+    final List<TreeSnapshot> trees;
+
+    private BinaryProfile(long createdAtMs, boolean histograms, List<TreeSnapshot> trees) {
+        this.createdAtMs = createdAtMs;
+        this.histograms = histograms;
+        this.trees = trees;
+    }
+
+    static void write(Path file, List<TreeSnapshot> trees, boolean histograms) throws IOException {
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(ch, trees, histograms);
+        }
+    }
+
+    static void write(WritableByteChannel ch, List<TreeSnapshot> trees, boolean histograms) throws IOException {
+        Out out = new Out(ch);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(histograms ? FLAG_HISTOGRAMS : 0);
+        out.putLong(System.currentTimeMillis());
+
+        BitSet used = new BitSet();
+        for (TreeSnapshot t : trees) {
+            for (int i = 1; i < t.size; i++) used.set(t.methodId[i]);
+        }
+        out.putInt(used.cardinality());
+        for (int id = used.nextSetBit(0); id >= 0; id = used.nextSetBit(id + 1)) {
+            out.putInt(id);
+            out.putLong(MethodRegistry.stableId(id));
+            out.putString(MethodRegistry.nameFor(id));
+        }
+
+        out.putInt(trees.size());
+        HistogramCodec codec = histograms ? new HistogramCodec() : null;
+        for (TreeSnapshot t : trees) {
+            out.putString(t.threadName);
+            out.putLong(t.tid);
+            out.putLong(t.epoch);
+            out.putLong(t.capturedAtNs);
+            out.putInt(t.size);
+            out.putInt(t.metrics);
+            out.putInt(((t.recursions != null) ? COLUMN_RECURSIONS : 0) | ((t.pausedCalls != null) ? COLUMN_PAUSES : 0));
+            out.putInts(t.parent, t.size);
+            out.putInts(t.methodId, t.size);
+            out.putLongs(t.calls, t.size);
+            out.putLongs(t.selfNs, t.size);
+            out.putLongs(t.overheadNs, t.size);
+            if (t.cpuNs != null) out.putLongs(t.cpuNs, t.size);
+            if (t.allocBytes != null) out.putLongs(t.allocBytes, t.size);
+            if (t.inclNs != null) out.putLongs(t.inclNs, t.size);
+            if (t.recursions != null) out.putLongs(t.recursions, t.size);
+            if (t.pausedCalls != null) out.putLongs(t.pausedCalls, t.size);
+            if (codec != null) {
+                codec.encode(t.hist, t.size, out);
+                if (t.cpuHist != null) codec.encode(t.cpuHist, t.size, out);
+                if (t.allocHist != null) codec.encode(t.allocHist, t.size, out);
+                if (t.inclHist != null) codec.encode(t.inclHist, t.size, out);
+                if (t.pausedHist != null) codec.encode(t.pausedHist, t.size, out);
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads {@code file} through a read-only mapping ({@code .gz} files are
+     * inflated into memory instead). Methods found in the file are looked up in,
+     * or added to, {@link MethodRegistry} and the trees' method ids mapped to
+     * the registry's, so the regular exporters can format the returned trees. With {@code withHistograms} false, histograms
+     * are skipped without being decoded (each one costs its full count array in memory).
+     */
+    static BinaryProfile read(Path file, boolean withHistograms) throws IOException {
+        ByteBuffer in;
+        if (file.getFileName().toString().endsWith(".gz")) {
+            try (InputStream gz = new GZIPInputStream(Files.newInputStream(file), 1 << 16)) {
+                in = ByteBuffer.wrap(gz.readAllBytes());
+            }
+        } else {
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+                in = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+        }
+        if (in.remaining() < 12 || in.getInt() != MAGIC) {
+            throw new IOException(file + " is not a precise-profiler binary profile");
+        }
+        int version = in.getInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException(file + ": unsupported format version " + version);
+        }
+        boolean histograms = (in.getInt() & FLAG_HISTOGRAMS) != 0;
+        long createdAtMs = in.getLong();
+
+        int names = in.getInt();
+        int[] local = new int[16]; // registry id by file id
+        for (int n = 0; n < names; n++) {
+            int id = in.getInt();
+            long stable = (version >= 5) ? in.getLong() : 0;
+            String name = getString(in);
+            if (id >= local.length) local = Arrays.copyOf(local, Math.max(local.length << 1, id + 1));
+            local[id] = (stable != 0) ? MethodRegistry.idFor(stable, name) : MethodRegistry.idFor(name);
+        }
+
+        int count = in.getInt();
+        List<TreeSnapshot> trees = new ArrayList<>(count);
+        HistogramCodec codec = histograms ? new HistogramCodec() : null;
+        for (int n = 0; n < count; n++) {
+            String threadName = getString(in);
+            long tid = in.getLong();
+            long epoch = in.getLong();
+            long capturedAtNs = in.getLong();
+            int size = in.getInt();
+            int metrics = (version >= 2) ? in.getInt() : 0;
+            int columns = (version >= 4) ? in.getInt() : 0;
+            TreeSnapshot t = new TreeSnapshot(threadName, tid, epoch, capturedAtNs, Math.max(1, size), metrics);
+            if ((columns & COLUMN_RECURSIONS) != 0) t.recursions = new long[Math.max(1, size)];
+            if ((columns & COLUMN_PAUSES) != 0) t.withPauses();
+            t.size = size;
+            in.asIntBuffer().get(t.parent, 0, size);
+            in.position(in.position() + size * 4);
+            in.asIntBuffer().get(t.methodId, 0, size);
+            in.position(in.position() + size * 4);
+            for (int i = 1; i < size; i++) t.methodId[i] = local[t.methodId[i]];
+            in.asLongBuffer().get(t.calls, 0, size);
+            in.position(in.position() + size * 8);
+            in.asLongBuffer().get(t.selfNs, 0, size);
+            in.position(in.position() + size * 8);
+            in.asLongBuffer().get(t.overheadNs, 0, size);
+            in.position(in.position() + size * 8);
+            if (t.cpuNs != null) {
+                in.asLongBuffer().get(t.cpuNs, 0, size);
+                in.position(in.position() + size * 8);
+            }
+            if (t.allocBytes != null) {
+                in.asLongBuffer().get(t.allocBytes, 0, size);
+                in.position(in.position() + size * 8);
+            }
+            if (t.inclNs != null) {
+                in.asLongBuffer().get(t.inclNs, 0, size);
+                in.position(in.position() + size * 8);
+            }
+            if (t.recursions != null) {
+                in.asLongBuffer().get(t.recursions, 0, size);
+                in.position(in.position() + size * 8);
+            }
+            if (t.pausedCalls != null) {
+                in.asLongBuffer().get(t.pausedCalls, 0, size);
+                in.position(in.position() + size * 8);
+            }
+            if (codec != null) {
+                readHistograms(codec, in, t.hist, size, withHistograms, file);
+                if (t.cpuHist != null) readHistograms(codec, in, t.cpuHist, size, withHistograms, file);
+                if (t.allocHist != null) readHistograms(codec, in, t.allocHist, size, withHistograms, file);
+                if (t.inclHist != null) readHistograms(codec, in, t.inclHist, size, withHistograms, file);
+                if (t.pausedHist != null) readHistograms(codec, in, t.pausedHist, size, withHistograms, file);
+            }
+            trees.add(t);
+        }
+        return new BinaryProfile(createdAtMs, histograms && withHistograms, trees);
+    }
+
+    private static void readHistograms(HistogramCodec codec, ByteBuffer in, Histogram[] hist, int size,
+                                       boolean decode, Path file) throws IOException {
+        if (decode) codec.decode(in, hist, size, file);
+        else HistogramCodec.skip(in);
+    }
+
+    private static String getString(ByteBuffer in) {
+        int len = in.getInt();
+        byte[] b = new byte[len];
+        in.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    // Buffered big-endian writer over a channel; arrays are copied in bulk.
+    private static final class Out {
+        private final WritableByteChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        Out(WritableByteChannel ch) {
+            this.ch = ch;
+        }
+
+        void putInt(int v) throws IOException {
+            ensure(4);
+            buf.putInt(v);
+        }
+
+        void putLong(long v) throws IOException {
+            ensure(8);
+            buf.putLong(v);
+        }
+
+        void putString(String s) throws IOException {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            putInt(b.length);
+            putBytes(b, 0, b.length);
+        }
+
+        void putBytes(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                ensure(1);
+                int n = Math.min(len, buf.remaining());
+                buf.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        void putInts(int[] a, int len) throws IOException {
+            int off = 0;
+            while (off < len) {
+                ensure(4);
+                int n = Math.min(len - off, buf.remaining() >> 2);
+                buf.asIntBuffer().put(a, off, n);
+                buf.position(buf.position() + (n << 2));
+                off += n;
+            }
+        }
+
+        void putLongs(long[] a, int len) throws IOException {
+            int off = 0;
+            while (off < len) {
+                ensure(8);
+                int n = Math.min(len - off, buf.remaining() >> 3);
+                buf.asLongBuffer().put(a, off, n);
+                buf.position(buf.position() + (n << 3));
+                off += n;
+            }
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buf.remaining() < bytes) flush();
+        }
+
+        void flush() throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) ch.write(buf);
+            buf.clear();
+        }
+    }
+
+    // HdrHistogram's own encoding, one deflate stream per tree. One stream
+    // instead of one per histogram: resetting a Deflater costs more than
+    // compressing a typical histogram, and neighbouring histograms compress
+    // well together. (Histogram.encodeIntoCompressedByteBuffer would also leave
+    // a scratch buffer attached to every histogram it encodes.)
+    private static final class HistogramCodec {
+        private ByteBuffer raw = ByteBuffer.allocate(1024);
+        private byte[] packed = new byte[1024];
+        private int packedLen;
+        private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        private final Inflater inflater = new Inflater();
+
+        void encode(Histogram[] hist, int size, Out out) throws IOException {
+            deflater.reset();
+            packedLen = 0;
+            for (int i = 0; i < size; i++) {
+                Histogram h = hist[i];
+                raw.clear();
+                if (h == null) {
+                    raw.putInt(0);
+                } else {
+                    int needed = 4 + h.getNeededByteBufferCapacity();
+                    if (raw.capacity() < needed) raw = ByteBuffer.allocate(needed);
+                    raw.putInt(0);
+                    raw.putInt(0, h.encodeIntoByteBuffer(raw));
+                }
+                deflater.setInput(raw.array(), 0, raw.position());
+                while (!deflater.needsInput()) deflateMore();
+            }
+            deflater.finish();
+            while (!deflater.finished()) deflateMore();
+            out.putInt(packedLen);
+            out.putBytes(packed, 0, packedLen);
+        }
+
+        private void deflateMore() {
+            if (packedLen == packed.length) packed = Arrays.copyOf(packed, packedLen << 1);
+            packedLen += deflater.deflate(packed, packedLen, packed.length - packedLen);
+        }
+
+        static void skip(ByteBuffer in) {
+            int len = in.getInt();
+            in.position(in.position() + len);
+        }
+
+        void decode(ByteBuffer in, Histogram[] hist, int size, Path file) throws IOException {
+            int len = in.getInt();
+            inflater.reset();
+            inflater.setInput(in.slice(in.position(), len));
+            in.position(in.position() + len);
+            try {
+                for (int i = 0; i < size; i++) {
+                    inflate(4, file);
+                    int n = raw.getInt(0);
+                    if (n == 0) continue;
+                    inflate(n, file);
+                    hist[i] = Histogram.decodeFromByteBuffer(raw, 0);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(file + ": corrupt histogram", e);
+            }
+        }
+
+        // Inflates exactly n bytes into raw, positioned at 0 with limit n.
+        private void inflate(int n, Path file) throws IOException, DataFormatException {
+            if (raw.capacity() < n) raw = ByteBuffer.allocate(n);
+            int got = 0;
+            while (got < n) {
+                int k = inflater.inflate(raw.array(), got, n - got);
+                if (k == 0 && (inflater.needsInput() || inflater.finished())) {
+                    throw new IOException(file + ": truncated histogram");
+                }
+                got += k;
+            }
+            raw.clear().limit(n);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package io.smallfast.profiler;
+
+import net.bytebuddy.ByteBuddy;
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.dynamic.loading.ClassLoadingStrategy;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static net.bytebuddy.matcher.ElementMatchers.namedOneOf;
+
+/**
+ * Measures what a woven enter/exit advice pair costs on this JVM
+ * and hands the result to {@link Profiler}, which subtracts it from self times.
+ *
+ * The cost splits in two: the inner part lands between a call's own start and
+ * end timestamps, the outer part lands in its caller. Both are measured on a
+ * probe class woven exactly like application code:
+ * inner = self time of an empty method,
+ * outer = (self of a method calling {@value #FAN_OUT} woven empty methods
+ *          - self of the same loop over uninstrumented ones) / {@value #FAN_OUT}.
+ */
+final class Calibration {
+
+    private static final int FAN_OUT = 16;
+    private static final int CALLS_PER_ROUND = 200_000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 9;
+
+    private Calibration() {}
+
+    public interface Target {
+        void leaf();
+        void fanOut();
+        void fanOutPlain();
+    }
+
+    public static class Probe implements Target {
+        @Override
+        public void leaf() {
+        }
+
+        public void plainLeaf() {
+        }
+
+        @Override
+        public void fanOut() {
+            for (int i = 0; i < FAN_OUT; i++) leaf();
+        }
+
+        @Override
+        public void fanOutPlain() {
+            for (int i = 0; i < FAN_OUT; i++) plainLeaf();
+        }
+    }
+
+    /**
+     * Calibrates once on a dedicated daemon thread, waits for that first result,
+     * then keeps re-measuring every {@code periodMs} (never if {@code periodMs <= 0}).
+     * {@code advice} is the advice class the agent weaves into application code.
+     */
+    static void start(long periodMs, Class<?> advice) {
+        CountDownLatch first = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                String wovenName = Calibration.class.getName() + "$WovenProbe";
+                Target probe = weave(wovenName, advice);
+                boolean logged = false;
+                while (true) {
+                    long[] o = measure(probe, wovenName);
+                    Profiler.setOverheadNs(o[0], o[1]);
+                    if (!logged) {
+                        System.out.println("[precise-profiler] calibrated overhead per call: inner="
+                                + o[0] + "ns, outer=" + o[1] + "ns");
+                        logged = true;
+                    }
+                    first.countDown();
+                    if (periodMs <= 0) return;
+                    Thread.sleep(periodMs);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                System.err.println("[precise-profiler] calibration failed, overhead is not subtracted: " + e);
+            } finally {
+                first.countDown();
+            }
+        }, "precise-profiler-calibration");
+        t.setDaemon(true);
+        t.start();
+
+        try {
+            first.await(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static Target weave(String name, Class<?> advice) throws ReflectiveOperationException {
+        Class<? extends Probe> type = new ByteBuddy()
+                .redefine(Probe.class)
+                .name(name)
+                .visit(Advice.withCustomMapping()
+                        .bind(new MethodIdMapping.Factory())
+                        .to(advice)
+                        .on(namedOneOf("leaf", "fanOut", "fanOutPlain")))
+                .make()
+                .load(Probe.class.getClassLoader(), ClassLoadingStrategy.Default.WRAPPER)
+                .getLoaded();
+        return type.getDeclaredConstructor().newInstance();
+    }
+
+    // Runs on the calibration thread, whose state is kept out of dumps.
+    private static long[] measure(Target probe, String wovenName) {
+        Profiler.State s = Profiler.detachCurrentThread();
+        int[] ids = {
+                MethodRegistry.idOf(wovenName + ".leaf()V"),
+                MethodRegistry.idOf(wovenName + ".fanOut()V"),
+                MethodRegistry.idOf(wovenName + ".fanOutPlain()V"),
+        };
+
+        long[] inner = new long[ROUNDS];
+        long[] outer = new long[ROUNDS];
+        for (int r = -WARMUP_ROUNDS; r < ROUNDS; r++) {
+            long[] before = rootTotals(s, ids);
+
+            for (int i = 0; i < CALLS_PER_ROUND; i++) probe.leaf();
+            for (int i = 0; i < CALLS_PER_ROUND / FAN_OUT; i++) {
+                probe.fanOut();
+                probe.fanOutPlain();
+            }
+
+            if (r < 0) continue;
+            long[] after = rootTotals(s, ids);
+            long in = perCall(before, after, 0);
+            long fan = perCall(before, after, 1);
+            long plain = perCall(before, after, 2);
+            inner[r] = in;
+            outer[r] = Math.max(0, (fan - plain) / FAN_OUT);
+        }
+        return new long[]{median(inner), median(outer)};
+    }
+
+    // {selfNs, calls} per id, of the root-level nodes of s; read through a
+    // snapshot so that both tree layouts work.
+    private static long[] rootTotals(Profiler.State s, int[] ids) {
+        TreeSnapshot t = TreeSnapshot.capture(s, 0);
+        long[] out = new long[ids.length * 2];
+        for (int i = 1; i < t.size; i++) {
+            if (t.parent[i] != 0) continue;
+            for (int k = 0; k < ids.length; k++) {
+                if (t.methodId[i] != ids[k]) continue;
+                out[2 * k] = t.selfNs[i];
+                out[2 * k + 1] = t.calls[i];
+            }
+        }
+        return out;
+    }
+
+    private static long perCall(long[] before, long[] after, int k) {
+        return (after[2 * k] - before[2 * k]) / Math.max(1, after[2 * k + 1] - before[2 * k + 1]);
+    }
+
+    private static long median(long[] v) {
+        long[] c = v.clone();
+        Arrays.sort(c);
+        return c[c.length / 2];
+    }
+}
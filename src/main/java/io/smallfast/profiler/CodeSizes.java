@@ -0,0 +1,91 @@
+package io.smallfast.profiler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Bytecode length of every method of a class file, for {@code minSize}:
+ * walks the constant pool and method table far enough to read each method's
+ * {@code Code} attribute length, nothing else is decoded.
+ */
+final class CodeSizes {
+
+    private CodeSizes() {}
+
+    /** name + descriptor -> code length in bytes; methods without code are absent. Null if unreadable. */
+    static Map<String, Integer> of(byte[] classFile) {
+        try {
+            return parse(ByteBuffer.wrap(classFile));
+        } catch (RuntimeException e) {
+            return null; // not a class file we understand: every method counts as big enough
+        }
+    }
+
+    private static Map<String, Integer> parse(ByteBuffer in) {
+        if (in.getInt() != 0xCAFEBABE) return null;
+        in.getInt(); // minor, major
+        int count = in.getShort() & 0xFFFF;
+        String[] utf8 = new String[count];
+        for (int i = 1; i < count; i++) {
+            int tag = in.get();
+            switch (tag) {
+                case 1: // Utf8
+                    int len = in.getShort() & 0xFFFF;
+                    // modified UTF-8 equals UTF-8 for the names compared here
+                    utf8[i] = new String(in.array(), in.position(), len, StandardCharsets.UTF_8);
+                    in.position(in.position() + len);
+                    break;
+                case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18: // 4 bytes
+                    in.position(in.position() + 4);
+                    break;
+                case 5: case 6: // Long, Double: two slots
+                    in.position(in.position() + 8);
+                    i++;
+                    break;
+                case 7: case 8: case 16: case 19: case 20: // 2 bytes
+                    in.position(in.position() + 2);
+                    break;
+                case 15: // MethodHandle
+                    in.position(in.position() + 3);
+                    break;
+                default:
+                    throw new IllegalArgumentException("constant pool tag " + tag);
+            }
+        }
+        in.position(in.position() + 6); // access, this, super
+        int interfaces = in.getShort() & 0xFFFF;
+        in.position(in.position() + 2 * interfaces);
+        int fields = in.getShort() & 0xFFFF;
+        for (int f = 0; f < fields; f++) {
+            in.position(in.position() + 6);
+            skipAttributes(in);
+        }
+
+        int methods = in.getShort() & 0xFFFF;
+        Map<String, Integer> sizes = new HashMap<>(methods * 2);
+        for (int m = 0; m < methods; m++) {
+            in.getShort(); // access
+            String name = utf8[in.getShort() & 0xFFFF];
+            String descriptor = utf8[in.getShort() & 0xFFFF];
+            int attributes = in.getShort() & 0xFFFF;
+            for (int a = 0; a < attributes; a++) {
+                String attr = utf8[in.getShort() & 0xFFFF];
+                int len = in.getInt();
+                if ("Code".equals(attr)) sizes.put(name + descriptor, in.getInt(in.position() + 4));
+                in.position(in.position() + len);
+            }
+        }
+        return sizes;
+    }
+
+    private static void skipAttributes(ByteBuffer in) {
+        int attributes = in.getShort() & 0xFFFF;
+        for (int a = 0; a < attributes; a++) {
+            in.getShort();
+            int len = in.getInt();
+            in.position(in.position() + len);
+        }
+    }
+}
@@ -1,16 +1,126 @@
 package io.smallfast.profiler;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 final class Config {
     final String[] packages; // prefixes
     final boolean dryRun;
     final boolean histogram;
     final String[] skipMethods;
+    final boolean calibrate;
+    final long calibrateEveryMs; // <= 0: calibrate at startup only
+    final boolean stateAdvice; // advice=state: StateTraceAdvice instead of TraceAdvice
+    final boolean reclaim;
+    final boolean reclaimByGroup; // reclaim=group, else reclaim=name
+    final long reclaimEveryMs;
+    final long intervalMs; // <= 0: no interval exporter
+    final String outDir;
+    final int retain; // <= 0: keep all interval files
+    final boolean adaptive;
+    final long adaptiveMaxSelfNs;
+    final long adaptiveMinRate; // calls per second
+    final long adaptiveEveryMs;
+    final String control; // "jmx", "off", or null: JMX only when attached
+    final boolean histCompact; // histBackend=compact, else hdr
+    final long histMaxNs;
+    final int histDigits;
+    final long histMinCalls;
+    final long histBudgetBytes; // <= 0: unbounded
+    final boolean arrayTree; // tree=arrays, else tree=nodes
+    final long slowThresholdNs; // <= 0: no slow-call capture
+    final int slowBuffer; // records per thread
+    final int slowDepth; // frames per record
+    final int metrics; // Metrics.CPU | Metrics.ALLOC | Metrics.INCLUSIVE; wall time is always on
+    final int metricsDepth; // <= 0: every depth
+    final String[] metricsMethods; // empty: every method
+    final int minSize; // bytecode bytes; smaller methods are not woven
+    final String log; // "off", "errors", "transforms" or "verbose"
+    final String[] contextAnnotations; // annotation type names; empty: none
+    final boolean async; // stitch executor and CompletableFuture tasks to their submitter
+    final int httpPort; // < 0: no metrics endpoint; 0: any free port
+    final int httpTop; // paths per ranking
+    final long httpRefreshMs;
+    final boolean dumpGzip; // gzip the text dumps
+    final boolean foldRecursion; // recursive calls fold into their ancestor's node
+    final int maxDepth; // <= 0: any depth
+    final long maxNodes; // per thread; <= 0: unbounded
+    final long maxTotalNodes; // all threads; <= 0: unbounded
+    final boolean pauses; // calls overlapping GC pauses recorded apart
+    final long pauseThresholdNs; // heartbeat lateness counted as a pause; 0: no heartbeat
+    private final NameMatcher classes; // packages and include
+    private final NameMatcher excludedClasses;
+    private final NameMatcher methods; // empty: every method
+    private final NameMatcher excludedMethods; // skipMethods and excludeMethods
 
-    private Config(String[] packages, boolean dryRun, boolean histogram, String[] skipMethods) {
+    private Config(String[] packages, boolean dryRun, boolean histogram, String[] skipMethods,
+                   boolean calibrate, long calibrateEveryMs, boolean stateAdvice,
+                   boolean reclaim, boolean reclaimByGroup, long reclaimEveryMs,
+                   long intervalMs, String outDir, int retain,
+                   boolean adaptive, long adaptiveMaxSelfNs, long adaptiveMinRate, long adaptiveEveryMs,
+                   String control, boolean histCompact, long histMaxNs, int histDigits,
+                   long histMinCalls, long histBudgetBytes, boolean arrayTree,
+                   long slowThresholdNs, int slowBuffer, int slowDepth,
+                   int metrics, int metricsDepth, String[] metricsMethods,
+                   String[] include, String[] exclude, String[] includeMethods, String[] excludeMethods,
+                   int minSize, String log, String[] contextAnnotations, boolean async,
+                   int httpPort, int httpTop, long httpRefreshMs, boolean dumpGzip,
+                   boolean foldRecursion, int maxDepth, long maxNodes, long maxTotalNodes,
+                   boolean pauses, long pauseThresholdNs) {
         this.packages = packages;
         this.dryRun = dryRun;
         this.histogram = histogram;
         this.skipMethods = skipMethods;
+        this.calibrate = calibrate;
+        this.calibrateEveryMs = calibrateEveryMs;
+        this.stateAdvice = stateAdvice;
+        this.reclaim = reclaim;
+        this.reclaimByGroup = reclaimByGroup;
+        this.reclaimEveryMs = reclaimEveryMs;
+        this.intervalMs = intervalMs;
+        this.outDir = outDir;
+        this.retain = retain;
+        this.adaptive = adaptive;
+        this.adaptiveMaxSelfNs = adaptiveMaxSelfNs;
+        this.adaptiveMinRate = adaptiveMinRate;
+        this.adaptiveEveryMs = adaptiveEveryMs;
+        this.control = control;
+        this.histCompact = histCompact;
+        this.histMaxNs = histMaxNs;
+        this.histDigits = histDigits;
+        this.histMinCalls = histMinCalls;
+        this.histBudgetBytes = histBudgetBytes;
+        this.arrayTree = arrayTree;
+        this.slowThresholdNs = slowThresholdNs;
+        this.slowBuffer = slowBuffer;
+        this.slowDepth = slowDepth;
+        this.metrics = metrics;
+        this.metricsDepth = metricsDepth;
+        this.metricsMethods = metricsMethods;
+        this.minSize = minSize;
+        this.log = log;
+        this.contextAnnotations = contextAnnotations;
+        this.async = async;
+        this.httpPort = httpPort;
+        this.httpTop = httpTop;
+        this.httpRefreshMs = httpRefreshMs;
+        this.dumpGzip = dumpGzip;
+        this.foldRecursion = foldRecursion;
+        this.maxDepth = maxDepth;
+        this.maxNodes = maxNodes;
+        this.maxTotalNodes = maxTotalNodes;
+        this.pauses = pauses;
+        this.pauseThresholdNs = pauseThresholdNs;
+        String[] classGlobs = NameMatcher.packageGlobs(packages);
+        classGlobs = Arrays.copyOf(classGlobs, classGlobs.length + include.length);
+        System.arraycopy(include, 0, classGlobs, classGlobs.length - include.length, include.length);
+        this.classes = NameMatcher.classes(classGlobs);
+        this.excludedClasses = NameMatcher.classes(exclude);
+        this.methods = NameMatcher.methods(includeMethods);
+        String[] skip = Arrays.copyOf(skipMethods, skipMethods.length + excludeMethods.length);
+        System.arraycopy(excludeMethods, 0, skip, skipMethods.length, excludeMethods.length);
+        this.excludedMethods = NameMatcher.methods(skip);
     }
 
     static Config parse(String args) {
@@ -18,6 +128,50 @@ final class Config {
         boolean dry = false;
         boolean histogram = false;
         String[] skip = new String[0];
+        boolean calibrate = false;
+        long calibrateEveryMs = 60_000L;
+        boolean stateAdvice = false;
+        boolean reclaim = false;
+        boolean reclaimByGroup = false;
+        long reclaimEveryMs = 10_000L;
+        long intervalMs = 0L;
+        String outDir = "profiles";
+        int retain = 0;
+        boolean adaptive = false;
+        long adaptiveMaxSelfNs = 100L;
+        long adaptiveMinRate = 10_000L;
+        long adaptiveEveryMs = 5_000L;
+        String control = null;
+        boolean histCompact = false;
+        long histMaxNs = 30_000_000_000L;
+        int histDigits = 3;
+        long histMinCalls = 1L;
+        long histBudgetBytes = 0L;
+        boolean arrayTree = false;
+        long slowThresholdNs = 0L;
+        int slowBuffer = 128;
+        int slowDepth = 128;
+        int metrics = 0;
+        int metricsDepth = 0;
+        String[] metricsMethods = new String[0];
+        String[] include = new String[0];
+        String[] exclude = new String[0];
+        String[] includeMethods = new String[0];
+        String[] excludeMethods = new String[0];
+        int minSize = 0;
+        String log = "errors";
+        String[] contextAnnotations = new String[0];
+        boolean async = false;
+        int httpPort = -1;
+        int httpTop = 20;
+        long httpRefreshMs = 5_000L;
+        boolean dumpGzip = false;
+        boolean foldRecursion = false;
+        int maxDepth = 0;
+        long maxNodes = 0L;
+        long maxTotalNodes = 0L;
+        boolean pauses = false;
+        long pauseThresholdNs = 0L;
 
         if (args != null && !args.isBlank()) {
             String[] parts = args.split(",");
@@ -45,30 +199,191 @@ final class Config {
                         for (int i = 0; i < raw.length; i++) raw[i] = raw[i].trim();
                         skip = raw;
                     }
+                } else if (part.equalsIgnoreCase("calibrate=true")) {
+                    calibrate = true;
+                } else if (part.equalsIgnoreCase("calibrate=false")) {
+                    calibrate = false;
+                } else if (part.startsWith("calibrateEvery=")) {
+                    calibrateEveryMs = parseDurationMs(part.substring("calibrateEvery=".length()).trim());
+                } else if (part.equalsIgnoreCase("advice=state")) {
+                    stateAdvice = true;
+                } else if (part.equalsIgnoreCase("advice=classic")) {
+                    stateAdvice = false;
+                } else if (part.equalsIgnoreCase("reclaim=name")) {
+                    reclaim = true;
+                    reclaimByGroup = false;
+                } else if (part.equalsIgnoreCase("reclaim=group")) {
+                    reclaim = true;
+                    reclaimByGroup = true;
+                } else if (part.equalsIgnoreCase("reclaim=off")) {
+                    reclaim = false;
+                } else if (part.startsWith("reclaimEvery=")) {
+                    reclaimEveryMs = parseDurationMs(part.substring("reclaimEvery=".length()).trim());
+                } else if (part.startsWith("interval=")) {
+                    intervalMs = parseDurationMs(part.substring("interval=".length()).trim());
+                } else if (part.startsWith("outDir=")) {
+                    outDir = part.substring("outDir=".length()).trim();
+                } else if (part.startsWith("retain=")) {
+                    retain = Integer.parseInt(part.substring("retain=".length()).trim());
+                } else if (part.equalsIgnoreCase("adaptive=true")) {
+                    adaptive = true;
+                } else if (part.equalsIgnoreCase("adaptive=false")) {
+                    adaptive = false;
+                } else if (part.startsWith("adaptiveMaxSelfNs=")) {
+                    adaptiveMaxSelfNs = Long.parseLong(part.substring("adaptiveMaxSelfNs=".length()).trim());
+                } else if (part.startsWith("adaptiveMinRate=")) {
+                    adaptiveMinRate = Long.parseLong(part.substring("adaptiveMinRate=".length()).trim());
+                } else if (part.startsWith("adaptiveEvery=")) {
+                    adaptiveEveryMs = parseDurationMs(part.substring("adaptiveEvery=".length()).trim());
+                } else if (part.equalsIgnoreCase("control=jmx")) {
+                    control = "jmx";
+                } else if (part.equalsIgnoreCase("control=off")) {
+                    control = "off";
+                } else if (part.equalsIgnoreCase("histBackend=hdr")) {
+                    histCompact = false;
+                } else if (part.equalsIgnoreCase("histBackend=compact")) {
+                    histCompact = true;
+                } else if (part.startsWith("histMax=")) {
+                    histMaxNs = parseDurationMs(part.substring("histMax=".length()).trim()) * 1_000_000L;
+                } else if (part.startsWith("histDigits=")) {
+                    histDigits = Integer.parseInt(part.substring("histDigits=".length()).trim());
+                } else if (part.startsWith("histMinCalls=")) {
+                    histMinCalls = Long.parseLong(part.substring("histMinCalls=".length()).trim());
+                } else if (part.startsWith("histBudget=")) {
+                    histBudgetBytes = parseBytes(part.substring("histBudget=".length()).trim());
+                } else if (part.equalsIgnoreCase("tree=arrays")) {
+                    arrayTree = true;
+                } else if (part.equalsIgnoreCase("tree=nodes")) {
+                    arrayTree = false;
+                } else if (part.startsWith("slowThreshold=")) {
+                    slowThresholdNs = parseDurationMs(part.substring("slowThreshold=".length()).trim()) * 1_000_000L;
+                } else if (part.startsWith("slowBuffer=")) {
+                    slowBuffer = Integer.parseInt(part.substring("slowBuffer=".length()).trim());
+                } else if (part.startsWith("slowDepth=")) {
+                    slowDepth = Integer.parseInt(part.substring("slowDepth=".length()).trim());
+                } else if (part.startsWith("metrics=")) {
+                    metrics = 0;
+                    for (String m : part.substring("metrics=".length()).split("\\|")) {
+                        m = m.trim();
+                        if (m.equalsIgnoreCase("cpu")) metrics |= Metrics.CPU;
+                        else if (m.equalsIgnoreCase("alloc")) metrics |= Metrics.ALLOC;
+                        else if (m.equalsIgnoreCase("inclusive")) metrics |= Metrics.INCLUSIVE;
+                        else if (!m.equalsIgnoreCase("wall") && !m.isEmpty()) {
+                            System.err.println("[precise-profiler] unknown metric ignored: " + m);
+                        }
+                    }
+                } else if (part.startsWith("metricsDepth=")) {
+                    metricsDepth = Integer.parseInt(part.substring("metricsDepth=".length()).trim());
+                } else if (part.startsWith("metricsMethods=")) {
+                    String v = part.substring("metricsMethods=".length()).trim();
+                    if (!v.isEmpty()) {
+                        String[] raw = v.split("\\|");
+                        for (int i = 0; i < raw.length; i++) raw[i] = raw[i].trim();
+                        metricsMethods = raw;
+                    }
+                } else if (part.startsWith("include=")) {
+                    include = globs(part.substring("include=".length()));
+                } else if (part.startsWith("exclude=")) {
+                    exclude = globs(part.substring("exclude=".length()));
+                } else if (part.startsWith("includeMethods=")) {
+                    includeMethods = globs(part.substring("includeMethods=".length()));
+                } else if (part.startsWith("excludeMethods=")) {
+                    excludeMethods = globs(part.substring("excludeMethods=".length()));
+                } else if (part.startsWith("minSize=")) {
+                    minSize = Integer.parseInt(part.substring("minSize=".length()).trim());
+                } else if (part.equalsIgnoreCase("log=off")) {
+                    log = "off";
+                } else if (part.equalsIgnoreCase("log=errors")) {
+                    log = "errors";
+                } else if (part.equalsIgnoreCase("log=transforms")) {
+                    log = "transforms";
+                } else if (part.equalsIgnoreCase("log=verbose")) {
+                    log = "verbose";
+                } else if (part.startsWith("contextAnnotation=")) {
+                    contextAnnotations = globs(part.substring("contextAnnotation=".length()));
+                } else if (part.equalsIgnoreCase("async=true")) {
+                    async = true;
+                } else if (part.equalsIgnoreCase("async=false")) {
+                    async = false;
+                } else if (part.startsWith("http=")) {
+                    httpPort = Integer.parseInt(part.substring("http=".length()).trim());
+                } else if (part.startsWith("httpTop=")) {
+                    httpTop = Integer.parseInt(part.substring("httpTop=".length()).trim());
+                } else if (part.startsWith("httpRefresh=")) {
+                    httpRefreshMs = parseDurationMs(part.substring("httpRefresh=".length()).trim());
+                } else if (part.equalsIgnoreCase("dumpGzip=true")) {
+                    dumpGzip = true;
+                } else if (part.equalsIgnoreCase("dumpGzip=false")) {
+                    dumpGzip = false;
+                } else if (part.equalsIgnoreCase("foldRecursion=true")) {
+                    foldRecursion = true;
+                } else if (part.equalsIgnoreCase("foldRecursion=false")) {
+                    foldRecursion = false;
+                } else if (part.startsWith("maxDepth=")) {
+                    maxDepth = Integer.parseInt(part.substring("maxDepth=".length()).trim());
+                } else if (part.startsWith("maxNodes=")) {
+                    maxNodes = Long.parseLong(part.substring("maxNodes=".length()).trim());
+                } else if (part.startsWith("maxTotalNodes=")) {
+                    maxTotalNodes = Long.parseLong(part.substring("maxTotalNodes=".length()).trim());
+                } else if (part.equalsIgnoreCase("pauses=true")) {
+                    pauses = true;
+                } else if (part.equalsIgnoreCase("pauses=false")) {
+                    pauses = false;
+                } else if (part.startsWith("pauseThreshold=")) {
+                    pauseThresholdNs = parseDurationMs(part.substring("pauseThreshold=".length()).trim()) * 1_000_000L;
                 }
 
             }
         }
 
-        return new Config(pkgs, dry, histogram, skip);
+        return new Config(pkgs, dry, histogram, skip, calibrate, calibrateEveryMs, stateAdvice,
+                reclaim, reclaimByGroup, reclaimEveryMs, intervalMs, outDir, retain,
+                adaptive, adaptiveMaxSelfNs, adaptiveMinRate, adaptiveEveryMs, control,
+                histCompact, histMaxNs, histDigits, histMinCalls, histBudgetBytes, arrayTree,
+                slowThresholdNs, slowBuffer, slowDepth, metrics, metricsDepth, metricsMethods,
+                include, exclude, includeMethods, excludeMethods, minSize, log, contextAnnotations, async,
+                httpPort, httpTop, httpRefreshMs, dumpGzip, foldRecursion, maxDepth, maxNodes, maxTotalNodes,
+                pauses, pauseThresholdNs);
     }
 
-    boolean shouldSkipMethod(String methodName) {
-        for (String name : skipMethods) {
-            if (name.equals(methodName)) return true;
+    // "a|b|c", each trimmed, empty ones dropped
+    private static String[] globs(String v) {
+        List<String> out = new ArrayList<>();
+        for (String g : v.split("\\|")) {
+            if (!g.isBlank()) out.add(g.trim());
         }
-        return false;
+        return out.toArray(new String[0]);
+    }
+
+    // "250ms", "30s", "5m", "1h"; a bare number is seconds
+    static long parseDurationMs(String v) {
+        String s = v.toLowerCase();
+        long unit = 1000L;
+        if (s.endsWith("ms")) { unit = 1L; s = s.substring(0, s.length() - 2); }
+        else if (s.endsWith("s")) { unit = 1000L; s = s.substring(0, s.length() - 1); }
+        else if (s.endsWith("m")) { unit = 60_000L; s = s.substring(0, s.length() - 1); }
+        else if (s.endsWith("h")) { unit = 3_600_000L; s = s.substring(0, s.length() - 1); }
+        return Long.parseLong(s.trim()) * unit;
+    }
+
+    // "512k", "64m", "1g"; a bare number is bytes
+    static long parseBytes(String v) {
+        String s = v.toLowerCase();
+        long unit = 1L;
+        if (s.endsWith("b")) s = s.substring(0, s.length() - 1);
+        if (s.endsWith("k")) { unit = 1L << 10; s = s.substring(0, s.length() - 1); }
+        else if (s.endsWith("m")) { unit = 1L << 20; s = s.substring(0, s.length() - 1); }
+        else if (s.endsWith("g")) { unit = 1L << 30; s = s.substring(0, s.length() - 1); }
+        return Long.parseLong(s.trim()) * unit;
     }
 
+    boolean shouldSkipMethod(String methodName, String descriptor) {
+        if (!methods.isEmpty() && !methods.matches(methodName, descriptor)) return true;
+        return excludedMethods.matches(methodName, descriptor);
+    }
+
+    // package.Class or a nested class of one in packages / include, and not in exclude
     boolean shouldInstrument(String className) {
-        if (packages.length == 0) return false;
-        for (String pkg : packages) {
-            if (pkg == null || pkg.isEmpty()) continue;
-            String prefix = pkg.endsWith(".") ? pkg : (pkg + ".");
-            if (className.equals(pkg) || className.startsWith(prefix) || className.startsWith(pkg)) {
-                return true;
-            }
-        }
-        return false;
+        return classes.matches(className) && !excludedClasses.matches(className);
     }
-}
\ No newline at end of file
+}
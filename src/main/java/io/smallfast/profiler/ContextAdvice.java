@@ -0,0 +1,20 @@
+package io.smallfast.profiler;
+
+import net.bytebuddy.asm.Advice;
+
+/**
+ * Woven around entry methods carrying a {@code contextAnnotation}: the method
+ * runs in the context its annotation names, see {@link ContextIdMapping}.
+ */
+public final class ContextAdvice {
+
+    @Advice.OnMethodEnter
+    public static int onEnter(@ContextId int contextId) {
+        return Profiler.beginContext(contextId);
+    }
+
+    @Advice.OnMethodExit(onThrowable = Throwable.class)
+    public static void onExit(@Advice.Enter int frame) {
+        Profiler.endContext(frame);
+    }
+}
@@ -0,0 +1,7 @@
+package io.smallfast.profiler;
+
+import java.lang.annotation.*;
+
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+public @interface ContextId {}
@@ -0,0 +1,74 @@
+package io.smallfast.profiler;
+
+import net.bytebuddy.asm.Advice;
+import net.bytebuddy.description.annotation.AnnotationDescription;
+import net.bytebuddy.description.method.MethodDescription;
+import net.bytebuddy.description.method.ParameterDescription;
+import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.implementation.bytecode.assign.Assigner;
+
+/**
+ * Binds {@link ContextId} to the context of the woven method, interned at
+ * weave time: the {@code value} of its context annotation when that is a
+ * non-empty string (or the first of a string array, as in
+ * {@code @GetMapping("/orders")}), else {@code SimpleClassName.method}.
+ */
+public final class ContextIdMapping implements Advice.OffsetMapping {
+
+    private final String[] annotations;
+
+    private ContextIdMapping(String[] annotations) {
+        this.annotations = annotations;
+    }
+
+    @Override
+    public Target resolve(TypeDescription instrumentedType,
+                          MethodDescription instrumentedMethod,
+                          Assigner assigner,
+                          Advice.ArgumentHandler argumentHandler,
+                          Advice.OffsetMapping.Sort sort) {
+        return Target.ForStackManipulation.of(Contexts.idFor(labelOf(instrumentedType, instrumentedMethod)));
+    }
+
+    private String labelOf(TypeDescription type, MethodDescription method) {
+        for (AnnotationDescription a : method.getDeclaredAnnotations()) {
+            if (!isContextAnnotation(a.getAnnotationType().getName())) continue;
+            for (MethodDescription.InDefinedShape m : a.getAnnotationType().getDeclaredMethods()) {
+                if (!m.getName().equals("value")) continue;
+                Object v = a.getValue(m).resolve();
+                if (v instanceof String[] && ((String[]) v).length > 0) v = ((String[]) v)[0];
+                if (v instanceof String && !((String) v).isEmpty()) return (String) v;
+            }
+        }
+        return type.getSimpleName() + "." + method.getName();
+    }
+
+    boolean isContextAnnotation(String name) {
+        for (String a : annotations) {
+            if (a.equals(name)) return true;
+        }
+        return false;
+    }
+
+    // Factory for @ContextId binding
+    public static final class Factory implements Advice.OffsetMapping.Factory<ContextId> {
+
+        private final String[] annotations;
+
+        public Factory(String[] annotations) {
+            this.annotations = annotations;
+        }
+
+        @Override
+        public Class<ContextId> getAnnotationType() {
+            return ContextId.class;
+        }
+
+        @Override
+        public Advice.OffsetMapping make(ParameterDescription.InDefinedShape target,
+                                         AnnotationDescription.Loadable<ContextId> annotation,
+                                         AdviceType adviceType) {
+            return new ContextIdMapping(annotations);
+        }
+    }
+}
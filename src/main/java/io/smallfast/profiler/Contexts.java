@@ -0,0 +1,30 @@
+package io.smallfast.profiler;
+
+/**
+ * Profiling contexts ({@link Profiler#beginContext(String)}): a label is
+ * interned as a pseudo method named {@value #PREFIX}{@code label}, whose node
+ * is always a child of the tree root. The name marks it, so contexts survive
+ * binary dumps and merges like any other node.
+ */
+final class Contexts {
+
+    static final String PREFIX = "[context] ";
+
+    private Contexts() {}
+
+    static int idFor(String label) {
+        return MethodRegistry.idFor(PREFIX + label);
+    }
+
+    static boolean isContext(int methodId) {
+        return isContext(MethodRegistry.nameFor(methodId));
+    }
+
+    static boolean isContext(String name) {
+        return name.startsWith(PREFIX);
+    }
+
+    static String labelOf(int methodId) {
+        return MethodRegistry.nameFor(methodId).substring(PREFIX.length());
+    }
+}
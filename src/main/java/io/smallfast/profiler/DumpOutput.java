@@ -0,0 +1,133 @@
+package io.smallfast.profiler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Byte output of the text exporters: bytes and decimal numbers go into a
+ * 1 MiB buffer, one of at most {@value #POOLED} pooled ones, which is
+ * drained into the file's channel, through gzip if asked for, when full.
+ * Nothing is encoded through a {@code Writer}; method names arrive as bytes cached in
+ * {@link MethodRegistry}. Not thread-safe: one per file.
+ */
+final class DumpOutput implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    // Kept for the JVM's lifetime, so a few; parallel dumps beyond them allocate.
+    private static final int POOLED = 4;
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOL_SIZE = new AtomicInteger();
+
+    private final WritableByteChannel channel;
+    private final OutputStream gzip; // null: straight to the channel
+    private ByteBuffer buf;
+    private final byte[] digits = new byte[20];
+
+    private DumpOutput(WritableByteChannel channel, OutputStream gzip) {
+        this.channel = channel;
+        this.gzip = gzip;
+        ByteBuffer b = POOL.poll();
+        if (b != null) POOL_SIZE.decrementAndGet();
+        this.buf = (b != null) ? b : ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /** Creates or truncates {@code file}; with {@code gzip}, its content is gzipped. */
+    static DumpOutput open(Path file, boolean gzip) throws IOException {
+        return of(FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING), gzip);
+    }
+
+    /** Writes into {@code ch}, which is closed with this output. */
+    static DumpOutput of(WritableByteChannel ch, boolean gzip) throws IOException {
+        try {
+            return new DumpOutput(ch, gzip ? new GZIPOutputStream(Channels.newOutputStream(ch), 1 << 16) : null);
+        } catch (IOException | RuntimeException e) {
+            ch.close();
+            throw e;
+        }
+    }
+
+    DumpOutput write(byte b) throws IOException {
+        if (!buf.hasRemaining()) drain();
+        buf.put(b);
+        return this;
+    }
+
+    DumpOutput write(byte[] b) throws IOException {
+        return write(b, 0, b.length);
+    }
+
+    DumpOutput write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (!buf.hasRemaining()) drain();
+            int n = Math.min(len, buf.remaining());
+            buf.put(b, off, n);
+            off += n;
+            len -= n;
+        }
+        return this;
+    }
+
+    /** Any text, UTF-8 encoded; for the few strings that are not method names. */
+    DumpOutput write(String s) throws IOException {
+        return write(s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Decimal digits of {@code v}, without allocating. */
+    DumpOutput write(long v) throws IOException {
+        if (v == Long.MIN_VALUE) return write(Long.toString(v));
+        if (buf.remaining() < 20) drain();
+        if (v < 0) {
+            buf.put((byte) '-');
+            v = -v;
+        }
+        int i = digits.length;
+        do {
+            digits[--i] = (byte) ('0' + (v % 10));
+            v /= 10;
+        } while (v != 0);
+        buf.put(digits, i, digits.length - i);
+        return this;
+    }
+
+    private void drain() throws IOException {
+        buf.flip();
+        if (gzip != null) {
+            gzip.write(buf.array(), buf.arrayOffset(), buf.limit());
+        } else {
+            while (buf.hasRemaining()) channel.write(buf);
+        }
+        buf.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buf == null) return;
+        try {
+            drain();
+            if (gzip != null) gzip.close(); // finishes the stream and closes the channel
+        } finally {
+            channel.close();
+            ByteBuffer b = buf;
+            buf = null;
+            b.clear();
+            if (POOL_SIZE.incrementAndGet() <= POOLED) POOL.offer(b);
+            else POOL_SIZE.decrementAndGet();
+        }
+    }
+
+    static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
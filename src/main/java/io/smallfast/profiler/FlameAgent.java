@@ -1,23 +1,136 @@
 package io.smallfast.profiler;
 
 import net.bytebuddy.agent.builder.AgentBuilder;
+import net.bytebuddy.agent.builder.ResettableClassFileTransformer;
 import net.bytebuddy.asm.Advice;
+import net.bytebuddy.asm.MemberSubstitution;
 import net.bytebuddy.description.method.MethodDescription;
 import net.bytebuddy.description.type.TypeDescription;
+import net.bytebuddy.dynamic.ClassFileLocator;
 import net.bytebuddy.matcher.ElementMatcher;
 
+import java.io.IOException;
 import java.lang.instrument.Instrumentation;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
 
 import static net.bytebuddy.matcher.ElementMatchers.*;
 
 public final class FlameAgent {
 
+    private static Instrumentation INST;
+    private static Config CFG;
+    private static Class<?> ADVICE;
+    private static ResettableClassFileTransformer TRANSFORMER; // null while stopped
+
+    private static final NameMatcher IGNORED = NameMatcher.classes(
+            "net.bytebuddy.**", "io.smallfast.profiler.**", "java.**", "jdk.**", "sun.**");
+
     public static void premain(String args, Instrumentation inst) {
+        init(args, inst, false);
+    }
+
+    /** Entry point when attached to a running JVM; see {@code ProfileTool attach}. */
+    public static void agentmain(String args, Instrumentation inst) {
+        init(args, inst, true);
+    }
+
+    private static synchronized void init(String args, Instrumentation inst, boolean attached) {
+        if (INST != null) {
+            System.err.println("[precise-profiler] already loaded, control it through JMX (" + ProfilerControl.NAME + ")");
+            return;
+        }
         Config cfg = Config.parse(args);
 
-        Profiler.setDryRun(cfg.dryRun);
+        Profiler.setArrayTree(cfg.arrayTree);
+        Profiler.setDumpGzip(cfg.dumpGzip);
+        SlowCalls.configure(cfg.slowThresholdNs, cfg.slowBuffer, cfg.slowDepth);
+        Metrics.configure(cfg.metrics, cfg.metricsDepth, cfg.metricsMethods);
+        Governance.configure(cfg.foldRecursion, cfg.maxDepth, cfg.maxNodes, cfg.maxTotalNodes);
+        if (cfg.pauses) {
+            Pauses.start(cfg.pauseThresholdNs);
+        }
         Profiler.setHistogramEnabled(cfg.histogram);
+        NodeHistogram.configure(cfg.histCompact, cfg.histMaxNs, cfg.histDigits, cfg.histMinCalls, cfg.histBudgetBytes);
+        if (cfg.histogram && cfg.histBudgetBytes > 0) {
+            Profiler.startHistogramBudgetKeeper(10_000L);
+        }
+        if (cfg.reclaim) {
+            Profiler.startReclaimer(cfg.reclaimByGroup, cfg.reclaimEveryMs);
+        }
+        Class<?> advice = cfg.stateAdvice ? StateTraceAdvice.class : TraceAdvice.class;
+        if (cfg.calibrate) {
+            Calibration.start(cfg.calibrateEveryMs, advice);
+        }
+        if (cfg.intervalMs > 0) {
+            IntervalExporter.start(Path.of(cfg.outDir), cfg.intervalMs, cfg.retain);
+        }
+
+        INST = inst;
+        CFG = cfg;
+        ADVICE = advice;
+        start();
+        if (cfg.dryRun) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println("[precise-profiler] dry run: "
+                    + (MethodRegistry.idLimit() - 1) + " method ids, " + MethodRegistry.collisions()
+                    + " collisions"), "precise-profiler-dry-run"));
+        }
+
+        if (cfg.httpPort >= 0) {
+            MetricsServer.start(cfg.httpPort, cfg.httpTop, cfg.httpRefreshMs);
+        }
+        if (cfg.adaptive) {
+            Adaptive.start(inst, cfg.adaptiveMaxSelfNs, cfg.adaptiveMinRate, cfg.adaptiveEveryMs);
+        }
+        // JMX is not touched at premain unless asked for: initializing it that
+        // early breaks applications that install their own logging manager.
+        if (attached ? !"off".equals(cfg.control) : "jmx".equals(cfg.control)) {
+            ProfilerControl.register();
+        }
+    }
+
+    /** Weaves the advice into all matching classes, loaded or not. False if already running. */
+    static synchronized boolean start() {
+        if (TRANSFORMER != null) return false;
+        TRANSFORMER = install(CFG, ADVICE, INST);
+        return true;
+    }
+
+    /**
+     * Removes the advice from every class it was woven into by retransforming
+     * them back: stopped, the application runs its original bytecode. Calls in
+     * flight keep their version of the code, so their frames still close.
+     * Recorded trees are kept. False if not running.
+     */
+    static synchronized boolean stop() {
+        if (TRANSFORMER == null) return false;
+        TRANSFORMER.reset(INST, AgentBuilder.RedefinitionStrategy.RETRANSFORMATION);
+        TRANSFORMER = null;
+        return true;
+    }
+
+    static synchronized boolean isRunning() {
+        return TRANSFORMER != null;
+    }
 
+    /**
+     * Weaves {@code advice} into the matching classes. With {@code dryRun},
+     * weaves nothing: the methods that would be woven only get their ids, so
+     * that stable id collisions are found (and logged) without profiling.
+     */
+    static ResettableClassFileTransformer install(Config cfg, Class<?> advice, Instrumentation inst) {
+        // Every loaded class passes these two: one trie walk each, no allocation.
+        ElementMatcher<TypeDescription> ignored = new ElementMatcher<>() {
+            @Override
+            public boolean matches(TypeDescription target) {
+                return IGNORED.matches(target.getName());
+            }
+        };
         ElementMatcher<TypeDescription> typeMatcher = new ElementMatcher<>() {
             @Override
             public boolean matches(TypeDescription target) {
@@ -25,36 +138,132 @@ public final class FlameAgent {
             }
         };
 
-        new AgentBuilder.Default()
-                .with(AgentBuilder.Listener.StreamWriting.toSystemOut())
-                .ignore(
-                        nameStartsWith("net.bytebuddy.")
-                                .or(nameStartsWith("io.smallfast.profiler."))
-                                .or(nameStartsWith("java."))
-                                .or(nameStartsWith("jdk."))
-                                .or(nameStartsWith("sun."))
-                )
+        if (cfg.dryRun) {
+            return new AgentBuilder.Default()
+                    .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+                    .with(listener(cfg.log))
+                    .ignore(ignored)
+                    .type((type, classLoader, module, redefined, protectionDomain) -> {
+                        if (!typeMatcher.matches(type)) return false;
+                        Map<String, Integer> sizes = (cfg.minSize > 0) ? codeSizes(type, classLoader) : null;
+                        for (MethodDescription m : type.getDeclaredMethods().filter(woven(cfg, type, sizes))) {
+                            MethodRegistry.idFor(MethodIdMapping.nameOf(type, m));
+                        }
+                        return false;
+                    })
+                    .transform((builder, type, classLoader, module, protectionDomain) -> builder)
+                    .installOn(inst);
+        }
+
+        // Parsed once here, not once per woven class.
+        Advice weave = Advice.withCustomMapping()
+                .bind(new MethodIdMapping.Factory())
+                .to(advice);
+        Advice context = Advice.withCustomMapping()
+                .bind(new ContextIdMapping.Factory(cfg.contextAnnotations))
+                .to(ContextAdvice.class);
+        ElementMatcher.Junction<MethodDescription> entryPoints = isMethod()
+                .and(isAnnotatedWith(namedOneOf(cfg.contextAnnotations)));
+        MemberSubstitution handoffs = cfg.async ? handoffs() : null;
+
+        // Advice only, no class format changes: every woven class can be
+        // retransformed later, to remove methods (adaptive) or all advice (stop).
+        return new AgentBuilder.Default()
+                .disableClassFormatChanges()
+                .with(AgentBuilder.RedefinitionStrategy.RETRANSFORMATION)
+                .with(listener(cfg.log))
+                .ignore(ignored)
                 .type(typeMatcher)
-                .transform((builder, typeDescription, classLoader, module, protectionDomain) ->
-                        builder.visit(
-                                Advice.withCustomMapping()
-                                        .bind(new MethodIdMapping.Factory())
-                                        .to(TraceAdvice.class)
-                                        .on(isMethod()
-                                                .and(not(isConstructor()))
-                                                .and(not(isAbstract()))
-                                                .and(not(isNative()))
-                                                .and(not(isSynthetic()))
-                                                .and(not(new ElementMatcher<MethodDescription>() {
-                                                    @Override
-                                                    public boolean matches(MethodDescription target) {
-                                                        return cfg.shouldSkipMethod(target.getName());
-                                                    }
-                                                })))
-                        )
-                )
+                .transform((builder, typeDescription, classLoader, module, protectionDomain) -> {
+                    Map<String, Integer> sizes = (cfg.minSize > 0) ? codeSizes(typeDescription, classLoader) : null;
+                    if (cfg.contextAnnotations.length > 0) builder = builder.visit(context.on(entryPoints));
+                    if (handoffs != null) builder = builder.visit(handoffs.on(isMethod().or(isConstructor())));
+                    return builder.visit(weave.on(woven(cfg, typeDescription, sizes)));
+                })
                 .installOn(inst);
     }
 
+    // The methods of type that get the advice; sizes as from codeSizes, null without minSize.
+    private static ElementMatcher.Junction<MethodDescription> woven(Config cfg, TypeDescription type,
+                                                                    Map<String, Integer> sizes) {
+        return isMethod()
+                .and(not(isConstructor()))
+                .and(not(isAbstract()))
+                .and(not(isNative()))
+                .and(not(isSynthetic()))
+                .and(not(new ElementMatcher<MethodDescription>() {
+                    @Override
+                    public boolean matches(MethodDescription target) {
+                        return cfg.shouldSkipMethod(target.getName(), target.getDescriptor())
+                                || tooSmall(sizes, target, cfg.minSize)
+                                || Adaptive.isRemoved(MethodIdMapping.nameOf(type, target));
+                    }
+                }));
+    }
+
+    // async=true: calls handing a task to another thread, redirected to Async,
+    // which wraps the task with its submitter. Only call sites in woven classes
+    // are rewritten; executor calls only when virtual: super.execute(r) in a woven
+    // executor must reach the real method, not its own override again. The JDK
+    // itself is never touched.
+    private static MemberSubstitution handoffs() {
+        try {
+            ElementMatcher.Junction<MethodDescription> executor = isDeclaredBy(isSubTypeOf(Executor.class));
+            ElementMatcher.Junction<MethodDescription> service = isDeclaredBy(isSubTypeOf(ExecutorService.class));
+            ElementMatcher.Junction<MethodDescription> future = isStatic().and(isDeclaredBy(CompletableFuture.class));
+            return MemberSubstitution.relaxed()
+                    .method(executor.and(named("execute")).and(takesArguments(Runnable.class)))
+                    .onVirtualCall()
+                    .replaceWith(Async.class.getMethod("execute", Executor.class, Runnable.class))
+                    .method(service.and(named("submit")).and(takesArguments(Runnable.class)))
+                    .onVirtualCall()
+                    .replaceWith(Async.class.getMethod("submit", ExecutorService.class, Runnable.class))
+                    .method(service.and(named("submit")).and(takesArguments(Runnable.class, Object.class)))
+                    .onVirtualCall()
+                    .replaceWith(Async.class.getMethod("submit", ExecutorService.class, Runnable.class, Object.class))
+                    .method(service.and(named("submit")).and(takesArguments(Callable.class)))
+                    .onVirtualCall()
+                    .replaceWith(Async.class.getMethod("submit", ExecutorService.class, Callable.class))
+                    // static, so there is no super call to leave out
+                    .method(future.and(named("runAsync")).and(takesArguments(Runnable.class)))
+                    .replaceWith(Async.class.getMethod("runAsync", Runnable.class))
+                    .method(future.and(named("runAsync")).and(takesArguments(Runnable.class, Executor.class)))
+                    .replaceWith(Async.class.getMethod("runAsync", Runnable.class, Executor.class))
+                    .method(future.and(named("supplyAsync")).and(takesArguments(Supplier.class)))
+                    .replaceWith(Async.class.getMethod("supplyAsync", Supplier.class))
+                    .method(future.and(named("supplyAsync")).and(takesArguments(Supplier.class, Executor.class)))
+                    .replaceWith(Async.class.getMethod("supplyAsync", Supplier.class, Executor.class));
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static AgentBuilder.Listener listener(String log) {
+        switch (log) {
+            case "off":
+                return AgentBuilder.Listener.NoOp.INSTANCE;
+            case "transforms":
+                return AgentBuilder.Listener.StreamWriting.toSystemOut().withTransformationsOnly();
+            case "verbose":
+                return AgentBuilder.Listener.StreamWriting.toSystemOut();
+            default:
+                return AgentBuilder.Listener.StreamWriting.toSystemError().withErrorsOnly();
+        }
+    }
 
-}
\ No newline at end of file
+    // Code lengths of the class being woven, read once per class from its class file; null if not found.
+    private static Map<String, Integer> codeSizes(TypeDescription type, ClassLoader loader) {
+        try (ClassFileLocator locator = ClassFileLocator.ForClassLoader.of(loader)) {
+            ClassFileLocator.Resolution r = locator.locate(type.getName());
+            return r.isResolved() ? CodeSizes.of(r.resolve()) : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean tooSmall(Map<String, Integer> sizes, MethodDescription method, int minSize) {
+        if (sizes == null) return false;
+        Integer size = sizes.get(method.getInternalName() + method.getDescriptor());
+        return size != null && size < minSize;
+    }
+}
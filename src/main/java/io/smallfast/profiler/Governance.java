@@ -0,0 +1,94 @@
+package io.smallfast.profiler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds on the call trees ({@code foldRecursion}, {@code maxDepth},
+ * {@code maxNodes}, {@code maxTotalNodes}), so that deep recursion and
+ * megamorphic call sites cannot grow a thread's tree without limit.
+ *
+ * All of them act when a call misses its node, never on a path that exists:
+ * <ul>
+ *   <li>a method already on the path folds into that ancestor's node, whose
+ *       recursion counter goes up; the path never repeats a method;</li>
+ *   <li>below {@code maxDepth} nodes, calls go to one {@value #TRUNCATED}
+ *       node, and so does everything they call;</li>
+ *   <li>once a thread's tree holds {@code maxNodes} nodes, or all trees
+ *       {@code maxTotalNodes}, new paths go to their parent's
+ *       {@value #OVER_BUDGET} node instead.</li>
+ * </ul>
+ * Live nodes are never removed: snapshots walk them without a lock and
+ * baselines match them by path. So the budget keeps out the paths that
+ * arrive after it is spent, not the coldest ones, and the synthetic nodes
+ * show in every dump how much time was cut off.
+ */
+final class Governance {
+
+    static final String TRUNCATED = "[truncated]";
+    static final String OVER_BUDGET = "[over budget]";
+    static final int TRUNCATED_ID = MethodRegistry.idFor(TRUNCATED);
+    static final int OVER_BUDGET_ID = MethodRegistry.idFor(OVER_BUDGET);
+
+    // Any bound on; read on every enter, so a plain boolean.
+    static boolean ANY = false;
+    static boolean FOLD = false;
+    static int MAX_DEPTH = Integer.MAX_VALUE;
+    private static long MAX_NODES = Long.MAX_VALUE; // per thread
+    private static long MAX_TOTAL = Long.MAX_VALUE;
+
+    // Nodes created under governance by live threads; only kept with maxTotalNodes.
+    private static final AtomicLong NODES = new AtomicLong();
+    private static volatile boolean THREAD_FULL_LOGGED = false;
+    private static volatile boolean TOTAL_FULL_LOGGED = false;
+
+    private Governance() {}
+
+    static void configure(boolean fold, int maxDepth, long maxNodes, long maxTotalNodes) {
+        FOLD = fold;
+        MAX_DEPTH = (maxDepth > 0) ? maxDepth : Integer.MAX_VALUE;
+        MAX_NODES = (maxNodes > 0) ? maxNodes : Long.MAX_VALUE;
+        MAX_TOTAL = (maxTotalNodes > 0) ? maxTotalNodes : Long.MAX_VALUE;
+        ANY = fold || maxDepth > 0 || maxNodes > 0 || maxTotalNodes > 0;
+    }
+
+    // Whether a walk up the path is needed when a call misses its node.
+    static boolean walks() {
+        return FOLD || MAX_DEPTH != Integer.MAX_VALUE;
+    }
+
+    static boolean isSynthetic(int methodId) {
+        return methodId == TRUNCATED_ID || methodId == OVER_BUDGET_ID;
+    }
+
+    /** Whether {@code s} may add a node for a new path. Owner only. */
+    static boolean admit(Profiler.State s) {
+        if (s.nodes >= MAX_NODES) {
+            if (!THREAD_FULL_LOGGED) {
+                THREAD_FULL_LOGGED = true;
+                System.err.println("[precise-profiler] " + s.threadName + " reached maxNodes=" + MAX_NODES
+                        + ", its new call paths go to " + OVER_BUDGET + " (logged once)");
+            }
+            return false;
+        }
+        if (MAX_TOTAL != Long.MAX_VALUE && NODES.get() >= MAX_TOTAL) {
+            if (!TOTAL_FULL_LOGGED) {
+                TOTAL_FULL_LOGGED = true;
+                System.err.println("[precise-profiler] maxTotalNodes=" + MAX_TOTAL
+                        + " reached, new call paths go to " + OVER_BUDGET + " (logged once)");
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /** A node was added to the tree of {@code s}. Owner only. */
+    static void created(Profiler.State s) {
+        s.nodes++;
+        if (MAX_TOTAL != Long.MAX_VALUE) NODES.incrementAndGet();
+    }
+
+    /** The tree of {@code s} is gone with its thread. */
+    static void released(Profiler.State s) {
+        if (MAX_TOTAL != Long.MAX_VALUE) NODES.addAndGet(-s.nodes);
+    }
+}
@@ -0,0 +1,66 @@
+package io.smallfast.profiler;
+
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * How {@link Profiler#dumpMerged(java.nio.file.Path, Grouping)} groups threads.
+ * Aggregates of exited threads ({@code reclaim=}) are named after their
+ * masked name pattern, e.g. {@code pool-*-thread-*}, or after their thread
+ * group with {@code reclaim=group}, and are grouped by that name like any
+ * other thread.
+ */
+public final class Grouping {
+
+    static final String EXITED_SUFFIX = " (exited)";
+
+    private final Function<String, String> key;
+
+    private Grouping(Function<String, String> key) {
+        this.key = key;
+    }
+
+    /** Every thread into a single group named {@code all}. */
+    public static Grouping allThreads() {
+        return new Grouping(name -> "all");
+    }
+
+    /**
+     * Threads whose name matches {@code regex} are grouped by the first capturing
+     * group, or by the whole match if there is none; all others go to {@code other}.
+     */
+    public static Grouping byNameRegex(String regex) {
+        Pattern p = Pattern.compile(regex);
+        return new Grouping(name -> {
+            Matcher m = p.matcher(name);
+            if (!m.find()) return "other";
+            return (m.groupCount() > 0 && m.group(1) != null) ? m.group(1) : m.group();
+        });
+    }
+
+    /**
+     * Thread-pool prefix: digits masked and the trailing worker number dropped,
+     * so {@code pool-1-thread-7} and {@code pool-1-thread-9} both become
+     * {@code pool-*-thread}, and {@code http-nio-8080-exec-3} becomes {@code http-nio-*-exec}.
+     */
+    public static Grouping byPoolPrefix() {
+        return new Grouping(name -> {
+            String masked = Profiler.maskDigits(name);
+            int end = masked.length();
+            while (end > 0) {
+                char c = masked.charAt(end - 1);
+                if (c == '*' || c == '-' || c == '_' || c == '#' || c == ' ') end--;
+                else break;
+            }
+            return (end == 0) ? masked : masked.substring(0, end);
+        });
+    }
+
+    String keyFor(String threadName) {
+        String name = threadName.endsWith(EXITED_SUFFIX)
+                ? threadName.substring(0, threadName.length() - EXITED_SUFFIX.length())
+                : threadName;
+        return key.apply(name);
+    }
+}
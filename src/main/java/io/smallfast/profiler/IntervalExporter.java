@@ -0,0 +1,127 @@
+package io.smallfast.profiler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes one binary profile per time window ({@code interval=}) into
+ * {@code outDir}: only what accumulated during that window, taken from
+ * snapshots, so application threads are never stopped or reset.
+ *
+ * Files are named {@code interval-<UTC end of window>.ppb}, to the
+ * millisecond, with {@code _1}, {@code _2}... added in the rare case that
+ * name is taken; an existing file is never replaced. The newest one is
+ * left plain; older ones are gzipped, and beyond {@code retain} (0 = all) the
+ * oldest are deleted. {@link ProfileTool} reads both.
+ */
+final class IntervalExporter {
+
+    private static final String PREFIX = "interval-";
+    private static final String SUFFIX = ".ppb";
+    private static final DateTimeFormatter STAMP =
+            DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmssSSS'Z'").withZone(ZoneOffset.UTC);
+
+    private final Path dir;
+    private final int retain;
+
+    private IntervalExporter(Path dir, int retain) {
+        this.dir = dir;
+        this.retain = retain;
+    }
+
+    /**
+     * Starts the exporter thread. Windows are aligned to {@code everyMs}
+     * (at least one second) from now; the last, partial one is written at JVM shutdown.
+     */
+    static void start(Path dir, long everyMs, int retain) {
+        long period = Math.max(1000L, everyMs);
+        IntervalExporter e = new IntervalExporter(dir, retain);
+        Profiler.startTicking();
+
+        Thread t = new Thread(() -> {
+            long next = System.currentTimeMillis() + period;
+            try {
+                while (true) {
+                    long now = System.currentTimeMillis();
+                    if (now < next) {
+                        Thread.sleep(next - now);
+                        continue;
+                    }
+                    e.tick();
+                    // skip windows missed while suspended or stalled instead of bursting
+                    while (next <= System.currentTimeMillis()) next += period;
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }, "precise-profiler-exporter");
+        t.setDaemon(true);
+        t.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(e::tick, "precise-profiler-exporter-shutdown"));
+    }
+
+    // Serialized: the periodic thread and the shutdown hook may race.
+    private synchronized void tick() {
+        try {
+            Files.createDirectories(dir);
+            String stamp = PREFIX + STAMP.format(Instant.now());
+            Path tmp = dir.resolve(stamp + SUFFIX + ".tmp");
+            BinaryProfile.write(tmp, Profiler.tickSnapshots(), Profiler.histogramsEnabled());
+            Path out = publish(tmp, stamp);
+            SymbolFile.update(dir);
+            rotate(out);
+        } catch (IOException | RuntimeException ex) {
+            System.err.println("[precise-profiler] interval export failed: " + ex);
+        }
+    }
+
+    // A plain move renames within the directory like ATOMIC_MOVE, but fails
+    // instead of replacing a file there; '_' sorts after '.', so the rotation order holds.
+    private Path publish(Path tmp, String stamp) throws IOException {
+        for (int n = 0; ; n++) {
+            Path out = dir.resolve((n == 0 ? stamp : stamp + "_" + n) + SUFFIX);
+            if (Files.exists(out.resolveSibling(out.getFileName() + ".gz"))) continue;
+            try {
+                return Files.move(tmp, out);
+            } catch (FileAlreadyExistsException ex) {
+                // taken, maybe by another run writing here; try the next
+            }
+        }
+    }
+
+    private void rotate(Path newest) throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, PREFIX + "*" + SUFFIX + "{,.gz}")) {
+            for (Path p : ds) files.add(p);
+        }
+        Collections.sort(files); // timestamps sort lexicographically
+
+        for (int i = 0; i < files.size(); i++) {
+            Path p = files.get(i);
+            if (p.equals(newest) || !p.getFileName().toString().endsWith(SUFFIX)) continue;
+            Path gz = p.resolveSibling(p.getFileName() + ".gz");
+            try (OutputStream os = new GZIPOutputStream(Files.newOutputStream(gz), 1 << 16)) {
+                Files.copy(p, os);
+            }
+            Files.delete(p);
+            files.set(i, gz);
+        }
+
+        if (retain <= 0) return;
+        for (int i = 0; i < files.size() - retain; i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+}
@@ -9,12 +9,8 @@ import net.bytebuddy.implementation.bytecode.StackManipulation;
 import net.bytebuddy.implementation.bytecode.assign.Assigner;
 import net.bytebuddy.implementation.bytecode.constant.IntegerConstant;
 
-import java.util.concurrent.atomic.AtomicInteger;
-
 public final class MethodIdMapping implements Advice.OffsetMapping {
 
-    private static final AtomicInteger NEXT_ID = new AtomicInteger(1);
-
     private MethodIdMapping() {}
 
     @Override
@@ -24,20 +20,18 @@ public final class MethodIdMapping implements Advice.OffsetMapping {
                           Advice.ArgumentHandler argumentHandler,
                           Advice.OffsetMapping.Sort sort) {
 
-        // Assign unique ID once per instrumented method
-        int id = NEXT_ID.getAndIncrement();
-
-        // Register readable method name ONCE (not per call)
-        String name = instrumentedType.getName()
-                + "." + instrumentedMethod.getName()
-                + instrumentedMethod.getDescriptor();
-
-        MethodRegistry.register(id, name);
+        // Assign unique ID once per instrumented method, reused on retransformation
+        int id = MethodRegistry.idFor(nameOf(instrumentedType, instrumentedMethod));
 
         StackManipulation sm = IntegerConstant.forValue(id);
         return Target.ForStackManipulation.of(id);
     }
 
+    // Readable method name, also the key of its id
+    static String nameOf(TypeDescription type, MethodDescription method) {
+        return type.getName() + "." + method.getName() + method.getDescriptor();
+    }
+
     // Factory for @MethodId binding
     public static final class Factory implements Advice.OffsetMapping.Factory<MethodId> {
 
@@ -1,14 +1,36 @@
 package io.smallfast.profiler;
 
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Method names by id. Ids are dense ints handed out in class loading order,
+ * the index of every per-method array; each one also has a stable 64-bit id,
+ * a hash of its name ({@code class.method(descriptor)}), the same in every
+ * run and JVM, which is what binary dumps and symbol files carry.
+ */
 public final class MethodRegistry {
 
     private static volatile String[] ID_TO_NAME = new String[4096];
+    private static volatile long[] STABLE = new long[4096]; // 0 until set by idFor
+    private static final ConcurrentHashMap<String, Integer> NAME_TO_ID = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Long, Integer> STABLE_TO_ID = new ConcurrentHashMap<>();
+    private static int NEXT_ID = 1; // under the class lock
+    private static volatile int LIMIT = 1; // ids below it have their name and stable id set
+    private static final AtomicInteger COLLISIONS = new AtomicInteger();
+    // Encoded names for the exporters, filled on first use: UTF-8, and UTF-8 of the JSON-escaped name.
+    private static volatile byte[][] UTF8 = new byte[4096][];
+    private static volatile byte[][] JSON = new byte[4096][];
 
     private MethodRegistry() {}
 
-    public static void register(int id, String name) {
+    // Under the lock that grows the arrays, or a copy made meanwhile could lose the write.
+    public static synchronized void register(int id, String name) {
         ensureCapacity(id);
         ID_TO_NAME[id] = name;
+        UTF8[id] = null;
+        JSON[id] = null;
     }
 
     public static String nameFor(int id) {
@@ -20,12 +42,107 @@ public final class MethodRegistry {
         return "<id:" + id + ">";
     }
 
+    /** The name's UTF-8 bytes, encoded once per id. */
+    static byte[] utf8(int id) {
+        byte[][] cache = UTF8;
+        byte[] b = (id >= 0 && id < cache.length) ? cache[id] : null;
+        if (b != null) return b;
+        b = nameFor(id).getBytes(StandardCharsets.UTF_8);
+        if (id >= 0 && id < cache.length && ID_TO_NAME[id] != null) cache[id] = b;
+        return b;
+    }
+
+    /** The name escaped for a JSON string, as UTF-8 bytes, encoded once per id. */
+    static byte[] json(int id) {
+        byte[][] cache = JSON;
+        byte[] b = (id >= 0 && id < cache.length) ? cache[id] : null;
+        if (b != null) return b;
+        b = Profiler.escapeJson(nameFor(id)).getBytes(StandardCharsets.UTF_8);
+        if (id >= 0 && id < cache.length && ID_TO_NAME[id] != null) cache[id] = b;
+        return b;
+    }
+
+    // One id per method name, so a retransformed class keeps its methods' ids (and tree nodes).
+    static int idFor(String name) {
+        Integer id = NAME_TO_ID.get(name);
+        if (id != null) return id;
+        return NAME_TO_ID.computeIfAbsent(name, MethodRegistry::allocate);
+    }
+
+    // Name and stable id are set under the lock, and before idLimit() covers the id.
+    private static synchronized int allocate(String name) {
+        int id = NEXT_ID++;
+        register(id, name);
+        long stable = stableHash(name);
+        STABLE[id] = stable;
+        LIMIT = id + 1;
+        Integer other = STABLE_TO_ID.putIfAbsent(stable, id);
+        if (other != null) {
+            COLLISIONS.incrementAndGet();
+            System.err.println("[precise-profiler] method id collision: " + name + " and " + nameFor(other)
+                    + " both hash to " + Long.toHexString(stable));
+        }
+        return id;
+    }
+
+    // Id of a method known by its stable id, as read from a dump; by name if new here.
+    static int idFor(long stable, String name) {
+        Integer id = STABLE_TO_ID.get(stable);
+        return (id != null) ? id : idFor(name);
+    }
+
+    static long stableId(int id) {
+        long[] arr = STABLE;
+        long stable = (id >= 0 && id < arr.length) ? arr[id] : 0;
+        return (stable != 0) ? stable : stableHash(nameFor(id));
+    }
+
+    // Names whose stable id was already taken by another, logged when found.
+    static int collisions() {
+        return COLLISIONS.get();
+    }
+
+    /**
+     * FNV-1a over the name's UTF-16 units, finished with MurmurHash3's fmix64
+     * (FNV alone mixes the last characters poorly into the high bits). Part of
+     * the dump formats: never change it. Never 0.
+     */
+    static long stableHash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            h ^= name.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return (h == 0) ? 1 : h;
+    }
+
+    // Upper bound (exclusive) of the ids handed out by idFor.
+    static int idLimit() {
+        return LIMIT;
+    }
+
+    // Id of an instrumented method, -1 if none; for the profiler's own bookkeeping.
+    static int idOf(String name) {
+        Integer id = NAME_TO_ID.get(name);
+        return (id == null) ? -1 : id;
+    }
+
     private static synchronized void ensureCapacity(int id) {
         if (id < ID_TO_NAME.length) return;
         int newCap = ID_TO_NAME.length;
         while (newCap <= id) newCap <<= 1;
         String[] next = new String[newCap];
         System.arraycopy(ID_TO_NAME, 0, next, 0, ID_TO_NAME.length);
+        long[] stable = new long[newCap];
+        System.arraycopy(STABLE, 0, stable, 0, STABLE.length);
+        STABLE = stable;
+        UTF8 = new byte[newCap][]; // refilled on use
+        JSON = new byte[newCap][];
         ID_TO_NAME = next;
     }
 }
\ No newline at end of file
@@ -0,0 +1,150 @@
+package io.smallfast.profiler;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Per-method totals over every call path and thread: calls, self and
+ * inclusive time, and their percentiles, in arrays indexed by methodId.
+ *
+ * A method's inclusive time is the subtree time of its outermost nodes only,
+ * the ones without an ancestor running the same method, so recursion is
+ * counted once. Subtree times are sums of self times, which need no metric;
+ * inclusive percentiles need {@code metrics=inclusive} and come from the
+ * same outermost nodes. Frames rebuilt from a submitter's path (see
+ * {@link Async}) have no calls of their own and count for nothing here.
+ */
+final class MethodRollup {
+
+    private static final String HEADER =
+            "method,calls,self_ns,incl_ns,self_p50_ns,self_p99_ns,incl_p50_ns,incl_p99_ns,incl_p999_ns,incl_p100_ns\n";
+
+    long[] calls = new long[0];
+    long[] selfNs = new long[0];
+    long[] inclNs = new long[0];
+    Histogram[] selfHist = new Histogram[0];
+    Histogram[] inclHist = new Histogram[0];
+    // Whether the histogram is a sum of ours, else still a tree's, which must not be added to.
+    private boolean[] selfOwned = new boolean[0];
+    private boolean[] inclOwned = new boolean[0];
+
+    static MethodRollup of(List<TreeSnapshot> trees) {
+        MethodRollup r = new MethodRollup();
+        for (TreeSnapshot t : trees) r.add(t);
+        return r;
+    }
+
+    void add(TreeSnapshot t) {
+        int n = t.size;
+        if (n <= 1) return;
+        int maxMid = 0;
+        for (int i = 1; i < n; i++) maxMid = Math.max(maxMid, t.methodId[i]);
+        ensure(maxMid + 1);
+
+        // subtree time: parents precede children, so one backward pass
+        long[] subtree = Arrays.copyOf(t.selfNs, n);
+        int[] firstChild = new int[n];
+        int[] nextSibling = new int[n];
+        Arrays.fill(firstChild, -1);
+        for (int i = n - 1; i >= 1; i--) {
+            int p = t.parent[i];
+            subtree[p] += subtree[i];
+            nextSibling[i] = firstChild[p];
+            firstChild[p] = i;
+        }
+
+        // preorder, with the number of open frames per method
+        int[] open = new int[maxMid + 1];
+        int i = firstChild[0];
+        while (i > 0) {
+            int mid = t.methodId[i];
+            if (t.calls[i] > 0) {
+                calls[mid] += t.calls[i];
+                selfNs[mid] += t.selfNs[i];
+                selfHist[mid] = merge(selfHist, selfOwned, mid, t.hist[i]);
+                if (open[mid]++ == 0) {
+                    inclNs[mid] += subtree[i];
+                    if (t.inclHist != null) inclHist[mid] = merge(inclHist, inclOwned, mid, t.inclHist[i]);
+                }
+            }
+            if (firstChild[i] >= 0) {
+                i = firstChild[i];
+                continue;
+            }
+            // close frames until a sibling is left
+            while (i > 0) {
+                if (t.calls[i] > 0) open[t.methodId[i]]--;
+                int s = nextSibling[i];
+                if (s > 0) {
+                    i = s;
+                    break;
+                }
+                i = t.parent[i];
+            }
+        }
+    }
+
+    /** CSV, one row per method with calls, by self time descending. */
+    void write(DumpOutput out) throws IOException {
+        int count = 0;
+        for (long c : calls) if (c > 0) count++;
+        Integer[] order = new Integer[count];
+        for (int mid = 0, k = 0; mid < calls.length; mid++) {
+            if (calls[mid] > 0) order[k++] = mid;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(selfNs[b], selfNs[a]));
+
+        out.write(HEADER);
+        for (int mid : order) {
+            out.write(MethodRegistry.utf8(mid));
+            out.write((byte) ',').write(calls[mid]);
+            out.write((byte) ',').write(selfNs[mid]);
+            out.write((byte) ',').write(inclNs[mid]);
+            Histogram h = selfHist[mid];
+            if (h != null) {
+                out.write((byte) ',').write(h.getValueAtPercentile(50.0));
+                out.write((byte) ',').write(h.getValueAtPercentile(99.0));
+            } else {
+                out.write((byte) ',').write((byte) ',');
+            }
+            h = inclHist[mid];
+            if (h != null) {
+                out.write((byte) ',').write(h.getValueAtPercentile(50.0));
+                out.write((byte) ',').write(h.getValueAtPercentile(99.0));
+                out.write((byte) ',').write(h.getValueAtPercentile(99.9));
+                out.write((byte) ',').write(h.getMaxValue());
+            } else {
+                out.write((byte) ',').write((byte) ',').write((byte) ',').write((byte) ',');
+            }
+            out.write((byte) '\n');
+        }
+    }
+
+    private void ensure(int n) {
+        if (calls.length >= n) return;
+        calls = Arrays.copyOf(calls, n);
+        selfNs = Arrays.copyOf(selfNs, n);
+        inclNs = Arrays.copyOf(inclNs, n);
+        selfHist = Arrays.copyOf(selfHist, n);
+        inclHist = Arrays.copyOf(inclHist, n);
+        selfOwned = Arrays.copyOf(selfOwned, n);
+        inclOwned = Arrays.copyOf(inclOwned, n);
+    }
+
+    // Snapshot histograms belong to the trees: a method seen once keeps its
+    // node's, the second one copies it before adding.
+    private static Histogram merge(Histogram[] sums, boolean[] owned, int mid, Histogram h) {
+        Histogram sum = sums[mid];
+        if (h == null || h.getTotalCount() == 0) return sum;
+        if (sum == null) return h;
+        if (!owned[mid]) {
+            sum = sum.copy();
+            owned[mid] = true;
+        }
+        sum.add(h);
+        return sum;
+    }
+}
@@ -0,0 +1,102 @@
+package io.smallfast.profiler;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * Per-call metrics besides wall time ({@code metrics=cpu|alloc|inclusive}):
+ * thread CPU time and allocated bytes, read from
+ * {@code com.sun.management.ThreadMXBean} on enter and exit, with self amounts
+ * computed like self time; and inclusive wall time, a call's whole duration
+ * with its callees, which costs no extra read.
+ *
+ * Reading the counters costs far more than {@code System.nanoTime()}, so
+ * frames can be limited to the outermost {@code metricsDepth} levels and to
+ * the methods in {@code metricsMethods}. A frame that is not measured passes
+ * what its measured callees used up to its caller, so a measured frame's self
+ * amount includes everything below it that nobody else measured.
+ */
+final class Metrics {
+
+    static final int CPU = 1;
+    static final int ALLOC = 2;
+    static final int INCLUSIVE = 4;
+
+    // Any metric on; read on every enter and exit, so a plain boolean.
+    static boolean ANY = false;
+    static int ENABLED = 0; // CPU | ALLOC | INCLUSIVE
+
+    private static int MAX_DEPTH = Integer.MAX_VALUE;
+    private static String[] METHODS = null; // null: every method
+
+    // Per methodId: 0 not decided yet, 1 measured, 2 not; racy but idempotent.
+    private static volatile byte[] SELECTED = new byte[4096];
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Metrics() {}
+
+    static void configure(int metrics, int maxDepth, String[] methods) {
+        if ((metrics & CPU) != 0 && !THREADS.isCurrentThreadCpuTimeSupported()) {
+            System.err.println("[precise-profiler] thread CPU time is not supported by this JVM, metrics=cpu ignored");
+            metrics &= ~CPU;
+        }
+        if ((metrics & ALLOC) != 0 && !THREADS.isThreadAllocatedMemorySupported()) {
+            System.err.println("[precise-profiler] allocated bytes are not supported by this JVM, metrics=alloc ignored");
+            metrics &= ~ALLOC;
+        }
+        if ((metrics & CPU) != 0) THREADS.setThreadCpuTimeEnabled(true);
+        if ((metrics & ALLOC) != 0) THREADS.setThreadAllocatedMemoryEnabled(true);
+        MAX_DEPTH = (maxDepth > 0) ? maxDepth : Integer.MAX_VALUE;
+        METHODS = (methods == null || methods.length == 0) ? null : methods;
+        ENABLED = metrics;
+        ANY = metrics != 0;
+    }
+
+    static boolean cpu() { return (ENABLED & CPU) != 0; }
+    static boolean alloc() { return (ENABLED & ALLOC) != 0; }
+    static boolean inclusive() { return (ENABLED & INCLUSIVE) != 0; }
+
+    static long cpuNow() {
+        return THREADS.getCurrentThreadCpuTime();
+    }
+
+    static long allocNow() {
+        return THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    /** Whether a frame at {@code depth} (0 = outermost) running {@code methodId} is measured. */
+    static boolean measured(int depth, int methodId) {
+        if (depth >= MAX_DEPTH) return false;
+        if (METHODS == null) return true;
+        byte[] sel = SELECTED;
+        if (methodId < 0) return false;
+        if (methodId < sel.length && sel[methodId] != 0) return sel[methodId] == 1;
+        return decide(methodId);
+    }
+
+    private static boolean decide(int methodId) {
+        boolean yes = matches(MethodRegistry.nameFor(methodId));
+        byte[] sel = SELECTED;
+        if (methodId >= sel.length) {
+            int cap = sel.length;
+            while (cap <= methodId) cap <<= 1;
+            sel = Arrays.copyOf(sel, cap);
+            SELECTED = sel;
+        }
+        sel[methodId] = (byte) (yes ? 1 : 2);
+        return yes;
+    }
+
+    // "com.foo.Bar.handle" (any descriptor) or just "handle" (any class)
+    private static boolean matches(String name) {
+        int paren = name.indexOf('(');
+        String qualified = (paren < 0) ? name : name.substring(0, paren);
+        String simple = qualified.substring(qualified.lastIndexOf('.') + 1);
+        for (String m : METHODS) {
+            if (m.equals(qualified) || m.equals(simple)) return true;
+        }
+        return false;
+    }
+}
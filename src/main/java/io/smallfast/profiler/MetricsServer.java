@@ -0,0 +1,341 @@
+package io.smallfast.profiler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Live top call paths over HTTP ({@code http=<port>}), in the OpenMetrics
+ * text format, on the loopback interface only.
+ *
+ * Every call path of every thread is interned once into a table of its own,
+ * keyed by (parent path, methodId), so paths are summed across threads
+ * without building frame arrays or strings. A refresh walks the live trees
+ * ({@link Profiler#walkLive}), adds up calls and self time per path, and
+ * recomputes the percentiles of a path only if its calls changed since the
+ * last refresh: that is the only place histograms are copied. Table and page
+ * are only touched under the snapshot lock, by refreshes and by reclaims. The top paths
+ * are picked with bounded heaps, not a sort, and a path's stack label is
+ * built the first time it is shown and kept. The rendered page is cached
+ * for {@code httpRefresh}; scrapes in between are a byte copy.
+ *
+ * Calls and self time are counters since each thread started; the final
+ * tree of a reclaimed thread is added to them as it goes away, so they never
+ * go down. {@link Profiler#resetAll()} does not touch them. Percentiles are
+ * over the histograms of live threads.
+ */
+final class MetricsServer implements Profiler.LiveVisitor {
+
+    static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+    private static final String METRIC = "precise_profiler_self_time_seconds";
+
+    private final int top;
+    private final long refreshNs;
+
+    // Path table; slot 0 is the root.
+    private final TreeSnapshot.PathIndex index = new TreeSnapshot.PathIndex(1024);
+    private int slots = 1;
+    private int[] slotParent = new int[1024];
+    private int[] slotMethod = new int[1024];
+    private long[] calls = new long[1024];       // this refresh, retired included
+    private long[] selfNs = new long[1024];
+    private long[] retiredCalls = new long[1024]; // of threads whose trees are gone
+    private long[] retiredSelfNs = new long[1024];
+    private long[] quantileCalls = new long[1024]; // live calls when the percentiles were computed
+    private long[] liveCalls = new long[1024];
+    private long[] p50 = new long[1024];
+    private long[] p99 = new long[1024];
+    private long[] p999 = new long[1024];
+    private String[] label = new String[1024]; // escaped stack, built when first shown
+    private int[] chain = new int[64]; // labelOf's unlabelled ancestors
+
+    // Histograms seen in this refresh, chained per slot through next.
+    private int[] head = new int[1024];
+    private int[] next = new int[256];
+    private NodeHistogram[] hists = new NodeHistogram[256];
+    private int histCount;
+
+    private volatile byte[] page;
+    private long pageAtNs;
+
+    private MetricsServer(int top, long refreshMs) {
+        this.top = top;
+        this.refreshNs = refreshMs * 1_000_000L;
+        Arrays.fill(p50, -1);
+        Arrays.fill(p99, -1);
+        Arrays.fill(p999, -1);
+    }
+
+    /**
+     * Serves {@code /metrics} on {@code 127.0.0.1:port} (0: any free port) from
+     * a daemon thread. Failing to bind is logged, the agent keeps running.
+     */
+    static void start(int port, int top, long refreshMs) {
+        MetricsServer m = new MetricsServer(Math.max(1, top), Math.max(0, refreshMs));
+        Profiler.watch(m);
+        // Threads take the daemon flag of the thread creating them: the
+        // server's dispatcher is started from a daemon thread so that it never
+        // keeps the JVM alive.
+        Thread t = new Thread(() -> {
+            try {
+                HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+                server.createContext("/metrics", m::handle);
+                server.setExecutor(null); // requests run on the dispatcher thread, one at a time
+                server.start();
+                System.out.println("[precise-profiler] metrics on http://"
+                        + InetAddress.getLoopbackAddress().getHostAddress() + ":" + server.getAddress().getPort() + "/metrics");
+            } catch (IOException | RuntimeException e) {
+                System.err.println("[precise-profiler] metrics endpoint not started: " + e);
+            }
+        }, "precise-profiler-http-start");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try (ex) {
+            if (!"GET".equals(ex.getRequestMethod()) && !"HEAD".equals(ex.getRequestMethod())) {
+                ex.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body;
+            try {
+                body = scrape();
+            } catch (RuntimeException e) {
+                System.err.println("[precise-profiler] metrics scrape failed: " + e);
+                ex.sendResponseHeaders(500, -1);
+                return;
+            }
+            ex.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(ex.getRequestMethod())) {
+                ex.sendResponseHeaders(200, -1);
+                return;
+            }
+            ex.sendResponseHeaders(200, body.length);
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(body);
+            }
+        }
+    }
+
+    synchronized byte[] scrape() {
+        long now = System.nanoTime();
+        if (page == null || now - pageAtNs >= refreshNs) {
+            Profiler.walkLive(this); // renders the page at the end
+            pageAtNs = now;
+        }
+        return page;
+    }
+
+    // ---------------- refresh, under the snapshot lock ----------------
+
+    @Override
+    public void begin() {
+        System.arraycopy(retiredCalls, 0, calls, 0, slots);
+        System.arraycopy(retiredSelfNs, 0, selfNs, 0, slots);
+        Arrays.fill(liveCalls, 0, slots, 0);
+        Arrays.fill(head, 0, slots, -1);
+        histCount = 0;
+    }
+
+    @Override
+    public int node(int parentToken, int methodId, long nodeCalls, long nodeSelfNs, NodeHistogram hist) {
+        int s = slotOf(parentToken, methodId);
+        calls[s] += nodeCalls;
+        selfNs[s] += nodeSelfNs;
+        liveCalls[s] += nodeCalls;
+        if (NodeHistogram.isLive(hist)) {
+            if (histCount == hists.length) {
+                next = Arrays.copyOf(next, histCount << 1);
+                hists = Arrays.copyOf(hists, histCount << 1);
+            }
+            hists[histCount] = hist;
+            next[histCount] = head[s];
+            head[s] = histCount++;
+        }
+        return s;
+    }
+
+    @Override
+    public void end() {
+        if (Profiler.histogramsEnabled()) updatePercentiles();
+        Arrays.fill(hists, 0, histCount, null); // not kept past the refresh
+        page = render().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Counted from now on as retired; the next walk no longer sees the thread.
+    @Override
+    public void exited(TreeSnapshot last) {
+        int[] slotOfNode = new int[last.size];
+        for (int i = 1; i < last.size; i++) {
+            int s = slotOf(slotOfNode[last.parent[i]], last.methodId[i]);
+            slotOfNode[i] = s;
+            long self = last.selfNs[i] - last.overheadNs[i];
+            retiredCalls[s] += last.calls[i];
+            retiredSelfNs[s] += self;
+        }
+    }
+
+    // Percentiles of the paths whose live calls changed since they were last computed.
+    private void updatePercentiles() {
+        for (int s = 1; s < slots; s++) {
+            if (liveCalls[s] == quantileCalls[s]) continue;
+            quantileCalls[s] = liveCalls[s];
+            Histogram merged = null;
+            for (int k = head[s]; k >= 0; k = next[k]) {
+                Histogram h = hists[k].snapshot();
+                if (h == null) continue;
+                if (merged == null) merged = h;
+                else merged.add(h);
+            }
+            if (merged == null) {
+                p50[s] = p99[s] = p999[s] = -1;
+            } else {
+                p50[s] = merged.getValueAtPercentile(50.0);
+                p99[s] = merged.getValueAtPercentile(99.0);
+                p999[s] = merged.getValueAtPercentile(99.9);
+            }
+        }
+    }
+
+    private int slotOf(int parent, int methodId) {
+        int s = index.find(parent, methodId);
+        return (s >= 0) ? s : intern(parent, methodId);
+    }
+
+    private int intern(int parent, int methodId) {
+        int s = slots++;
+        if (s == slotParent.length) grow();
+        slotParent[s] = parent;
+        slotMethod[s] = methodId;
+        head[s] = -1;
+        p50[s] = p99[s] = p999[s] = -1;
+        index.put(parent, methodId, s);
+        return s;
+    }
+
+    private void grow() {
+        int cap = slotParent.length << 1;
+        slotParent = Arrays.copyOf(slotParent, cap);
+        slotMethod = Arrays.copyOf(slotMethod, cap);
+        calls = Arrays.copyOf(calls, cap);
+        selfNs = Arrays.copyOf(selfNs, cap);
+        retiredCalls = Arrays.copyOf(retiredCalls, cap);
+        retiredSelfNs = Arrays.copyOf(retiredSelfNs, cap);
+        quantileCalls = Arrays.copyOf(quantileCalls, cap);
+        liveCalls = Arrays.copyOf(liveCalls, cap);
+        p50 = Arrays.copyOf(p50, cap);
+        p99 = Arrays.copyOf(p99, cap);
+        p999 = Arrays.copyOf(p999, cap);
+        label = Arrays.copyOf(label, cap);
+        head = Arrays.copyOf(head, cap);
+    }
+
+    // ---------------- output ----------------
+
+    private String render() {
+        // the union of the top paths by self time and by p99, in slot order
+        boolean[] shown = new boolean[slots];
+        for (int s : topBy(selfNs)) shown[s] = true;
+        if (Profiler.histogramsEnabled()) {
+            for (int s : topBy(p99)) shown[s] = true;
+        }
+
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("# TYPE ").append(METRIC).append(" summary\n");
+        sb.append("# UNIT ").append(METRIC).append(" seconds\n");
+        sb.append("# HELP ").append(METRIC)
+                .append(" Self time per call of the top call paths, by total self time and by p99.\n");
+        for (int s = 1; s < slots; s++) {
+            if (!shown[s]) continue;
+            String stack = labelOf(s);
+            if (p50[s] >= 0) {
+                quantile(sb, stack, "0.5", p50[s]);
+                quantile(sb, stack, "0.99", p99[s]);
+                quantile(sb, stack, "0.999", p999[s]);
+            }
+            sb.append(METRIC).append("_sum{stack=\"").append(stack).append("\"} ");
+            seconds(sb, selfNs[s]).append('\n');
+            sb.append(METRIC).append("_count{stack=\"").append(stack).append("\"} ").append(calls[s]).append('\n');
+        }
+        sb.append("# EOF\n");
+        return sb.toString();
+    }
+
+    private static void quantile(StringBuilder sb, String stack, String q, long ns) {
+        sb.append(METRIC).append("{stack=\"").append(stack).append("\",quantile=\"").append(q).append("\"} ");
+        seconds(sb, ns).append('\n');
+    }
+
+    // ns as seconds with nine decimals, without a format string
+    private static StringBuilder seconds(StringBuilder sb, long ns) {
+        long frac = ns % 1_000_000_000L;
+        sb.append(ns / 1_000_000_000L).append('.');
+        for (long d = 100_000_000L; d > 1 && frac < d; d /= 10) sb.append('0');
+        return sb.append(frac);
+    }
+
+    // Slots with the largest positive values, by a bounded min-heap.
+    private int[] topBy(long[] value) {
+        int[] heap = new int[top];
+        int n = 0;
+        for (int s = 1; s < slots; s++) {
+            long v = value[s];
+            if (v <= 0) continue;
+            if (n < top) {
+                int i = n++;
+                while (i > 0 && value[heap[(i - 1) >>> 1]] > v) {
+                    heap[i] = heap[(i - 1) >>> 1];
+                    i = (i - 1) >>> 1;
+                }
+                heap[i] = s;
+            } else if (v > value[heap[0]]) {
+                int i = 0;
+                while (true) {
+                    int c = 2 * i + 1;
+                    if (c >= n) break;
+                    if (c + 1 < n && value[heap[c + 1]] < value[heap[c]]) c++;
+                    if (value[heap[c]] >= v) break;
+                    heap[i] = heap[c];
+                    i = c;
+                }
+                heap[i] = s;
+            }
+        }
+        return Arrays.copyOf(heap, n);
+    }
+
+    // Walks up to the nearest labelled ancestor, in a loop: paths may be as
+    // deep as the governance bounds allow. Only the shown slot's label is kept.
+    private String labelOf(int s) {
+        String l = label[s];
+        if (l != null) return l;
+        int n = 0;
+        int p = s;
+        for (; p != 0 && label[p] == null; p = slotParent[p]) {
+            if (n == chain.length) chain = Arrays.copyOf(chain, n * 2);
+            chain[n++] = p;
+        }
+        StringBuilder sb = new StringBuilder((p == 0) ? "" : label[p]);
+        while (n > 0) {
+            if (sb.length() > 0) sb.append(';');
+            sb.append(escape(MethodRegistry.nameFor(slotMethod[chain[--n]])));
+        }
+        l = sb.toString();
+        label[s] = l;
+        return l;
+    }
+
+    // OpenMetrics label value escaping
+    private static String escape(String v) {
+        if (v.indexOf('\\') < 0 && v.indexOf('"') < 0 && v.indexOf('\n') < 0) return v;
+        return v.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,175 @@
+package io.smallfast.profiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Precompiled set of name globs, matched in one pass over the name.
+ *
+ * Globs: {@code *} is any run of characters without a separator, {@code **}
+ * any run at all, {@code ?} one character that is not a separator; for class
+ * names the separator is {@code .}, method globs have none. The literal prefix
+ * of every glob (everything before its first wildcard) goes into a character
+ * trie; walking a name down the trie reaches exactly the globs whose prefix
+ * it has, and only their wildcard remainders are matched against the rest of
+ * the name. {@code com.foo.**} and plain names, the common cases, never get
+ * that far: they are flags on a trie node.
+ *
+ * Method globs containing {@code (} are matched against name plus descriptor,
+ * e.g. {@code handle(Ljava/lang/String;)V} or {@code *(I)V}; others against
+ * the name alone.
+ */
+final class NameMatcher {
+
+    private static final char NO_SEPARATOR = '\uffff';
+
+    private static final NameMatcher NONE = new NameMatcher(new Trie(NO_SEPARATOR), new Trie(NO_SEPARATOR));
+
+    private final Trie names;
+    private final Trie signatures; // method globs with a descriptor
+
+    private NameMatcher(Trie names, Trie signatures) {
+        this.names = names;
+        this.signatures = signatures;
+    }
+
+    static NameMatcher classes(String... globs) {
+        Trie t = new Trie('.');
+        for (String g : globs) t.add(g);
+        return t.empty ? NONE : new NameMatcher(t, new Trie('.'));
+    }
+
+    /** Package prefixes as globs: the package itself, its subpackages, and nested classes of a class name. */
+    static String[] packageGlobs(String[] packages) {
+        List<String> out = new ArrayList<>();
+        for (String p : packages) {
+            if (p == null || p.isEmpty()) continue;
+            String pkg = p.endsWith(".") ? p.substring(0, p.length() - 1) : p;
+            out.add(pkg);
+            out.add(pkg + ".**");
+            out.add(pkg + "$**");
+        }
+        return out.toArray(new String[0]);
+    }
+
+    static NameMatcher methods(String... globs) {
+        Trie n = new Trie(NO_SEPARATOR);
+        Trie s = new Trie(NO_SEPARATOR);
+        for (String g : globs) {
+            if (g.indexOf('(') >= 0) s.add(g);
+            else n.add(g);
+        }
+        return (n.empty && s.empty) ? NONE : new NameMatcher(n, s);
+    }
+
+    boolean isEmpty() {
+        return names.empty && signatures.empty;
+    }
+
+    boolean matches(String name) {
+        return names.matches(name);
+    }
+
+    boolean matches(String name, String descriptor) {
+        return names.matches(name) || (!signatures.empty && signatures.matches(name + descriptor));
+    }
+
+    private static final class Trie {
+        final char separator;
+        final Node root = new Node();
+        boolean empty = true;
+
+        Trie(char separator) {
+            this.separator = separator;
+        }
+
+        void add(String glob) {
+            glob = glob.trim();
+            if (glob.isEmpty()) return;
+            empty = false;
+            int wild = firstWildcard(glob);
+            Node n = root;
+            for (int i = 0; i < wild; i++) n = n.child(glob.charAt(i), true);
+            String rest = glob.substring(wild);
+            if (rest.isEmpty()) n.exact = true;
+            else if (rest.equals("**")) n.anyRest = true;
+            else n.globs = append(n.globs, rest);
+        }
+
+        boolean matches(String name) {
+            Node n = root;
+            int len = name.length();
+            for (int i = 0; ; i++) {
+                if (n.anyRest) return true;
+                if (n.globs != null) {
+                    for (String g : n.globs) {
+                        if (glob(g, 0, name, i, separator)) return true;
+                    }
+                }
+                if (i == len) return n.exact;
+                n = n.child(name.charAt(i), false);
+                if (n == null) return false;
+            }
+        }
+
+        private static int firstWildcard(String glob) {
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '*' || c == '?') return i;
+            }
+            return glob.length();
+        }
+
+        private static String[] append(String[] a, String s) {
+            if (a == null) return new String[]{s};
+            a = Arrays.copyOf(a, a.length + 1);
+            a[a.length - 1] = s;
+            return a;
+        }
+    }
+
+    private static final class Node {
+        char[] keys = new char[0];
+        Node[] next = new Node[0];
+        boolean exact;     // a glob ends here
+        boolean anyRest;   // a glob ends here in "**"
+        String[] globs;    // wildcard remainders of globs with this literal prefix
+
+        Node child(char c, boolean create) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) return next[i];
+            }
+            if (!create) return null;
+            keys = Arrays.copyOf(keys, keys.length + 1);
+            next = Arrays.copyOf(next, next.length + 1);
+            Node n = new Node();
+            keys[keys.length - 1] = c;
+            next[next.length - 1] = n;
+            return n;
+        }
+    }
+
+    // Backtracking glob match of g[gi..] against s[si..]; globs are short.
+    private static boolean glob(String g, int gi, String s, int si, char separator) {
+        while (gi < g.length()) {
+            char c = g.charAt(gi);
+            if (c == '*') {
+                boolean any = gi + 1 < g.length() && g.charAt(gi + 1) == '*';
+                int after = gi + (any ? 2 : 1);
+                if (after == g.length() && (any || s.indexOf(separator, si) < 0)) return true;
+                for (int k = si; k <= s.length(); k++) {
+                    if (glob(g, after, s, k, separator)) return true;
+                    if (k < s.length() && !any && s.charAt(k) == separator) return false;
+                }
+                return false;
+            }
+            if (si == s.length()) return false;
+            char sc = s.charAt(si);
+            if (c == '?' ? sc == separator : c != sc) return false;
+            gi++;
+            si++;
+        }
+        return si == s.length();
+    }
+}
@@ -0,0 +1,191 @@
+package io.smallfast.profiler;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histogram of one call-path node, written by the owning thread only.
+ *
+ * Allocated lazily, on the {@code histMinCalls}-th call of a node, and only
+ * while the optional memory budget ({@code histBudget}) has room. Two backends:
+ * <ul>
+ *   <li>{@code hdr}: an HdrHistogram with long counts;</li>
+ *   <li>{@code compact}: the same log-linear bucket layout in a saturating int
+ *       array, half the size, and never throws from application threads.</li>
+ * </ul>
+ * Both cover 1ns..{@code histMax} with {@code histDigits} significant digits.
+ * Snapshots always get an HdrHistogram of the same layout, so the compact
+ * backend converts without losing anything.
+ */
+abstract class NodeHistogram {
+
+    private static boolean COMPACT = false;
+    private static long MAX_NS = 30_000_000_000L; // 30s
+    private static int DIGITS = 3;
+    private static long MIN_CALLS = 1;
+    private static long BUDGET = 0; // bytes, 0 = unbounded
+
+    // Footprint of one histogram, fixed by the configuration.
+    private static long SIZE = footprint();
+
+    static final AtomicLong BYTES = new AtomicLong();
+    static final AtomicLong REFUSED = new AtomicLong();
+
+    static void configure(boolean compact, long maxNs, int digits, long minCalls, long budgetBytes) {
+        COMPACT = compact;
+        MAX_NS = maxNs;
+        DIGITS = digits;
+        MIN_CALLS = Math.max(1, minCalls);
+        BUDGET = Math.max(0, budgetBytes);
+        SIZE = footprint();
+    }
+
+    static long budget() { return BUDGET; }
+
+    /** Stands in for a dropped histogram: records nothing, and is never allocated again. */
+    static final NodeHistogram DROPPED = new NodeHistogram() {
+        @Override void record(long ns) {}
+        @Override Histogram snapshot() { return null; }
+    };
+
+    /**
+     * A new histogram for a node on its {@code calls}-th call, or null if it
+     * stays count-and-sum only for now: below the call threshold, or no room
+     * left in the budget.
+     */
+    static NodeHistogram allocate(long calls) {
+        if (calls < MIN_CALLS) return null;
+        if (BUDGET > 0) {
+            if (BYTES.get() + SIZE > BUDGET) {
+                REFUSED.incrementAndGet();
+                return null;
+            }
+        }
+        NodeHistogram h = COMPACT ? new Compact(MAX_NS, DIGITS) : new Hdr(MAX_NS, DIGITS);
+        BYTES.addAndGet(SIZE);
+        return h;
+    }
+
+    // A histogram that counts against the budget.
+    static boolean isLive(NodeHistogram h) {
+        return h != null && h != DROPPED;
+    }
+
+    // Gives the budget back for a histogram that is no longer referenced.
+    static void release(NodeHistogram h) {
+        if (isLive(h)) BYTES.addAndGet(-SIZE);
+    }
+
+    abstract void record(long ns);
+
+    /** An empty histogram of the snapshots' layout. */
+    static Histogram emptySnapshot() {
+        return new Histogram(1, MAX_NS, DIGITS);
+    }
+
+    /** Records into a snapshot's histogram, clamped like {@link #record(long)}. */
+    static void recordSnapshot(Histogram h, long ns) {
+        if (ns >= 0) h.recordValue(Math.min(ns, MAX_NS));
+    }
+
+    /** Consistent HdrHistogram copy for snapshots, null if nothing was recorded. */
+    abstract Histogram snapshot();
+
+    /**
+     * Largest relative error of any value read from {@code h}: the width of a
+     * bucket relative to its lowest value. Both backends share HdrHistogram's
+     * layout, so this holds for either.
+     */
+    static double relativeError(Histogram h) {
+        return 1.0 / (1 << subBucketBits(h.getNumberOfSignificantValueDigits()));
+    }
+
+    // log2 of the buckets per power of two that HdrHistogram uses for this precision
+    private static int subBucketBits(int digits) {
+        long largestWithSingleUnitResolution = 2 * (long) Math.pow(10, digits);
+        int bits = 64 - Long.numberOfLeadingZeros(largestWithSingleUnitResolution - 1);
+        return bits - 1;
+    }
+
+    private static long footprint() {
+        if (COMPACT) return 16L + 4L * Compact.bucketCount(MAX_NS, subBucketBits(DIGITS));
+        return new Histogram(1, MAX_NS, DIGITS).getEstimatedFootprintInBytes();
+    }
+
+    static final class Hdr extends NodeHistogram {
+        private final Histogram h;
+        private final long max;
+
+        Hdr(long maxNs, int digits) {
+            this.h = new Histogram(1, maxNs, digits);
+            this.max = maxNs;
+        }
+
+        @Override
+        void record(long ns) {
+            if (ns < 0) return;
+            h.recordValue(ns > max ? max : ns);
+        }
+
+        @Override
+        Histogram snapshot() {
+            if (h.getTotalCount() == 0) return null;
+            return h.copy();
+        }
+    }
+
+    /**
+     * Values below 2^bits have a bucket each; above, every power of two is
+     * split into 2^bits buckets. Counts saturate instead of overflowing.
+     */
+    static final class Compact extends NodeHistogram {
+        private final int bits;
+        private final long max;
+        private final int digits;
+        private final int[] counts;
+
+        Compact(long maxNs, int digits) {
+            this.bits = subBucketBits(digits);
+            this.max = maxNs;
+            this.digits = digits;
+            this.counts = new int[bucketCount(maxNs, bits)];
+        }
+
+        static int bucketCount(long max, int bits) {
+            return index(max, bits) + 1;
+        }
+
+        static int index(long v, int bits) {
+            if (v < (1L << bits)) return (int) v;
+            int shift = 63 - Long.numberOfLeadingZeros(v) - bits;
+            return ((shift + 1) << bits) + (int) ((v >>> shift) - (1L << bits));
+        }
+
+        static long lowestValueAt(int idx, int bits) {
+            int b = idx >>> bits;
+            if (b == 0) return idx;
+            return ((1L << bits) + (idx & ((1 << bits) - 1))) << (b - 1);
+        }
+
+        @Override
+        void record(long ns) {
+            if (ns < 0) return;
+            int i = index(ns > max ? max : ns, bits);
+            int c = counts[i];
+            if (c != Integer.MAX_VALUE) counts[i] = c + 1;
+        }
+
+        @Override
+        Histogram snapshot() {
+            Histogram h = null;
+            for (int i = 0; i < counts.length; i++) {
+                int c = counts[i];
+                if (c == 0) continue;
+                if (h == null) h = new Histogram(1, max, digits);
+                h.recordValueWithCount(lowestValueAt(i, bits), c);
+            }
+            return h;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package io.smallfast.profiler;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import org.HdrHistogram.Histogram;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Pause attribution ({@code pauses=true}): calls that overlapped a
+ * stop-the-world pause are recorded apart from the others, so that a path's
+ * percentiles are those of its own code and its GC-hit calls show next to them.
+ *
+ * Pauses go into one ring of recent intervals, in {@link System#nanoTime()}.
+ * They come from {@link GarbageCollectorMXBean} notifications: each
+ * collection of a pausing collector (not the concurrent cycles of G1, ZGC or
+ * Shenandoah), its start and end converted from JVM uptime. Only with
+ * {@code pauseThreshold} does a heartbeat thread, waking every millisecond,
+ * add the time before a wakeup later than the threshold (at least
+ * {@value #MIN_THRESHOLD_MS} ms), for safepoints other than GC; it cannot tell
+ * them from a starved CPU, so it is off by default.
+ *
+ * A notification arrives after its pause, when the calls it slowed down have
+ * mostly returned. So a call of at least {@value #PENDING_MIN_NS} ns is not
+ * judged on exit: it waits in its thread's {@link Pending} ring, with its
+ * histogram value, until its owner exits a call {@value #GRACE_NS} ns after
+ * it, by when a pause it overlapped has been reported (the owner was running
+ * when the call ended, so no pause was still going on). Shorter calls cannot
+ * have lost more than that to a pause, and cost one comparison on exit.
+ * Snapshots count the pending calls of a thread as judged at that moment.
+ *
+ * A call is paused if pause time fell in its own code, not only in its
+ * callees: a caller does not lose its clean sample to a GC in a callee.
+ * GcInfo times are in milliseconds, so pauses are widened to the
+ * millisecond, and pause time a call has outside its callees counts if it is
+ * most of the pause time within the call, or more than that widening.
+ *
+ * The ring of pauses is written under a lock and read without one: a reader
+ * racing a writer may misjudge one call, nothing worse.
+ */
+final class Pauses {
+
+    private static final int RING = 64; // power of two
+    private static final long HEARTBEAT_NS = 1_000_000L;
+    static final long PENDING_MIN_NS = 100_000L;
+    static final long GRACE_NS = 10_000_000L;
+    private static final long SPILL_NS = 2_000_000L; // a pause widened at both ends
+    static final long MIN_THRESHOLD_MS = 10;
+
+    // On; read on every exit, so a plain boolean.
+    static boolean ON = false;
+    private static long THRESHOLD_NS = MIN_THRESHOLD_MS * 1_000_000L;
+
+    private static final long[] STARTS = new long[RING];
+    private static final long[] ENDS = new long[RING];
+    private static volatile int COUNT = 0;
+    private static volatile long LATEST_END = System.nanoTime(); // none before we start
+
+    private Pauses() {}
+
+    /** Subscribes to GC notifications; a {@code heartbeatThresholdNs} above 0 also starts the heartbeat. */
+    static void start(long heartbeatThresholdNs) {
+        subscribe();
+        if (heartbeatThresholdNs > 0) {
+            if (heartbeatThresholdNs < THRESHOLD_NS) {
+                System.err.println("[precise-profiler] pauseThreshold raised to " + MIN_THRESHOLD_MS + "ms");
+            }
+            THRESHOLD_NS = Math.max(THRESHOLD_NS, heartbeatThresholdNs);
+            Thread t = new Thread(Pauses::heartbeat, "precise-profiler-pauses");
+            t.setDaemon(true);
+            t.start();
+        }
+        ON = true;
+    }
+
+    /** Pause time known so far within the call from {@code start} to {@code end}. */
+    static long overlap(long start, long end) {
+        if (LATEST_END - start <= 0) return 0;
+        long sum = 0;
+        int n = COUNT;
+        for (int i = n - 1; i >= 0 && i >= n - RING; i--) {
+            int slot = i & (RING - 1);
+            long from = (STARTS[slot] - start > 0) ? STARTS[slot] : start;
+            long to = (ENDS[slot] - end < 0) ? ENDS[slot] : end;
+            if (to - from > 0) sum += to - from;
+        }
+        return Math.min(sum, end - start);
+    }
+
+    /** Owner: keeps the call in frame {@code d} for later; {@code node} null with an ArrayTree. */
+    static void defer(Profiler.State s, Profiler.Node node, int index, int d, long start, long end, long value) {
+        Pending p = s.pending;
+        if (p == null) s.pending = p = new Pending();
+        p.add(s, node, index, d, start, end, value);
+    }
+
+    /** Owner, on every exit: records the pending calls that ended a grace period before {@code now}. */
+    static void settle(Profiler.State s, long now) {
+        Pending p = s.pending;
+        if (p != null && p.waiting && now - p.dueNs > 0) p.resolve(s, now - GRACE_NS, 0);
+    }
+
+    /** Records every pending call of a thread that has exited, on what is known now. */
+    static void settleAll(Profiler.State s) {
+        Pending p = s.pending;
+        if (p != null) p.resolve(s, 0, Pending.CAPACITY);
+    }
+
+    /**
+     * Calls of one thread waiting to be judged, in exit order, so that callees
+     * come before their caller. Written by the owner, and by whoever reclaims
+     * the thread once it has exited; snapshots read it without a lock and may
+     * miscount a call being recorded meanwhile.
+     */
+    static final class Pending {
+        static final int CAPACITY = 512; // power of two
+        private static final int MASK = CAPACITY - 1;
+
+        private final Profiler.Node[] node = new Profiler.Node[CAPACITY]; // null with an ArrayTree
+        private final int[] index = new int[CAPACITY];
+        private final int[] depth = new int[CAPACITY];
+        private final long[] startNs = new long[CAPACITY];
+        private final long[] endNs = new long[CAPACITY];
+        private final long[] value = new long[CAPACITY]; // self time less overhead, -1 if none
+        // By depth: pause time within the judged calls there since their caller
+        // was, and the start of the first of them.
+        private long[] calleePauseNs = new long[64];
+        private long[] calleeStartNs = new long[64];
+        private volatile long head, tail;
+        private boolean waiting; // owner's: head != tail
+        private long dueNs;      // owner's: end of the oldest plus GRACE_NS
+
+        private void add(Profiler.State s, Profiler.Node n, int idx, int d, long start, long end, long v) {
+            if (tail - head == CAPACITY) resolve(s, 0, 1); // full: the oldest is judged on what is known
+            if (d + 1 >= calleePauseNs.length) {
+                calleePauseNs = Arrays.copyOf(calleePauseNs, (d + 2) << 1);
+                calleeStartNs = Arrays.copyOf(calleeStartNs, (d + 2) << 1);
+            }
+            long t = tail;
+            int slot = (int) (t & MASK);
+            node[slot] = n;
+            index[slot] = idx;
+            depth[slot] = d;
+            startNs[slot] = start;
+            endNs[slot] = end;
+            value[slot] = v;
+            if (!waiting) {
+                waiting = true;
+                dueNs = end + GRACE_NS;
+            }
+            tail = t + 1;
+        }
+
+        // Records the calls that ended by until, and at least the oldest n.
+        private void resolve(Profiler.State s, long until, int n) {
+            boolean histogram = Profiler.histogramsEnabled();
+            long h = head, t = tail;
+            for (; h != t; h++, n--) {
+                int slot = (int) (h & MASK);
+                if (n <= 0 && endNs[slot] - until > 0) break;
+                boolean paused = judge(slot, calleePauseNs, calleeStartNs);
+                if (s.tree != null) s.tree.settle(index[slot], value[slot], paused, histogram);
+                else node[slot].settle(value[slot], paused, histogram);
+                node[slot] = null;
+            }
+            head = h;
+            waiting = h != t;
+            if (waiting) dueNs = endNs[(int) (h & MASK)] + GRACE_NS;
+        }
+
+        // Whether the call in slot lost time to a pause in its own code;
+        // hands its pause time on to its caller, judged later.
+        private boolean judge(int slot, long[] calleePause, long[] calleeStart) {
+            int d = depth[slot];
+            long start = startNs[slot];
+            long total = overlap(start, endNs[slot]);
+            // left over from frames dropped unjudged if they started before this call
+            long inCallees = (calleeStart[d + 1] - start >= 0) ? calleePause[d + 1] : 0;
+            calleePause[d + 1] = 0;
+            if (total > 0) {
+                if (calleePause[d] == 0) calleeStart[d] = start;
+                calleePause[d] += total;
+            }
+            long own = total - inCallees;
+            return own > 0 && (own > SPILL_NS || 2 * own > total);
+        }
+
+        /**
+         * Adds the calls still pending to {@code t}, judged on the pauses known
+         * now: paused calls and histogram values. {@code nodeIndex} maps the
+         * nodes of a node tree to their index in t; null for an ArrayTree.
+         */
+        void addTo(TreeSnapshot t, Map<Profiler.Node, Integer> nodeIndex) {
+            long h = head, end = tail;
+            long[] calleePause = calleePauseNs.clone();
+            long[] calleeStart = calleeStartNs.clone();
+            if (end - h > CAPACITY) h = end - CAPACITY;
+            for (; h != end; h++) {
+                int slot = (int) (h & MASK);
+                int d = depth[slot];
+                if (d + 1 >= calleePause.length) continue;
+                boolean paused = judge(slot, calleePause, calleeStart);
+                int i;
+                if (nodeIndex == null) {
+                    i = index[slot];
+                } else {
+                    Integer x = nodeIndex.get(node[slot]);
+                    if (x == null) continue;
+                    i = x;
+                }
+                if (i <= 0 || i >= t.size) continue;
+                if (paused && t.pausedCalls != null) t.pausedCalls[i]++;
+                long v = value[slot];
+                if (v < 0 || !Profiler.histogramsEnabled()) continue;
+                Histogram[] column = (paused && t.pausedHist != null) ? t.pausedHist : t.hist;
+                if (column[i] == null) column[i] = NodeHistogram.emptySnapshot();
+                NodeHistogram.recordSnapshot(column[i], v);
+            }
+        }
+    }
+
+    private static synchronized void record(long start, long end) {
+        int n = COUNT;
+        int slot = n & (RING - 1);
+        STARTS[slot] = start;
+        ENDS[slot] = end;
+        COUNT = n + 1;
+        if (end - LATEST_END > 0) LATEST_END = end;
+    }
+
+    private static void heartbeat() {
+        long last = System.nanoTime();
+        while (true) {
+            LockSupport.parkNanos(HEARTBEAT_NS);
+            long now = System.nanoTime();
+            if (now - last > HEARTBEAT_NS + THRESHOLD_NS) {
+                record(last, now);
+            }
+            last = now;
+        }
+    }
+
+    private static void subscribe() {
+        // uptime 0 in nanoTime; good to a millisecond, the resolution of GcInfo
+        long origin = System.nanoTime() - ManagementFactory.getRuntimeMXBean().getUptime() * 1_000_000L;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String name = gc.getName();
+            if (!(gc instanceof NotificationEmitter) || name.contains("Concurrent") || name.endsWith("Cycles")) continue;
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) return;
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                long start = origin + info.getGcInfo().getStartTime() * 1_000_000L;
+                long end = origin + (info.getGcInfo().getEndTime() + 1) * 1_000_000L;
+                record(start, end);
+            }, null, null);
+        }
+    }
+}
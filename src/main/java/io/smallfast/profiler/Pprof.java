@@ -0,0 +1,227 @@
+package io.smallfast.profiler;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * pprof export: all trees in one gzipped {@code profile.proto} message, for
+ * {@code go tool pprof}, Pyroscope, Grafana and other pprof readers.
+ *
+ * Every path with self time is one sample, tagged with its thread's label.
+ * Its values are self time, calls, and, where the trees have them, the p99
+ * self time, self CPU time / allocated bytes, recursive and paused calls. Locations
+ * and functions are one per method id and strings are one per distinct name,
+ * shared by all threads; a path only costs its location ids, so the file is a
+ * fraction of the per-thread speedscope JSON.
+ *
+ * The message is encoded by hand (a handful of fields of profile.proto, see
+ * github.com/google/pprof/blob/main/proto/profile.proto) and streamed: samples
+ * first, as they are walked, then locations, functions and the string table.
+ */
+final class Pprof {
+
+    // Profile fields
+    private static final int SAMPLE_TYPE = 1;
+    private static final int SAMPLE = 2;
+    private static final int LOCATION = 4;
+    private static final int FUNCTION = 5;
+    private static final int STRING_TABLE = 6;
+    private static final int TIME_NANOS = 9;
+    private static final int DEFAULT_SAMPLE_TYPE = 14;
+
+    private static final int VARINT = 0;
+    private static final int LENGTH_DELIMITED = 2;
+
+    private Pprof() {}
+
+    /** Writes {@code trees} as one profile; p99 values need {@code histograms}. */
+    static void write(DumpOutput out, List<TreeSnapshot> trees, boolean histograms) throws IOException {
+        boolean cpu = false, alloc = false, recursions = false, paused = false;
+        int maxMid = 0;
+        for (TreeSnapshot t : trees) {
+            cpu |= t.cpuNs != null;
+            alloc |= t.allocBytes != null;
+            recursions |= t.recursions != null;
+            paused |= t.pausedCalls != null;
+            for (int i = 1; i < t.size; i++) maxMid = Math.max(maxMid, t.methodId[i]);
+        }
+
+        Strings strings = new Strings(maxMid);
+        Message m = new Message();
+        Message sub = new Message();
+
+        List<String[]> types = new ArrayList<>();
+        types.add(new String[]{"self", "nanoseconds"});
+        types.add(new String[]{"calls", "count"});
+        if (histograms) types.add(new String[]{"p99", "nanoseconds"});
+        if (cpu) types.add(new String[]{"cpu", "nanoseconds"});
+        if (alloc) types.add(new String[]{"alloc", "bytes"});
+        if (recursions) types.add(new String[]{"recursions", "count"});
+        if (paused) types.add(new String[]{"paused", "count"});
+        for (String[] type : types) {
+            sub.reset();
+            sub.int64(1, strings.of(type[0]));
+            sub.int64(2, strings.of(type[1]));
+            emit(out, m, SAMPLE_TYPE, sub);
+        }
+        long threadKey = strings.of("thread");
+
+        BitSet used = new BitSet();
+        Message ids = new Message();
+        Message values = new Message();
+        Message label = new Message();
+        for (TreeSnapshot t : trees) {
+            label.reset();
+            label.int64(1, threadKey);
+            label.int64(2, strings.of(t.label()));
+            for (int i = 1; i < t.size; i++) {
+                if (t.selfNs[i] <= 0) continue;
+                // location ids leaf first, one location per method
+                ids.reset();
+                for (int n = i; n != 0; n = t.parent[n]) {
+                    ids.varint(t.methodId[n]);
+                    used.set(t.methodId[n]);
+                }
+                values.reset();
+                values.varint(t.selfNs[i]);
+                values.varint(t.calls[i]);
+                if (histograms) {
+                    Histogram h = t.hist[i];
+                    values.varint((h == null) ? 0 : h.getValueAtPercentile(99.0));
+                }
+                if (cpu) values.varint((t.cpuNs == null) ? 0 : t.cpuNs[i]);
+                if (alloc) values.varint((t.allocBytes == null) ? 0 : t.allocBytes[i]);
+                if (recursions) values.varint((t.recursions == null) ? 0 : t.recursions[i]);
+                if (paused) values.varint((t.pausedCalls == null) ? 0 : t.pausedCalls[i]);
+
+                sub.reset();
+                sub.message(1, ids);
+                sub.message(2, values);
+                sub.message(3, label);
+                emit(out, m, SAMPLE, sub);
+            }
+        }
+
+        Message line = new Message();
+        for (int mid = used.nextSetBit(0); mid >= 0; mid = used.nextSetBit(mid + 1)) {
+            line.reset();
+            line.int64(1, mid); // function_id
+            sub.reset();
+            sub.int64(1, mid);
+            sub.message(4, line);
+            emit(out, m, LOCATION, sub);
+        }
+        for (int mid = used.nextSetBit(0); mid >= 0; mid = used.nextSetBit(mid + 1)) {
+            long name = strings.ofMethod(mid);
+            sub.reset();
+            sub.int64(1, mid);
+            sub.int64(2, name);
+            sub.int64(3, name); // system_name
+            emit(out, m, FUNCTION, sub);
+        }
+
+        m.reset();
+        m.int64(TIME_NANOS, System.currentTimeMillis() * 1_000_000L);
+        m.int64(DEFAULT_SAMPLE_TYPE, 1); // "self"
+        out.write(m.buf, 0, m.len);
+
+        for (int s = 0; s < strings.table.size(); s++) {
+            byte[] b = strings.table.get(s);
+            m.reset();
+            m.tag(STRING_TABLE, LENGTH_DELIMITED);
+            m.varint(b.length);
+            out.write(m.buf, 0, m.len).write(b);
+        }
+    }
+
+    // One top-level field holding the message in sub
+    private static void emit(DumpOutput out, Message head, int field, Message sub) throws IOException {
+        head.reset();
+        head.tag(field, LENGTH_DELIMITED);
+        head.varint(sub.len);
+        out.write(head.buf, 0, head.len).write(sub.buf, 0, sub.len);
+    }
+
+    /**
+     * The string table: index 0 is the empty string, method names are the
+     * cached UTF-8 bytes of {@link MethodRegistry}, indexed once per method id.
+     */
+    private static final class Strings {
+        final List<byte[]> table = new ArrayList<>();
+        final HashMap<String, Integer> other = new HashMap<>();
+        final int[] methods; // string index by method id, 0 until named
+
+        Strings(int maxMid) {
+            methods = new int[maxMid + 1];
+            table.add(new byte[0]);
+        }
+
+        long of(String s) {
+            Integer index = other.get(s);
+            if (index == null) {
+                index = table.size();
+                table.add(s.getBytes(StandardCharsets.UTF_8));
+                other.put(s, index);
+            }
+            return index;
+        }
+
+        long ofMethod(int mid) {
+            int index = methods[mid];
+            if (index == 0) {
+                index = methods[mid] = table.size();
+                table.add(MethodRegistry.utf8(mid));
+            }
+            return index;
+        }
+    }
+
+    // A protobuf message under construction, reused.
+    private static final class Message {
+        byte[] buf = new byte[256];
+        int len;
+
+        void reset() {
+            len = 0;
+        }
+
+        void tag(int field, int wireType) {
+            varint(((long) field << 3) | wireType);
+        }
+
+        // proto3: zero is the default and is left out
+        void int64(int field, long v) {
+            if (v == 0) return;
+            tag(field, VARINT);
+            varint(v);
+        }
+
+        void message(int field, Message m) {
+            tag(field, LENGTH_DELIMITED);
+            varint(m.len);
+            ensure(m.len);
+            System.arraycopy(m.buf, 0, buf, len, m.len);
+            len += m.len;
+        }
+
+        void varint(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[len++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte) v;
+        }
+
+        private void ensure(int n) {
+            if (len + n > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length << 1, len + n));
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package io.smallfast.profiler;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Compares a baseline and a candidate run, offline ({@code ProfileTool diff}).
+ *
+ * Each side is a percentile CSV (gzipped or not), a directory of them, or a
+ * binary dump.
+ * Paths are joined by their collapsed stack, the method names: CSVs carry
+ * no method ids. A path seen in several files of one side (one per thread)
+ * is summed; its percentiles cannot be combined from the per-file ones, so
+ * the report leaves them empty. Merged CSVs and binary dumps, whose
+ * histograms are merged exactly, have percentiles for every path.
+ *
+ * Files are read line by line, one task per file, on a fork/join pool; only
+ * one row per distinct path is kept.
+ */
+final class ProfileDiff {
+
+    static final String REPORT_HEADER = "stack,status,base_self_ns,cand_self_ns,delta_self_ns,delta_self_pct,"
+            + "base_calls,cand_calls,delta_calls,"
+            + "base_p50_ns,cand_p50_ns,delta_p50_ns,base_p99_ns,cand_p99_ns,delta_p99_ns,"
+            + "base_p999_ns,cand_p999_ns,delta_p999_ns";
+
+    private ProfileDiff() {}
+
+    /**
+     * One path of one side. Percentiles are -1 when the side has none for it;
+     * {@code dropped} when it had them in several files, which do not combine.
+     */
+    static final class Row {
+        final long selfNs, calls, count;
+        final long p50, p99, p999;
+        final boolean dropped;
+
+        Row(long selfNs, long calls, long count, long p50, long p99, long p999, boolean dropped) {
+            this.selfNs = selfNs;
+            this.calls = calls;
+            this.count = count;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.dropped = dropped;
+        }
+
+        static Row combine(Row a, Row b) {
+            long selfNs = a.selfNs + b.selfNs, calls = a.calls + b.calls, count = a.count + b.count;
+            if (a.hasPercentiles() && b.hasPercentiles() || a.dropped || b.dropped) {
+                return new Row(selfNs, calls, count, -1, -1, -1, true);
+            }
+            Row p = a.hasPercentiles() ? a : b; // the only one with any
+            return new Row(selfNs, calls, count, p.p50, p.p99, p.p999, false);
+        }
+
+        private boolean hasPercentiles() {
+            return p50 >= 0 && count > 0;
+        }
+    }
+
+    /** A path of either side or both; a side it is missing from is null. */
+    static final class Delta {
+        final String stack;
+        final Row base, cand;
+        final long deltaSelfNs;
+
+        Delta(String stack, Row base, Row cand) {
+            this.stack = stack;
+            this.base = base;
+            this.cand = cand;
+            this.deltaSelfNs = selfOf(cand) - selfOf(base);
+        }
+
+        String status() {
+            return (base == null) ? "new" : (cand == null) ? "gone" : "";
+        }
+    }
+
+    /**
+     * Loads both sides, joins them and writes {@code diff.csv} (every path,
+     * largest self time regression first) and {@code diff.folded} (collapsed
+     * stacks with baseline and candidate self time, for
+     * {@code flamegraph.pl}'s differential mode) into {@code outDir}.
+     */
+    static List<Delta> run(Path baseline, Path candidate, Path outDir) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        List<Delta> deltas;
+        try {
+            ForkJoinTask<Map<String, Row>> base = pool.submit(() -> load(baseline, pool));
+            ForkJoinTask<Map<String, Row>> cand = pool.submit(() -> load(candidate, pool));
+            deltas = join(base.join(), cand.join(), pool);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+
+        Files.createDirectories(outDir);
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(outDir.resolve("diff.csv")))) {
+            w.println(REPORT_HEADER);
+            for (Delta d : deltas) writeReportRow(w, d);
+        }
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(outDir.resolve("diff.folded")))) {
+            for (Delta d : deltas) {
+                w.print(d.stack);
+                w.print(' ');
+                w.print(selfOf(d.base));
+                w.print(' ');
+                w.println(selfOf(d.cand));
+            }
+        }
+        return deltas;
+    }
+
+    static List<Delta> join(Map<String, Row> base, Map<String, Row> cand, ForkJoinPool pool) {
+        Set<String> stacks = new HashSet<>(base.keySet());
+        stacks.addAll(cand.keySet());
+        return pool.submit(() -> stacks.parallelStream()
+                .map(s -> new Delta(s, base.get(s), cand.get(s)))
+                .sorted(Comparator.comparingLong((Delta d) -> d.deltaSelfNs).reversed()
+                        .thenComparing(d -> d.stack))
+                .collect(Collectors.toList())).join();
+    }
+
+    // ---------------- loading ----------------
+
+    static Map<String, Row> load(Path input, ForkJoinPool pool) {
+        try {
+            if (Files.isDirectory(input)) return loadCsvs(csvFiles(input), pool);
+            String name = input.getFileName().toString();
+            if (name.endsWith(".ppb") || name.endsWith(".ppb.gz")) return loadBinary(input, pool);
+            return loadCsvs(List.of(input), pool);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Merged CSVs if the directory has any (they already hold every thread), else all per-thread ones.
+    private static List<Path> csvFiles(Path dir) throws IOException {
+        List<Path> merged = new ArrayList<>();
+        List<Path> threads = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "percentiles-*.{csv,csv.gz}")) {
+            for (Path f : files) {
+                (f.getFileName().toString().startsWith("percentiles-merged-") ? merged : threads).add(f);
+            }
+        }
+        List<Path> out = merged.isEmpty() ? threads : merged;
+        if (out.isEmpty()) throw new IOException(dir + " has no percentiles-*.csv files");
+        return out;
+    }
+
+    private static Map<String, Row> loadCsvs(List<Path> files, ForkJoinPool pool) {
+        ConcurrentHashMap<String, Row> rows = new ConcurrentHashMap<>();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>(files.size());
+        for (Path f : files) {
+            tasks.add(pool.submit(() -> {
+                try {
+                    readCsv(f, rows);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        }
+        for (ForkJoinTask<?> t : tasks) t.join();
+        return rows;
+    }
+
+    // Columns are found by header name, so CSVs with metric columns read the same.
+    static void readCsv(Path file, ConcurrentHashMap<String, Row> rows) throws IOException {
+        try (BufferedReader r = file.getFileName().toString().endsWith(".gz")
+                ? new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file)), UTF_8))
+                : Files.newBufferedReader(file)) {
+            String header = r.readLine();
+            if (header == null || !header.startsWith("stack,")) {
+                throw new IOException(file + " is not a percentiles CSV");
+            }
+            List<String> names = Arrays.asList(header.split(","));
+            int columns = names.size();
+            int p50 = names.indexOf("p50_ns");
+            int p99 = names.indexOf("p99_ns");
+            int p999 = names.indexOf("p999_ns");
+            int count = names.indexOf("count");
+            int self = names.indexOf("self_ns");
+            int calls = names.indexOf("calls");
+
+            // Context labels may contain commas; the stack is whatever precedes the other columns.
+            int[] start = new int[columns];
+            int[] end = new int[columns];
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (!splitFromRight(line, columns, start, end)) continue; // "Histograms disabled."
+                String stack = line.substring(0, end[0]);
+                Row row = new Row(cell(line, self, start, end), cell(line, calls, start, end),
+                        Math.max(0, cell(line, count, start, end)),
+                        cell(line, p50, start, end), cell(line, p99, start, end), cell(line, p999, start, end),
+                        false);
+                rows.merge(stack, row, Row::combine);
+            }
+        }
+    }
+
+    private static boolean splitFromRight(String line, int columns, int[] start, int[] end) {
+        int e = line.length();
+        for (int c = columns - 1; c > 0; c--) {
+            int comma = line.lastIndexOf(',', e - 1);
+            if (comma < 0) return false;
+            start[c] = comma + 1;
+            end[c] = e;
+            e = comma;
+        }
+        start[0] = 0;
+        end[0] = e;
+        return e > 0;
+    }
+
+    // Numeric cell, -1 if the column is missing or the cell empty
+    private static long cell(String line, int column, int[] start, int[] end) {
+        if (column < 0 || start[column] == end[column]) return -1L;
+        return Long.parseLong(line, start[column], end[column], 10);
+    }
+
+    private static Map<String, Row> loadBinary(Path file, ForkJoinPool pool) throws IOException {
+        BinaryProfile p = BinaryProfile.read(file, true);
+        TreeSnapshot t = TreeSnapshot.mergeAll(p.trees, file.getFileName().toString(), pool);
+        Map<String, Row> rows = new ConcurrentHashMap<>();
+        for (Profiler.PathEntry e : Profiler.collectPathEntries(t)) {
+            Histogram h = e.hist;
+            Row row = (h == null || h.getTotalCount() == 0)
+                    ? new Row(e.weight, e.calls, 0, -1, -1, -1, false)
+                    : new Row(e.weight, e.calls, h.getTotalCount(), h.getValueAtPercentile(50.0),
+                            h.getValueAtPercentile(99.0), h.getValueAtPercentile(99.9), false);
+            rows.put(Profiler.toCollapsedStack(e.frames, e.len), row);
+        }
+        return rows;
+    }
+
+    // ---------------- output ----------------
+
+    private static void writeReportRow(PrintWriter w, Delta d) {
+        Row b = d.base, c = d.cand;
+        w.print(d.stack); w.print(',');
+        w.print(d.status()); w.print(',');
+        w.print(selfOf(b)); w.print(',');
+        w.print(selfOf(c)); w.print(',');
+        w.print(d.deltaSelfNs); w.print(',');
+        w.print(percentChange(selfOf(b), selfOf(c))); w.print(',');
+        long bc = (b == null) ? 0 : b.calls, cc = (c == null) ? 0 : c.calls;
+        w.print(bc); w.print(',');
+        w.print(cc); w.print(',');
+        w.print(cc - bc);
+        printPercentile(w, b == null ? -1 : b.p50, c == null ? -1 : c.p50);
+        printPercentile(w, b == null ? -1 : b.p99, c == null ? -1 : c.p99);
+        printPercentile(w, b == null ? -1 : b.p999, c == null ? -1 : c.p999);
+        w.println();
+    }
+
+    // ",base,cand,delta"; cells of a missing value stay empty
+    private static void printPercentile(PrintWriter w, long base, long cand) {
+        w.print(',');
+        if (base >= 0) w.print(base);
+        w.print(',');
+        if (cand >= 0) w.print(cand);
+        w.print(',');
+        if (base >= 0 && cand >= 0) w.print(cand - base);
+    }
+
+    static String percentChange(long base, long cand) {
+        if (base <= 0) return "";
+        return String.format(Locale.ROOT, "%+.1f%%", (cand - base) * 100.0 / base);
+    }
+
+    static long selfOf(Row r) {
+        return (r == null) ? 0 : r.selfNs;
+    }
+}
@@ -0,0 +1,238 @@
+package io.smallfast.profiler;
+
+import com.sun.tools.attach.VirtualMachine;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The jar's Main-Class. Converts {@link Profiler#dumpBinary(Path)} files offline:
+ *
+ * <pre>
+ * java -jar precise-profiler.jar speedscope|collapsed|percentiles|pprof|folded|methods &lt;profile.ppb&gt; [outDir]
+ * </pre>
+ *
+ * writing one file per thread (and per aggregate of exited threads), named like
+ * the in-process dumps, or for {@code pprof}, {@code folded} and {@code methods}
+ * one file for all threads ({@code profile.pb.gz}, {@code profile.folded},
+ * {@code profile.methods.csv});
+ * {@code outDir} defaults to the directory of the input.
+ * Compares two runs (see {@link ProfileDiff}):
+ *
+ * <pre>
+ * java -jar precise-profiler.jar diff &lt;baseline&gt; &lt;candidate&gt; [outDir]
+ * </pre>
+ *
+ * And attaches to / controls a running JVM (needs a JDK):
+ *
+ * <pre>
+ * java -jar precise-profiler.jar attach &lt;pid&gt; &lt;agent args&gt;
+ * java -jar precise-profiler.jar ctl &lt;pid&gt; start|stop|reset|status|dump &lt;dir&gt;|dumpBinary &lt;file&gt;|dumpPprof &lt;file&gt;|dumpFolded &lt;file&gt;|dumpMethods &lt;file&gt;|dumpSlowCalls &lt;file&gt;
+ * </pre>
+ */
+public final class ProfileTool {
+
+    private ProfileTool() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("attach")) {
+            attach(args);
+        } else if (args.length > 0 && args[0].equals("ctl")) {
+            control(args);
+        } else if (args.length > 0 && args[0].equals("diff")) {
+            diff(args);
+        } else {
+            convert(args);
+        }
+    }
+
+    private static void attach(String[] args) throws Exception {
+        if (args.length != 3) {
+            usage();
+            return;
+        }
+        String jar = Path.of(ProfileTool.class.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        VirtualMachine vm = VirtualMachine.attach(args[1]);
+        try {
+            vm.loadAgent(jar, args[2]);
+        } finally {
+            vm.detach();
+        }
+        System.out.println("attached to " + args[1]);
+    }
+
+    private static void control(String[] args) throws Exception {
+        if (args.length < 3) {
+            usage();
+            return;
+        }
+        String op = args[2];
+        Object[] params = new Object[0];
+        String[] signature = new String[0];
+        switch (op) {
+            case "start":
+            case "stop":
+            case "reset":
+                break;
+            case "status":
+                break;
+            case "dump":
+            case "dumpBinary":
+            case "dumpPprof":
+            case "dumpFolded":
+            case "dumpMethods":
+            case "dumpSlowCalls":
+                if (args.length != 4) {
+                    usage();
+                    return;
+                }
+                params = new Object[]{args[3]};
+                signature = new String[]{String.class.getName()};
+                break;
+            default:
+                usage();
+                return;
+        }
+
+        VirtualMachine vm = VirtualMachine.attach(args[1]);
+        String address;
+        try {
+            address = vm.startLocalManagementAgent();
+        } finally {
+            vm.detach();
+        }
+        try (JMXConnector c = JMXConnectorFactory.connect(new JMXServiceURL(address))) {
+            MBeanServerConnection server = c.getMBeanServerConnection();
+            ObjectName name = new ObjectName(ProfilerControl.NAME);
+            if (!server.isRegistered(name)) {
+                System.err.println("no profiler agent with JMX control in " + args[1] + ", see attach and control=jmx");
+                System.exit(1);
+            }
+            Object result = op.equals("status")
+                    ? (((Boolean) server.getAttribute(name, "Running")) ? "running" : "stopped")
+                    : server.invoke(name, op, params, signature);
+            if (result != null) System.out.println(result);
+        }
+    }
+
+    private static final int DIFF_TOP = 20;
+
+    private static void diff(String[] args) throws IOException {
+        if (args.length < 3 || args.length > 4) {
+            usage();
+            return;
+        }
+        Path candidate = Path.of(args[2]);
+        Path dir = (args.length == 4) ? Path.of(args[3])
+                : Files.isDirectory(candidate) ? candidate : candidate.toAbsolutePath().getParent();
+        List<ProfileDiff.Delta> deltas = ProfileDiff.run(Path.of(args[1]), candidate, dir);
+
+        long base = 0, cand = 0;
+        int dropped = 0;
+        for (ProfileDiff.Delta d : deltas) {
+            base += ProfileDiff.selfOf(d.base);
+            cand += ProfileDiff.selfOf(d.cand);
+            if ((d.base != null && d.base.dropped) || (d.cand != null && d.cand.dropped)) dropped++;
+        }
+        System.out.printf("total self: %d ns -> %d ns (%s), %d paths%n",
+                base, cand, ProfileDiff.percentChange(base, cand), deltas.size());
+        if (dropped > 0) {
+            System.out.printf("no percentiles for %d paths found in several per-thread CSVs;"
+                    + " diff merged CSVs or binary dumps for them%n", dropped);
+        }
+        System.out.println("largest regressions (delta self ns, stack):");
+        for (int i = 0; i < Math.min(DIFF_TOP, deltas.size()) && deltas.get(i).deltaSelfNs > 0; i++) {
+            ProfileDiff.Delta d = deltas.get(i);
+            System.out.printf("  %+d  %s %s%n", d.deltaSelfNs, d.stack, d.status());
+        }
+        System.out.println(dir.resolve("diff.csv"));
+        System.out.println(dir.resolve("diff.folded"));
+    }
+
+    private static void convert(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            usage();
+            return;
+        }
+        String format = args[0];
+        Path in = Path.of(args[1]);
+        Path dir = (args.length == 3) ? Path.of(args[2]) : in.toAbsolutePath().getParent();
+
+        switch (format) {
+            case "speedscope":
+            case "collapsed":
+            case "percentiles":
+            case "pprof":
+            case "folded":
+            case "methods":
+                break;
+            default:
+                usage();
+                return;
+        }
+
+        BinaryProfile p = BinaryProfile.read(in,
+                format.equals("percentiles") || format.equals("pprof") || format.equals("methods"));
+        Profiler.setHistogramEnabled(p.histograms);
+        Files.createDirectories(dir);
+
+        // all threads in one file, named after the input
+        if (format.equals("pprof") || format.equals("folded") || format.equals("methods")) {
+            String stem = in.getFileName().toString().replaceFirst("\\.gz$", "").replaceFirst("\\.ppb$", "");
+            boolean pprof = format.equals("pprof");
+            Path out = dir.resolve(stem + (pprof ? ".pb.gz" : format.equals("folded") ? ".folded" : ".methods.csv"));
+            try (DumpOutput o = DumpOutput.open(out, pprof)) {
+                if (pprof) Pprof.write(o, p.trees, p.histograms);
+                else if (format.equals("folded")) TreeWriter.folded(o, p.trees);
+                else MethodRollup.of(p.trees).write(o);
+            }
+            System.out.println(out);
+            return;
+        }
+
+        // one file per tree, written in parallel; the names are printed in input order
+        List<Path> outs = new ArrayList<>();
+        for (TreeSnapshot t : p.trees) {
+            String label = Profiler.sanitize(t.label());
+            switch (format) {
+                case "speedscope":
+                    outs.add(dir.resolve("thread-" + label + ".speedscope.json"));
+                    break;
+                case "collapsed":
+                    outs.add(dir.resolve("thread-" + label + ".collapsed.txt"));
+                    break;
+                default:
+                    outs.add(dir.resolve("percentiles-" + label + ".csv"));
+            }
+        }
+        TreeWriter.writeAll(p.trees, outs::get, false, (out, t) -> {
+            switch (format) {
+                case "speedscope":
+                    TreeWriter.speedscope(out, t, t.label());
+                    break;
+                case "collapsed":
+                    TreeWriter.collapsed(out, t, false);
+                    break;
+                default:
+                    TreeWriter.percentilesCsv(out, t, p.histograms);
+            }
+        });
+        for (Path out : outs) System.out.println(out);
+    }
+
+    private static void usage() {
+        System.err.println("usage: java -jar precise-profiler.jar speedscope|collapsed|percentiles|pprof|folded|methods <profile.ppb> [outDir]");
+        System.err.println("       java -jar precise-profiler.jar diff <baseline> <candidate> [outDir]");
+        System.err.println("       java -jar precise-profiler.jar attach <pid> <agent args>");
+        System.err.println("       java -jar precise-profiler.jar ctl <pid> start|stop|reset|status|dump <dir>|dumpBinary <file>|dumpPprof <file>|dumpFolded <file>|dumpMethods <file>|dumpSlowCalls <file>");
+        System.exit(2);
+    }
+}
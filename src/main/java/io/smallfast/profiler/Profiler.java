@@ -4,109 +4,940 @@ import org.HdrHistogram.Histogram;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.ref.WeakReference;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public final class Profiler {
 
     private static final ConcurrentHashMap<Long, State> STATES = new ConcurrentHashMap<>();
-    private static volatile boolean DRY_RUN = false; // not used by tree (no hashing), kept for compatibility
 
-    private static final long HIST_MAX_NS = 30_000_000_000L; // 30s
-    private static final int HIST_SIG_DIGITS = 3;
     private static boolean ENABLE_HISTOGRAM = false;
+    private static boolean ARRAY_TREE = false; // tree=arrays, see ArrayTree; read when a thread's state is created
+    private static volatile boolean DUMP_GZIP = false; // gzip the text dumps, adding .gz to their names
+
+    static final String PERCENTILES_HEADER =
+            "stack,p50_ns,p90_ns,p99_ns,p999_ns,p100_ns,count,self_ns,corrected_self_ns,calls,precision";
+    static final String CPU_PERCENTILES_HEADER = ",cpu_p50_ns,cpu_p90_ns,cpu_p99_ns,cpu_p999_ns,cpu_p100_ns,cpu_self_ns";
+    static final String ALLOC_PERCENTILES_HEADER =
+            ",alloc_p50_bytes,alloc_p90_bytes,alloc_p99_bytes,alloc_p999_bytes,alloc_p100_bytes,alloc_self_bytes";
+    static final String INCL_PERCENTILES_HEADER = ",incl_p50_ns,incl_p90_ns,incl_p99_ns,incl_p999_ns,incl_p100_ns,incl_ns";
+    static final String RECURSIONS_HEADER = ",recursions";
+    static final String PAUSES_HEADER = ",paused_calls,paused_p99_ns,paused_p100_ns,"
+            + "with_pauses_p99_ns,with_pauses_p999_ns,with_pauses_p100_ns";
+
+    // Calibrated instrumentation cost, see Calibration. Zero when calibration is off.
+    // inner: part of an enter/exit pair that falls inside the call's own measured interval
+    // outer: part that falls outside it and is therefore charged to the caller's self time
+    private static long OVERHEAD_INNER_NS = 0;
+    private static long OVERHEAD_OUTER_NS = 0;
+
+    // Guards baselines, epochs and aggregates; never taken on the hot path.
+    private static final Object SNAPSHOT_LOCK = new Object();
+    private static long EPOCH = 0;
+
+    // Dead-thread reclamation: trees of exited threads are folded into one
+    // aggregate per thread group or per thread-name pattern.
+    private static volatile boolean RECLAIM = false;
+    private static volatile boolean AGGREGATE_BY_GROUP = false;
+    private static final Map<String, TreeSnapshot> AGGREGATES = new LinkedHashMap<>();
+
+    // Interval exporter: exited threads' trees not yet reported by a tick,
+    // folded like AGGREGATES but only since each thread's last tick.
+    private static volatile boolean TICKING = false;
+    private static final Map<String, TreeSnapshot> TICK_AGGREGATES = new LinkedHashMap<>();
 
     public static void setHistogramEnabled(boolean enabled) {
         ENABLE_HISTOGRAM = enabled;
     }
-    public static void setDryRun(boolean v) { DRY_RUN = v; }
+    static void setArrayTree(boolean v) { ARRAY_TREE = v; }
+    static void setDumpGzip(boolean v) { DUMP_GZIP = v; }
+
+    static void setOverheadNs(long inner, long outer) {
+        OVERHEAD_INNER_NS = inner;
+        OVERHEAD_OUTER_NS = outer;
+    }
+
+    static boolean histogramsEnabled() { return ENABLE_HISTOGRAM; }
+
+    static long overheadInnerNs() { return OVERHEAD_INNER_NS; }
+    static long overheadOuterNs() { return OVERHEAD_OUTER_NS; }
+
+    /**
+     * Reclaims the state of exited threads (checked every {@code everyMs} and
+     * before each dump), folding their trees into one aggregate per thread
+     * group ({@code byGroup}) or per thread name with digits masked
+     * ({@code pool-3-thread-17} becomes {@code pool-*-thread-*}).
+     */
+    static void startReclaimer(boolean byGroup, long everyMs) {
+        AGGREGATE_BY_GROUP = byGroup;
+        RECLAIM = true;
+        if (everyMs <= 0) return;
+        Thread t = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(everyMs);
+                    synchronized (SNAPSHOT_LOCK) {
+                        reclaimDeadThreads();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "precise-profiler-reclaimer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Keeps histogram memory under {@code histBudget}: every {@code everyMs},
+     * once more than three quarters of the budget is in use, histograms of
+     * nodes without a call since the previous pass are dropped (the nodes keep
+     * their counts and self time), making room for paths that are still hot.
+     */
+    static void startHistogramBudgetKeeper(long everyMs) {
+        long period = Math.max(1000L, everyMs);
+        Thread t = new Thread(() -> {
+            try {
+                while (true) {
+                    Thread.sleep(period);
+                    synchronized (SNAPSHOT_LOCK) {
+                        reclaimDeadThreads();
+                        keepHistogramBudget();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "precise-profiler-histogram-budget");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // Caller holds SNAPSHOT_LOCK. Idle is judged on racy reads of calls: a
+    // node misjudged idle loses its histogram, never its counts.
+    private static void keepHistogramBudget() {
+        boolean tight = NodeHistogram.BYTES.get() > NodeHistogram.budget() / 4 * 3;
+        long dropped = 0;
+        ArrayDeque<Node> todo = new ArrayDeque<>();
+        for (State s : STATES.values()) {
+            if (s.tree != null) {
+                dropped += keepHistogramBudget(s.tree, tight);
+                continue;
+            }
+            todo.push(s.root);
+            while (!todo.isEmpty()) {
+                Node n = todo.pop();
+                int count = n.publishedChildCount();
+                Node[] children = n.childNode;
+                for (int i = 0; i < count; i++) todo.push(children[i]);
+                long c = n.calls;
+                if (tight && c == n.callsAtLastScan) dropped += n.dropHistograms();
+                n.callsAtLastScan = c;
+            }
+        }
+        if (dropped > 0) {
+            System.out.println("[precise-profiler] histogram budget: dropped " + dropped
+                    + " idle histograms, " + NodeHistogram.BYTES.get() + " of "
+                    + NodeHistogram.budget() + " bytes in use, "
+                    + NodeHistogram.REFUSED.get() + " allocations refused so far");
+        }
+    }
+
+    private static long keepHistogramBudget(ArrayTree t, boolean tight) {
+        int n = t.publishedSize();
+        long[] calls = t.calls;
+        long[] last = t.callsAtLastScan;
+        if (last.length < n) t.callsAtLastScan = last = Arrays.copyOf(last, calls.length);
+        long dropped = 0;
+        for (int i = 1; i < n; i++) {
+            long c = calls[i];
+            if (tight && c == last[i]) dropped += t.dropHistograms(i);
+            last[i] = c;
+        }
+        return dropped;
+    }
 
     private static final ThreadLocal<State> TL = ThreadLocal.withInitial(() -> {
-        Thread t = Thread.currentThread();
-        State s = new State(t.getName(), t.getId());
+        State s = new State(Thread.currentThread());
         STATES.put(s.tid, s);
         return s;
     });
 
     private Profiler() {}
 
+    // The calling thread's state, removed from dumps (used by the profiler's own threads).
+    static State detachCurrentThread() {
+        State s = TL.get();
+        STATES.remove(s.tid, s);
+        return s;
+    }
+
     // ---------------- hot path ----------------
 
     public static void enter(int methodId) {
+        push(TL.get(), methodId);
+    }
+
+    public static void exit() {
+        long end = System.nanoTime();
         State s = TL.get();
+        int d = s.depth - 1;
+        if (d < 0) { s.depth = 0; return; }
+
+        pop(s, d, end);
+    }
+
+    /**
+     * Enter for {@link StateTraceAdvice}: the returned state is handed back to
+     * {@link #exit(State, int)}, so a call costs one thread-local lookup instead of two.
+     */
+    public static State enterState(int methodId) {
+        State s = TL.get();
+        push(s, methodId);
+        return s;
+    }
+
+    /** Depth of the innermost open frame of {@code s}, the token {@link #exit(State, int)} expects. */
+    public static int topFrame(State s) {
+        return s.depth - 1;
+    }
+
+    /**
+     * Exit for {@link StateTraceAdvice}. {@code frame} is the depth this call was
+     * pushed at; frames above it whose exit never ran are closed here first,
+     * instead of being mistaken for this one.
+     */
+    public static void exit(State s, int frame) {
+        long end = System.nanoTime();
+        int d = s.depth - 1;
+        if (d < frame) return; // already unwound
+        while (d > frame) {
+            pop(s, d, end);
+            d--;
+        }
+        pop(s, d, end);
+    }
+
+    // ---------------- contexts ----------------
+
+    /** Interns a context label; keep the id to switch contexts without a lookup. */
+    public static int contextId(String label) {
+        return Contexts.idFor(label);
+    }
+
+    /** {@link #beginContext(int)} by label. */
+    public static int beginContext(String label) {
+        return beginContext(Contexts.idFor(label));
+    }
+
+    /**
+     * Opens a context on the calling thread: until {@link #endContext()}, its
+     * calls are recorded under a subtree of the tree's root for this context,
+     * whatever the thread was doing before, so each context gets its own
+     * paths and percentiles. The context is a frame of its own, so its time is
+     * not part of the enclosing call's self time. Returns the token
+     * {@link #endContext(int)} takes.
+     */
+    public static int beginContext(int contextId) {
+        State s = TL.get();
+        push(s, contextId, true, true);
+        return s.depth - 1;
+    }
+
+    /** Closes the innermost open context of the calling thread, and any call still open inside it. */
+    public static void endContext() {
+        long end = System.nanoTime();
+        State s = TL.get();
+        for (int d = s.depth - 1; d >= 0; d--) {
+            int mid = (s.tree != null) ? s.tree.methodId[s.stackIndex[d]] : s.stackNode[d].methodId;
+            if (Contexts.isContext(mid)) {
+                for (int i = s.depth - 1; i >= d; i--) pop(s, i, end);
+                return;
+            }
+        }
+    }
+
+    /** Closes the context {@link #beginContext(int)} returned {@code frame} for. */
+    public static void endContext(int frame) {
+        exit(TL.get(), frame);
+    }
+
+    // ---------------- async stitching ----------------
+
+    private static final int QUEUED_ID = MethodRegistry.idFor("[queued]");
+
+    /**
+     * Where a task was handed off, see {@link Async}: the submitter's innermost
+     * open frame, as a node of its tree, and when. Only a reference is taken;
+     * the path is read from the tree when the task runs.
+     */
+    static final class Origin {
+        final Node node;      // node tree
+        final ArrayTree tree; // or array tree and index
+        final int index;
+        final long submitNs;
+        int pathLength; // set when the task runs
+
+        Origin(Node node, ArrayTree tree, int index, long submitNs) {
+            this.node = node;
+            this.tree = tree;
+            this.index = index;
+            this.submitNs = submitNs;
+        }
+
+        // methodIds from the root's child down to the submitting frame
+        int[] path() {
+            int n = 0;
+            if (tree != null) {
+                for (int i = index; i != 0; i = tree.parent[i]) n++;
+                int[] p = new int[n];
+                for (int i = index; i != 0; i = tree.parent[i]) p[--n] = tree.methodId[i];
+                return p;
+            }
+            for (Node x = node; x.parent != null; x = x.parent) n++;
+            int[] p = new int[n];
+            for (Node x = node; x.parent != null; x = x.parent) p[--n] = x.methodId;
+            return p;
+        }
+    }
+
+    /** The calling thread's innermost open frame, null outside any. */
+    static Origin origin() {
+        State s = TL.get();
+        int d = s.depth - 1;
+        if (d < 0) return null;
+        return (s.tree != null)
+                ? new Origin(null, s.tree, s.stackIndex[d], System.nanoTime())
+                : new Origin(s.stackNode[d], null, 0, System.nanoTime());
+    }
+
+    /**
+     * Starts running a task handed off at {@code o} on the calling thread: the
+     * submitter's path is rebuilt from the root of this thread's tree, with a
+     * {@code [queued]} call under it for the time between hand-off and now;
+     * the task's calls then land under the same path. Returns the token for
+     * {@link #endStitched(Origin, int, long)}.
+     *
+     * The path lives in this thread's own tree, not in a view shared by all
+     * threads: only merged dumps join it with the submitter's. Its frames
+     * record no calls here and, like context frames, are outside the tree
+     * bounds, so copies of other threads' paths do not use up this thread's
+     * {@code maxNodes}.
+     */
+    static int beginStitched(Origin o) {
+        State s = TL.get();
+        int base = s.depth;
+        int[] path = o.path();
+        o.pathLength = path.length;
+        for (int i = 0; i < path.length; i++) {
+            push(s, path[i], i == 0, true);
+            s.stackStartNs[s.depth - 1] = o.submitNs;
+        }
+        push(s, QUEUED_ID);
+        int q = s.depth - 1;
+        s.stackStartNs[q] = o.submitNs;
+        pop(s, q, System.nanoTime());
+        return base;
+    }
+
+    /**
+     * Ends a task begun at {@code base}: calls it left open are closed, the
+     * rebuilt path frames are dropped without being recorded (they are not
+     * calls of this thread), and the task's time goes to the enclosing frame
+     * as child time, like a call.
+     */
+    static void endStitched(Origin o, int base, long startNs) {
+        long end = System.nanoTime();
+        State s = TL.get();
+        for (int d = s.depth - 1; d >= base + o.pathLength; d--) pop(s, d, end);
+        if (Governance.FOLD) {
+            for (int d = base; d < base + o.pathLength; d++) {
+                if (s.tree != null) s.tree.open[s.stackIndex[d]]--;
+                else s.stackNode[d].open--;
+            }
+        }
+        s.depth = base;
+        if (base > 0) s.stackChildNs[base - 1] += end - startNs;
+    }
+
+    private static void push(State s, int methodId) {
+        push(s, methodId, false, false);
+    }
+
+    // atRoot: a child of the root instead of the current frame;
+    // ungoverned: a context or rebuilt frame, not subject to Governance
+    private static void push(State s, int methodId, boolean atRoot, boolean ungoverned) {
         int d = s.depth;
 
         if (d == s.stackNode.length) s.growStacks();
 
-        Node parent = (d == 0) ? s.root : s.stackNode[d - 1];
-        Node child = parent.getOrCreateChild(methodId);
-
-        s.stackNode[d] = child;
+        ArrayTree tree = s.tree;
+        if (tree != null) {
+            int parent = (d == 0 || atRoot) ? 0 : s.stackIndex[d - 1];
+            int idx = (Governance.ANY && !ungoverned)
+                    ? governedChild(s, tree, parent, methodId) : tree.child(parent, methodId);
+            s.stackIndex[d] = idx;
+            // re-entering a node whose frame is still open: recursion
+            if (Governance.FOLD && tree.open[idx]++ > 0) tree.recursions[idx]++;
+        } else {
+            Node parent = (d == 0 || atRoot) ? s.root : s.stackNode[d - 1];
+            Node n = (Governance.ANY && !ungoverned)
+                    ? governedChild(s, parent, methodId) : parent.getOrCreateChild(methodId);
+            s.stackNode[d] = n;
+            if (Governance.FOLD && n.open++ > 0) n.recursions++;
+        }
+        // before the start: counter reads land in the caller, like the advice's own cost
+        if (Metrics.ANY) pushMetrics(s, d, methodId);
         s.stackStartNs[d] = System.nanoTime();
         s.stackChildNs[d] = 0L;
+        s.stackChildCalls[d] = 0;
 
         s.depth = d + 1;
     }
 
-    public static void exit() {
-        long end = System.nanoTime();
-        State s = TL.get();
-        int d = s.depth - 1;
-        if (d < 0) { s.depth = 0; return; }
+    // Node of a call under parent with foldRecursion / maxDepth / maxNodes, see Governance.
+    private static Node governedChild(State s, Node parent, int methodId) {
+        if (Governance.isSynthetic(parent.methodId)) return parent; // everything below stays in it
+        Node c = parent.findChild(methodId);
+        if (c != null) return c;
+        c = parent.findChild(Governance.TRUNCATED_ID);
+        if (c != null) return c; // parent is at maxDepth
 
-        s.depth = d;
+        if (Governance.walks()) {
+            int depth = 0;
+            for (Node a = parent; a.parent != null; a = a.parent, depth++) {
+                if (Governance.FOLD && a.methodId == methodId) return a;
+            }
+            if (depth >= Governance.MAX_DEPTH) methodId = Governance.TRUNCATED_ID;
+        }
+        if (methodId != Governance.TRUNCATED_ID && !Governance.admit(s)) {
+            methodId = Governance.OVER_BUDGET_ID;
+            c = parent.findChild(methodId);
+            if (c != null) return c;
+        }
+        Governance.created(s);
+        return parent.getOrCreateChild(methodId);
+    }
 
-        Node node = s.stackNode[d];
+    private static int governedChild(State s, ArrayTree t, int parent, int methodId) {
+        if (Governance.isSynthetic(t.methodId[parent])) return parent;
+        int c = t.find(parent, methodId);
+        if (c >= 0) return c;
+        c = t.find(parent, Governance.TRUNCATED_ID);
+        if (c >= 0) return c;
+
+        if (Governance.walks()) {
+            int depth = 0;
+            for (int a = parent; a != 0; a = t.parent[a], depth++) {
+                if (Governance.FOLD && t.methodId[a] == methodId) return a;
+            }
+            if (depth >= Governance.MAX_DEPTH) methodId = Governance.TRUNCATED_ID;
+        }
+        if (methodId != Governance.TRUNCATED_ID && !Governance.admit(s)) {
+            methodId = Governance.OVER_BUDGET_ID;
+            c = t.find(parent, methodId);
+            if (c >= 0) return c;
+        }
+        Governance.created(s);
+        return t.child(parent, methodId);
+    }
+
+    private static void pop(State s, int d, long end) {
+        s.depth = d;
 
         long total = end - s.stackStartNs[d];
         long self = total - s.stackChildNs[d];
 
+        if (total >= SlowCalls.THRESHOLD_NS) recordSlow(s, d, total);
+
         // propagate inclusive to parent as child time
         if (d > 0) {
             s.stackChildNs[d - 1] += total;
+            s.stackChildCalls[d - 1]++;
+        }
+
+        long overhead = 0;
+        if (self > 0) {
+            // own enter/exit cost plus the part of each child's that landed in our self time
+            overhead = OVERHEAD_INNER_NS + s.stackChildCalls[d] * OVERHEAD_OUTER_NS;
+            if (overhead > self) overhead = self;
+        }
+
+        // long enough to have lost time to a pause: judged once it has been reported
+        boolean defer = Pauses.ON && total >= Pauses.PENDING_MIN_NS;
+
+        ArrayTree tree = s.tree;
+        if (tree != null) {
+            int idx = s.stackIndex[d];
+            tree.record(idx, self, overhead, ENABLE_HISTOGRAM && !defer);
+            if (defer) Pauses.defer(s, null, idx, d, s.stackStartNs[d], end, (self > 0) ? self - overhead : -1L);
+            if (Pauses.ON) Pauses.settle(s, end);
+            if (Governance.FOLD) tree.open[idx]--;
+            if (Metrics.ANY) popMetrics(s, d, total);
+            return;
         }
 
+        Node node = s.stackNode[d];
+        node.calls++;
         if (self > 0) {
             node.totalSelfNs += self;
-            if (ENABLE_HISTOGRAM) {
-                recordHistogram(node.hist, self);
+            node.overheadNs += overhead;
+            if (ENABLE_HISTOGRAM && !defer) {
+                NodeHistogram h = node.hist;
+                if (h == null && (h = NodeHistogram.allocate(node.calls)) != null) node.hist = h;
+                if (h != null) h.record(self - overhead);
             }
         }
+        if (defer) Pauses.defer(s, node, 0, d, s.stackStartNs[d], end, (self > 0) ? self - overhead : -1L);
+        if (Pauses.ON) Pauses.settle(s, end);
+        if (Governance.FOLD) node.open--;
+        if (Metrics.ANY) popMetrics(s, d, total);
+    }
+
+    private static void pushMetrics(State s, int d, int methodId) {
+        boolean measured = Metrics.measured(d, methodId);
+        if (s.stackCpuStart != null) {
+            s.stackCpuStart[d] = measured ? Metrics.cpuNow() : -1L;
+            s.stackCpuChild[d] = 0L;
+        }
+        if (s.stackAllocStart != null) {
+            s.stackAllocStart[d] = measured ? Metrics.allocNow() : -1L;
+            s.stackAllocChild[d] = 0L;
+        }
+    }
+
+    private static void popMetrics(State s, int d, long total) {
+        long cpu = -1L, alloc = -1L, incl = -1L;
+        if (s.stackCpuStart != null) cpu = metricSelf(s.stackCpuStart, s.stackCpuChild, d, true);
+        if (s.stackAllocStart != null) alloc = metricSelf(s.stackAllocStart, s.stackAllocChild, d, false);
+        ArrayTree tree = s.tree;
+        if (Metrics.inclusive()) {
+            int mid = (tree != null) ? tree.methodId[s.stackIndex[d]] : s.stackNode[d].methodId;
+            // a recursive frame's time is already inside the node's outer frame
+            int open = !Governance.FOLD ? 0 : (tree != null) ? tree.open[s.stackIndex[d]] : s.stackNode[d].open;
+            if (open == 0 && Metrics.measured(d, mid)) incl = total;
+        }
+        if (cpu < 0 && alloc < 0 && incl < 0) return;
+        if (tree != null) tree.recordMetrics(s.stackIndex[d], cpu, alloc, incl, ENABLE_HISTOGRAM);
+        else s.stackNode[d].recordMetrics(cpu, alloc, incl, ENABLE_HISTOGRAM);
+    }
+
+    // Self amount of frame d, -1 if it is not measured; either way its caller
+    // learns what the frame's measured part used.
+    private static long metricSelf(long[] start, long[] child, int d, boolean cpu) {
+        long st = start[d];
+        if (st < 0) {
+            if (d > 0) child[d - 1] += child[d];
+            return -1L;
+        }
+        long total = (cpu ? Metrics.cpuNow() : Metrics.allocNow()) - st;
+        if (d > 0) child[d - 1] += total;
+        long self = total - child[d];
+        return (self < 0) ? 0 : self;
+    }
+
+    private static void recordSlow(State s, int d, long total) {
+        SlowCalls.Ring r = s.slow;
+        if (r == null) s.slow = r = new SlowCalls.Ring();
+        r.record(s, d, s.stackStartNs[d], total);
     }
 
     // ---------------- dumps ----------------
 
     public static void dumpSpeedscopePerThread(Path dir) throws IOException {
         Files.createDirectories(dir);
-        for (State s : STATES.values()) {
-            Path out = dir.resolve("thread-" + sanitize(s.threadName) + "-" + s.tid + ".speedscope.json");
-            try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(out))) {
-                dumpTreeToSpeedscope(w, s, s.threadName + "-" + s.tid);
-            }
-        }
+        List<TreeSnapshot> trees = intervalSnapshots();
+        TreeWriter.writeAll(trees, k -> dir.resolve("thread-" + sanitize(trees.get(k).label()) + ".speedscope.json"),
+                DUMP_GZIP, (out, t) -> TreeWriter.speedscope(out, t, t.label()));
     }
 
     public static void dumpPercentilesPerThread(Path dir) throws IOException {
         Files.createDirectories(dir);
-        for (State s : STATES.values()) {
-            Path out = dir.resolve("percentiles-" + sanitize(s.threadName) + "-" + s.tid + ".csv");
-            try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(out))) {
-                w.println("stack,p50_ns,p90_ns,p99_ns,p999_ns,p100_ns,count");
-                dumpTreeToPercentilesCsv(w, s);
+        List<TreeSnapshot> trees = intervalSnapshots();
+        TreeWriter.writeAll(trees, k -> dir.resolve("percentiles-" + sanitize(trees.get(k).label()) + ".csv"),
+                DUMP_GZIP, (out, t) -> TreeWriter.percentilesCsv(out, t, ENABLE_HISTOGRAM));
+    }
+
+    /**
+     * Merges the per-thread trees of each group into one tree (self times and
+     * histograms summed by call path) and writes one speedscope file and one
+     * percentile CSV per group. Groups, and the pairwise merges within a group,
+     * run in parallel on a short-lived fork/join pool.
+     */
+    public static void dumpMerged(Path dir, Grouping grouping) throws IOException {
+        Files.createDirectories(dir);
+        Map<String, List<TreeSnapshot>> groups = new LinkedHashMap<>();
+        for (TreeSnapshot t : intervalSnapshots()) {
+            groups.computeIfAbsent(grouping.keyFor(t.threadName), k -> new ArrayList<>()).add(t);
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            Map<String, ForkJoinTask<TreeSnapshot>> merges = new LinkedHashMap<>();
+            for (Map.Entry<String, List<TreeSnapshot>> g : groups.entrySet()) {
+                merges.put(g.getKey(), pool.submit(() -> TreeSnapshot.mergeAll(g.getValue(), g.getKey(), pool)));
+            }
+            List<ForkJoinTask<?>> writes = new ArrayList<>();
+            for (Map.Entry<String, ForkJoinTask<TreeSnapshot>> m : merges.entrySet()) {
+                String name = sanitize(m.getKey());
+                writes.add(pool.submit(() -> {
+                    TreeSnapshot t = m.getValue().join();
+                    try {
+                        try (DumpOutput out = DumpOutput.open(
+                                TreeWriter.withGzip(dir.resolve("merged-" + name + ".speedscope.json"), DUMP_GZIP), DUMP_GZIP)) {
+                            TreeWriter.speedscope(out, t, t.label());
+                        }
+                        try (DumpOutput out = DumpOutput.open(
+                                TreeWriter.withGzip(dir.resolve("percentiles-merged-" + name + ".csv"), DUMP_GZIP), DUMP_GZIP)) {
+                            TreeWriter.percentilesCsv(out, t, ENABLE_HISTOGRAM);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
             }
+            for (ForkJoinTask<?> w : writes) w.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Writes the interval views of all threads, histograms included, into one
+     * compact binary file (see {@link BinaryProfile}). Much cheaper than the
+     * text dumps; convert it later, off the production host, with
+     * {@code java -jar precise-profiler.jar}. The methods' stable ids are
+     * added to the {@link SymbolFile} next to it.
+     */
+    public static void dumpBinary(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        BinaryProfile.write(file, intervalSnapshots(), ENABLE_HISTOGRAM);
+        if (dir != null) SymbolFile.update(dir);
+    }
+
+    /**
+     * Writes the interval views of all threads as one gzipped pprof profile
+     * (see {@link Pprof}): self time, calls and, with histograms, p99 per
+     * path, with one string and function table for all threads.
+     */
+    public static void dumpPprof(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        List<TreeSnapshot> trees = intervalSnapshots();
+        try (DumpOutput out = DumpOutput.open(file, true)) {
+            Pprof.write(out, trees, ENABLE_HISTOGRAM);
         }
     }
 
+    /**
+     * Writes the interval views of all threads as folded stacks
+     * ({@code thread;frame;frame self_ns} per line) into one file, for
+     * {@code flamegraph.pl} and similar tools; gzipped with {@code dumpGzip}.
+     */
+    public static void dumpFolded(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        List<TreeSnapshot> trees = intervalSnapshots();
+        try (DumpOutput out = DumpOutput.open(TreeWriter.withGzip(file, DUMP_GZIP), DUMP_GZIP)) {
+            TreeWriter.folded(out, trees);
+        }
+    }
+
+    /**
+     * Writes one CSV row per method, over all paths and threads of the
+     * interval views (see {@link MethodRollup}): calls, self and inclusive
+     * time, self percentiles and, with {@code metrics=inclusive}, inclusive
+     * percentiles; heaviest self time first. Gzipped with {@code dumpGzip}.
+     */
+    public static void dumpMethods(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        MethodRollup rollup = MethodRollup.of(intervalSnapshots());
+        try (DumpOutput out = DumpOutput.open(TreeWriter.withGzip(file, DUMP_GZIP), DUMP_GZIP)) {
+            rollup.write(out);
+        }
+    }
+
+    /**
+     * Writes the calls recorded by {@code slowThreshold} since the last reset
+     * as a Chrome trace event file (see {@link SlowCalls}): one track per
+     * thread, one event per slow call, with its stack.
+     */
+    public static void dumpSlowCalls(Path file) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir != null) Files.createDirectories(dir);
+        List<SlowCalls.Owned> rings = new ArrayList<>();
+        synchronized (SNAPSHOT_LOCK) {
+            reclaimDeadThreads();
+            for (State s : STATES.values()) {
+                SlowCalls.Ring r = s.slow;
+                if (r != null) rings.add(new SlowCalls.Owned(s.threadName, s.tid, r));
+            }
+            rings.addAll(SlowCalls.exited());
+        }
+        try (PrintWriter w = new PrintWriter(Files.newBufferedWriter(file))) {
+            SlowCalls.writeTrace(w, rings);
+        }
+    }
+
+    /**
+     * Starts a new interval for every thread. Nothing owned by the profiled
+     * threads is written: the current tree is captured as the baseline and
+     * later dumps report only what accumulated after it.
+     */
     public static void resetAll() {
+        synchronized (SNAPSHOT_LOCK) {
+            reclaimDeadThreads();
+            AGGREGATES.clear();
+            SlowCalls.reset();
+            long epoch = ++EPOCH;
+            for (State s : STATES.values()) {
+                s.baseline = TreeSnapshot.capture(s, epoch);
+            }
+        }
+    }
+
+    /**
+     * One consistent interval view (since the last reset) per live thread,
+     * followed by one per aggregate of reclaimed threads.
+     */
+    static List<TreeSnapshot> intervalSnapshots() {
+        synchronized (SNAPSHOT_LOCK) {
+            reclaimDeadThreads();
+            long epoch = ++EPOCH;
+            ArrayList<TreeSnapshot> out = new ArrayList<>(STATES.size() + AGGREGATES.size());
+            for (State s : STATES.values()) {
+                out.add(TreeSnapshot.capture(s, epoch).minus(s.baseline));
+            }
+            out.addAll(AGGREGATES.values());
+            return out;
+        }
+    }
+
+    // From now on, remember what tickSnapshots() has not reported yet.
+    static void startTicking() {
+        TICKING = true;
+    }
+
+    /**
+     * For {@link IntervalExporter}: per live thread, what accumulated since the
+     * previous tick, then the same for threads reclaimed in between. Tick
+     * baselines are separate from {@link #resetAll()} ones, so neither disturbs
+     * the other. Threads with no calls in the interval are left out.
+     */
+    static List<TreeSnapshot> tickSnapshots() {
+        synchronized (SNAPSHOT_LOCK) {
+            reclaimDeadThreads();
+            long epoch = ++EPOCH;
+            ArrayList<TreeSnapshot> out = new ArrayList<>();
+            for (State s : STATES.values()) {
+                TreeSnapshot cur = TreeSnapshot.capture(s, epoch);
+                TreeSnapshot delta = cur.minus(s.tickBaseline);
+                s.tickBaseline = cur;
+                if (delta.hasCalls()) out.add(delta);
+            }
+            for (TreeSnapshot t : TICK_AGGREGATES.values()) {
+                if (t.hasCalls()) out.add(t);
+            }
+            TICK_AGGREGATES.clear();
+            return out;
+        }
+    }
+
+    // Caller holds SNAPSHOT_LOCK. A terminated thread's last writes are visible
+    // once isAlive() has returned false, so its tree can be read plainly.
+    private static void reclaimDeadThreads() {
+        if (!RECLAIM) return;
+        for (Iterator<State> it = STATES.values().iterator(); it.hasNext(); ) {
+            State s = it.next();
+            if (s.isAlive()) continue;
+            it.remove();
+
+            String key = (AGGREGATE_BY_GROUP ? s.groupName : maskDigits(s.threadName)) + Grouping.EXITED_SUFFIX;
+            Pauses.settleAll(s);
+            TreeSnapshot last = TreeSnapshot.capture(s, EPOCH);
+            LiveVisitor w = WATCHER;
+            if (w != null) w.exited(last);
+            AGGREGATES.put(key, TreeSnapshot.merge(AGGREGATES.get(key), last.minus(s.baseline), key, -1L));
+            if (TICKING) {
+                TICK_AGGREGATES.put(key, TreeSnapshot.merge(TICK_AGGREGATES.get(key), last.minus(s.tickBaseline), key, -1L));
+            }
+            releaseHistograms(s);
+            Governance.released(s);
+            SlowCalls.keepExited(s.threadName, s.tid, s.slow);
+            s.releaseStacks();
+        }
+    }
+
+    private static void releaseHistograms(State s) {
+        if (NodeHistogram.budget() <= 0) return;
+        if (s.tree != null) {
+            s.tree.releaseHistograms();
+            return;
+        }
+        ArrayDeque<Node> todo = new ArrayDeque<>();
+        todo.push(s.root);
+        while (!todo.isEmpty()) {
+            Node n = todo.pop();
+            for (int i = 0; i < n.childCount; i++) todo.push(n.childNode[i]);
+            NodeHistogram.release(n.hist);
+            NodeHistogram.release(n.cpuHist);
+            NodeHistogram.release(n.allocHist);
+            NodeHistogram.release(n.inclHist);
+            NodeHistogram.release(n.pausedHist);
+        }
+    }
+
+    /**
+     * Adds up, per methodId below {@code calls.length}, calls and overhead-corrected
+     * self time over all live trees, and flags methods seen calling instrumented
+     * methods. Plain racy reads of other threads' counters: fine for heuristics
+     * such as {@link Adaptive}, never used for dumps.
+     */
+    static void sumByMethod(long[] calls, long[] selfNs, boolean[] hasCallees) {
+        ArrayDeque<Node> todo = new ArrayDeque<>();
         for (State s : STATES.values()) {
-            s.root.resetSubtree();
-            s.depth = 0;
+            if (s.tree != null) {
+                sumByMethod(s.tree, calls, selfNs, hasCallees);
+                continue;
+            }
+            todo.push(s.root);
+            while (!todo.isEmpty()) {
+                Node n = todo.pop();
+                int count = n.publishedChildCount();
+                Node[] children = n.childNode;
+                for (int i = 0; i < count; i++) todo.push(children[i]);
+                int mid = n.methodId;
+                if (n == s.root || mid < 0 || mid >= calls.length) continue;
+                calls[mid] += n.calls;
+                selfNs[mid] += n.totalSelfNs - n.overheadNs;
+                if (count > 0) hasCallees[mid] = true;
+            }
+        }
+    }
+
+    private static void sumByMethod(ArrayTree t, long[] calls, long[] selfNs, boolean[] hasCallees) {
+        int n = t.publishedSize();
+        int[] parent = t.parent, methodId = t.methodId;
+        long[] c = t.calls, self = t.selfNs, overhead = t.overheadNs;
+        for (int i = 1; i < n; i++) {
+            int p = parent[i];
+            if (p > 0 && methodId[p] >= 0 && methodId[p] < calls.length) hasCallees[methodId[p]] = true;
+            int mid = methodId[i];
+            if (mid < 0 || mid >= calls.length) continue;
+            calls[mid] += c[i];
+            selfNs[mid] += self[i] - overhead[i];
+        }
+    }
+
+    /**
+     * Sees the live trees through {@link #walkLive}, and the last tree of
+     * every reclaimed thread. Called under the snapshot lock only.
+     */
+    interface LiveVisitor {
+        /** Before the first node of a walk. */
+        void begin();
+
+        /**
+         * One node, parents before children, with overhead-corrected self time.
+         * Returns the token its children get as {@code parentToken}; the
+         * root's children get 0.
+         */
+        int node(int parentToken, int methodId, long calls, long selfNs, NodeHistogram hist);
+
+        /** After the last node of a walk. */
+        void end();
+
+        /** Final tree, since thread start, of a thread that was just reclaimed. */
+        void exited(TreeSnapshot last);
+    }
+
+    private static volatile LiveVisitor WATCHER;
+
+    // Set once, before the first walk.
+    static void watch(LiveVisitor v) {
+        WATCHER = v;
+    }
+
+    /**
+     * Walks every live tree under the snapshot lock, after reclaiming dead
+     * threads, so the watcher sees each thread either live or exited, never
+     * both in one walk. Racy reads like {@link #sumByMethod}: counters may be
+     * a call apart from each other, never torn. For monitoring; dumps go
+     * through snapshots.
+     */
+    static void walkLive(LiveVisitor v) {
+        synchronized (SNAPSHOT_LOCK) {
+            reclaimDeadThreads();
+            v.begin();
+            ArrayDeque<Node> todo = new ArrayDeque<>();
+            int[] tokens = new int[64];
+            for (State s : STATES.values()) {
+                if (s.tree != null) {
+                    tokens = walkLive(s.tree, v, tokens);
+                    continue;
+                }
+                int sp = 0;
+                todo.push(s.root);
+                tokens[sp++] = 0;
+                while (!todo.isEmpty()) {
+                    Node n = todo.pop();
+                    int token = tokens[--sp];
+                    if (n != s.root) {
+                        token = v.node(token, n.methodId, n.calls, n.totalSelfNs - n.overheadNs, n.hist);
+                    }
+                    int count = n.publishedChildCount();
+                    Node[] children = n.childNode;
+                    if (sp + count > tokens.length) tokens = Arrays.copyOf(tokens, Math.max(tokens.length << 1, sp + count));
+                    for (int i = 0; i < count; i++) {
+                        todo.push(children[i]);
+                        tokens[sp++] = token;
+                    }
+                }
+            }
+            v.end();
         }
     }
 
-    private static String sanitize(String name) {
+    // tokens: scratch, returned grown
+    private static int[] walkLive(ArrayTree t, LiveVisitor v, int[] tokens) {
+        int n = t.publishedSize();
+        int[] parent = t.parent, methodId = t.methodId;
+        long[] c = t.calls, self = t.selfNs, overhead = t.overheadNs;
+        if (tokens.length < n) tokens = new int[Math.max(n, tokens.length << 1)];
+        tokens[0] = 0;
+        for (int i = 1; i < n; i++) {
+            tokens[i] = v.node(tokens[parent[i]], methodId[i], c[i], self[i] - overhead[i], t.histogram(i));
+        }
+        return tokens;
+    }
+
+    static String maskDigits(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= '0' && c <= '9') {
+                sb.append('*');
+                while (i + 1 < name.length() && Character.isDigit(name.charAt(i + 1))) i++;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    static String sanitize(String name) {
         StringBuilder sb = new StringBuilder(name.length());
         for (int i = 0; i < name.length(); i++) {
             char c = name.charAt(i);
@@ -118,57 +949,157 @@ public final class Profiler {
 
     // ---------------- state / tree ----------------
 
-    static final class State {
+    // Public only so that woven code can carry it from enter to exit advice; opaque otherwise.
+    public static final class State {
         final String threadName;
+        final String groupName;
         final long tid;
+        private final WeakReference<Thread> thread; // weak: exited (virtual) threads stay collectable
 
         int depth = 0;
 
-        Node[] stackNode = new Node[256];
-        long[] stackStartNs = new long[256];
-        long[] stackChildNs = new long[256];
+        // Sized lazily: most threads, and nearly all virtual threads, never get deep.
+        Node[] stackNode;
+        int[] stackIndex;
+        long[] stackStartNs;
+        long[] stackChildNs;
+        int[] stackChildCalls;
+        long[] stackCpuStart, stackCpuChild;     // null unless metrics=cpu
+        long[] stackAllocStart, stackAllocChild; // null unless metrics=alloc
+
+        // Nodes added to the tree under governance, see Governance; owner only.
+        long nodes;
+
+        // Exactly one of them: the node tree, or with tree=arrays the array tree.
+        final Node root;
+        final ArrayTree tree;
 
-        final Node root = new Node(0);
+        // Slow-call records, created on the first one; written by the owner only.
+        SlowCalls.Ring slow;
+
+        // Calls waiting for pause notifications, see Pauses; created on the first one.
+        Pauses.Pending pending;
+
+        // Captured by resetAll() and by interval ticks, read and written under SNAPSHOT_LOCK only.
+        TreeSnapshot baseline;
+        TreeSnapshot tickBaseline;
+
+        State(Thread t) {
+            this.threadName = t.getName();
+            ThreadGroup g = t.getThreadGroup();
+            this.groupName = (g == null) ? "none" : g.getName();
+            this.tid = t.getId();
+            this.thread = new WeakReference<>(t);
+            this.root = ARRAY_TREE ? null : new Node(0, null);
+            this.tree = ARRAY_TREE ? new ArrayTree() : null;
+            useStacks(StackPool.take(StackPool.INITIAL_CAPACITY));
+        }
 
-        State(String threadName, long tid) {
-            this.threadName = threadName;
-            this.tid = tid;
+        boolean isAlive() {
+            Thread t = thread.get();
+            return t != null && t.isAlive();
         }
 
         void growStacks() {
-            int newCap = stackNode.length << 1;
-            stackNode = Arrays.copyOf(stackNode, newCap);
-            stackStartNs = Arrays.copyOf(stackStartNs, newCap);
-            stackChildNs = Arrays.copyOf(stackChildNs, newCap);
+            int len = stackNode.length;
+            StackPool.Frames old = frames();
+            StackPool.Frames f = StackPool.take(len << 1);
+            System.arraycopy(stackNode, 0, f.node, 0, len);
+            System.arraycopy(stackIndex, 0, f.index, 0, len);
+            System.arraycopy(stackStartNs, 0, f.startNs, 0, len);
+            System.arraycopy(stackChildNs, 0, f.childNs, 0, len);
+            System.arraycopy(stackChildCalls, 0, f.childCalls, 0, len);
+            if (stackCpuStart != null) {
+                System.arraycopy(stackCpuStart, 0, f.cpuStart, 0, len);
+                System.arraycopy(stackCpuChild, 0, f.cpuChild, 0, len);
+            }
+            if (stackAllocStart != null) {
+                System.arraycopy(stackAllocStart, 0, f.allocStart, 0, len);
+                System.arraycopy(stackAllocChild, 0, f.allocChild, 0, len);
+            }
+            useStacks(f);
+            StackPool.give(old);
+        }
+
+        // Only once the owning thread has exited.
+        void releaseStacks() {
+            StackPool.give(frames());
+        }
+
+        private StackPool.Frames frames() {
+            return new StackPool.Frames(stackNode, stackIndex, stackStartNs, stackChildNs, stackChildCalls,
+                    stackCpuStart, stackCpuChild, stackAllocStart, stackAllocChild);
+        }
+
+        private void useStacks(StackPool.Frames f) {
+            stackNode = f.node;
+            stackIndex = f.index;
+            stackStartNs = f.startNs;
+            stackChildNs = f.childNs;
+            stackChildCalls = f.childCalls;
+            stackCpuStart = f.cpuStart;
+            stackCpuChild = f.cpuChild;
+            stackAllocStart = f.allocStart;
+            stackAllocChild = f.allocChild;
         }
     }
 
     // A node represents a unique call-path element: (parent, methodId).
+    // Accumulators are monotonic and written by the owning thread only.
     static final class Node {
+        private static final VarHandle CHILD_COUNT;
+        static {
+            try {
+                CHILD_COUNT = MethodHandles.lookup().findVarHandle(Node.class, "childCount", int.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
         final int methodId;
+        final Node parent; // null for the root
 
-        long totalSelfNs = 0;
-        Histogram hist; // nullable
+        long calls = 0;
+        long totalSelfNs = 0; // raw, includes calibrated overhead
+        long overheadNs = 0;  // part of totalSelfNs attributed to instrumentation
+        // Overhead-corrected self time, see NodeHistogram: null until allocated,
+        // DROPPED for good once the budget keeper took it. Allocated by the
+        // owner, dropped by the keeper; volatile so snapshots see it fully constructed.
+        volatile NodeHistogram hist;
+        long callsAtLastScan; // budget keeper only
+
+        // Self CPU time and allocated bytes of measured calls, see Metrics.
+        long cpuNs = 0;
+        long allocBytes = 0;
+        volatile NodeHistogram cpuHist;
+        volatile NodeHistogram allocHist;
+        // Inclusive wall time of measured calls (metrics=inclusive), raw.
+        long inclNs = 0;
+        volatile NodeHistogram inclHist;
+        // Calls that entered this node while it was open (foldRecursion, see
+        // Governance), also in calls; and its frames open right now.
+        long recursions = 0;
+        int open = 0;
+        // Calls that overlapped a pause (pauses=true), also in calls; their
+        // self times go to pausedHist instead of hist.
+        long pausedCalls = 0;
+        volatile NodeHistogram pausedHist;
 
         // Children stored in parallel arrays (fast for small branching factor)
         int[] childMethodId = new int[4];
         Node[] childNode = new Node[4];
-        int childCount = 0;
+        int childCount = 0; // published with release so snapshots can walk the tree
 
-        Node(int methodId) {
+        Node(int methodId, Node parent) {
             this.methodId = methodId;
-            if (ENABLE_HISTOGRAM) {
-                this.hist = new Histogram(HIST_MAX_NS, HIST_SIG_DIGITS);
-            }
+            this.parent = parent;
         }
 
         Node getOrCreateChild(int mid) {
-            // linear scan is usually fastest (small childCount, contiguous memory)
-            for (int i = 0; i < childCount; i++) {
-                if (childMethodId[i] == mid) return childNode[i];
-            }
+            Node c = findChild(mid);
+            if (c != null) return c;
             // create
-            Node n = new Node(mid);
+            Node n = new Node(mid, this);
             if (childCount == childMethodId.length) {
                 int newCap = childCount << 1;
                 childMethodId = Arrays.copyOf(childMethodId, newCap);
@@ -176,85 +1107,129 @@ public final class Profiler {
             }
             childMethodId[childCount] = mid;
             childNode[childCount] = n;
-            childCount++;
+            CHILD_COUNT.setRelease(this, childCount + 1);
             return n;
         }
 
-        void resetSubtree() {
-            // iterative DFS to avoid recursion depth issues
-            ArrayDeque<Node> q = new ArrayDeque<>();
-            q.add(this);
-            while (!q.isEmpty()) {
-                Node n = q.removeLast();
-                n.totalSelfNs = 0;
-                if (ENABLE_HISTOGRAM && n.hist != null) {
-                    n.hist.reset();
+        // Owner only; null if there is none.
+        Node findChild(int mid) {
+            // linear scan is usually fastest (small childCount, contiguous memory)
+            for (int i = 0; i < childCount; i++) {
+                if (childMethodId[i] == mid) return childNode[i];
+            }
+            return null;
+        }
+
+        // Owner only: a call kept back by Pauses, once judged; value -1 if none.
+        void settle(long value, boolean paused, boolean histogram) {
+            if (paused) pausedCalls++;
+            if (!histogram || value < 0) return;
+            NodeHistogram h = paused ? pausedHist : hist;
+            if (h == null && (h = NodeHistogram.allocate(calls)) != null) {
+                if (paused) pausedHist = h;
+                else hist = h;
+            }
+            if (h != null) h.record(value);
+        }
+
+        // Owner only, after calls was incremented; a negative amount is not measured.
+        void recordMetrics(long cpu, long alloc, long incl, boolean histogram) {
+            if (cpu >= 0) {
+                cpuNs += cpu;
+                if (histogram) {
+                    NodeHistogram h = cpuHist;
+                    if (h == null && (h = NodeHistogram.allocate(calls)) != null) cpuHist = h;
+                    if (h != null) h.record(cpu);
                 }
-                for (int i = 0; i < n.childCount; i++) {
-                    q.add(n.childNode[i]);
+            }
+            if (alloc >= 0) {
+                allocBytes += alloc;
+                if (histogram) {
+                    NodeHistogram h = allocHist;
+                    if (h == null && (h = NodeHistogram.allocate(calls)) != null) allocHist = h;
+                    if (h != null) h.record(alloc);
+                }
+            }
+            if (incl >= 0) {
+                inclNs += incl;
+                if (histogram) {
+                    NodeHistogram h = inclHist;
+                    if (h == null && (h = NodeHistogram.allocate(calls)) != null) inclHist = h;
+                    if (h != null) h.record(incl);
                 }
             }
         }
-    }
 
-    private static void recordHistogram(Histogram h, long valueNs) {
-        if (valueNs <= 0) return;
-        if (valueNs > HIST_MAX_NS) h.recordValue(HIST_MAX_NS);
-        else h.recordValue(valueNs);
+        // Budget keeper only: drops every histogram of this node, returns how many.
+        int dropHistograms() {
+            int dropped = 0;
+            NodeHistogram h = hist;
+            if (NodeHistogram.isLive(h)) { hist = NodeHistogram.DROPPED; NodeHistogram.release(h); dropped++; }
+            h = cpuHist;
+            if (NodeHistogram.isLive(h)) { cpuHist = NodeHistogram.DROPPED; NodeHistogram.release(h); dropped++; }
+            h = allocHist;
+            if (NodeHistogram.isLive(h)) { allocHist = NodeHistogram.DROPPED; NodeHistogram.release(h); dropped++; }
+            h = inclHist;
+            if (NodeHistogram.isLive(h)) { inclHist = NodeHistogram.DROPPED; NodeHistogram.release(h); dropped++; }
+            h = pausedHist;
+            if (NodeHistogram.isLive(h)) { pausedHist = NodeHistogram.DROPPED; NodeHistogram.release(h); dropped++; }
+            return dropped;
+        }
+
+        // For foreign threads: children below this count are fully visible.
+        int publishedChildCount() {
+            return (int) CHILD_COUNT.getAcquire(this);
+        }
     }
 
     // ---------------- export helpers ----------------
 
-    private static final class PathEntry {
+    static final class PathEntry {
         final int[] frames; // methodIds for the stack (excluding synthetic root)
         final int len;
         final long weight; // totalSelfNs
+        final long corrected; // totalSelfNs minus calibrated overhead
+        final long calls;
         final Histogram hist;
+        long cpu, alloc; // self CPU ns and allocated bytes, when the tree has them
+        Histogram cpuHist, allocHist;
 
-        PathEntry(int[] frames, int len, long weight, Histogram hist) {
+        PathEntry(int[] frames, int len, long weight, long corrected, long calls, Histogram hist) {
             this.frames = frames;
             this.len = len;
             this.weight = weight;
+            this.corrected = corrected;
+            this.calls = calls;
             this.hist = hist;
         }
     }
 
-    private static List<PathEntry> collectPathEntries(State s) {
-        // iterative DFS over tree, maintaining a methodId path stack
+    static List<PathEntry> collectPathEntries(TreeSnapshot t) {
+        // parents precede children, so depths resolve in one forward pass
         ArrayList<PathEntry> out = new ArrayList<>();
 
-        int[] path = new int[256];
-        int depth = 0;
-
-        // stack of iterators over children
-        ArrayDeque<IterFrame> st = new ArrayDeque<>();
-        st.push(new IterFrame(s.root, 0, false));
-
-        while (!st.isEmpty()) {
-            IterFrame f = st.peek();
-            Node n = f.node;
+        int[] depthOf = new int[t.size];
 
-            if (!f.entered) {
-                f.entered = true;
-                // push this node's methodId onto path (skip synthetic root methodId=0)
-                if (n.methodId != 0) {
-                    if (depth == path.length) path = Arrays.copyOf(path, depth << 1);
-                    path[depth++] = n.methodId;
+        for (int i = 1; i < t.size; i++) {
+            int depth = depthOf[t.parent[i]] + 1;
+            depthOf[i] = depth;
 
-                    if (n.totalSelfNs > 0) {
-                        int[] copy = Arrays.copyOf(path, depth);
-                        out.add(new PathEntry(copy, depth, n.totalSelfNs, n.hist));
-                    }
+            if (t.selfNs[i] > 0) {
+                int[] frames = new int[depth];
+                for (int n = i, k = depth - 1; k >= 0; n = t.parent[n], k--) {
+                    frames[k] = t.methodId[n];
                 }
-            }
-
-            if (f.childIndex < n.childCount) {
-                Node child = n.childNode[f.childIndex++];
-                st.push(new IterFrame(child, 0, false));
-            } else {
-                st.pop();
-                // pop path on leaving node (if not root)
-                if (n.methodId != 0) depth--;
+                long corrected = t.selfNs[i] - t.overheadNs[i];
+                PathEntry e = new PathEntry(frames, depth, t.selfNs[i], corrected, t.calls[i], t.hist[i]);
+                if (t.cpuNs != null) {
+                    e.cpu = t.cpuNs[i];
+                    e.cpuHist = t.cpuHist[i];
+                }
+                if (t.allocBytes != null) {
+                    e.alloc = t.allocBytes[i];
+                    e.allocHist = t.allocHist[i];
+                }
+                out.add(e);
             }
         }
 
@@ -263,109 +1238,17 @@ public final class Profiler {
         return out;
     }
 
-    private static final class IterFrame {
-        final Node node;
-        int childIndex;
-        boolean entered;
-        IterFrame(Node node, int childIndex, boolean entered) {
-            this.node = node;
-            this.childIndex = childIndex;
-            this.entered = entered;
-        }
+    static String percentilesHeader(int metrics, boolean recursions, boolean pauses) {
+        String header = PERCENTILES_HEADER;
+        if ((metrics & Metrics.CPU) != 0) header += CPU_PERCENTILES_HEADER;
+        if ((metrics & Metrics.ALLOC) != 0) header += ALLOC_PERCENTILES_HEADER;
+        if ((metrics & Metrics.INCLUSIVE) != 0) header += INCL_PERCENTILES_HEADER;
+        if (recursions) header += RECURSIONS_HEADER;
+        if (pauses) header += PAUSES_HEADER;
+        return header;
     }
 
-    private static void dumpTreeToPercentilesCsv(PrintWriter w, State s) {
-        if (!ENABLE_HISTOGRAM) {
-            w.println("Histograms disabled.");
-            return;
-        }
-        List<PathEntry> entries = collectPathEntries(s);
-        for (PathEntry e : entries) {
-            String stack = toCollapsedStack(e.frames, e.len);
-            Histogram h = e.hist;
-            long p50 = h.getValueAtPercentile(50.0);
-            long p90 = h.getValueAtPercentile(90.0);
-            long p99 = h.getValueAtPercentile(99.0);
-            long p999 = h.getValueAtPercentile(99.9);
-            long p100 = h.getMaxValue();
-            long count = h.getTotalCount();
-
-            w.print(stack); w.print(',');
-            w.print(p50); w.print(',');
-            w.print(p90); w.print(',');
-            w.print(p99); w.print(',');
-            w.print(p999); w.print(',');
-            w.print(p100); w.print(',');
-            w.println(count);
-        }
-    }
-
-    private static void dumpTreeToSpeedscope(PrintWriter w, State s, String profileName) {
-        List<PathEntry> entries = collectPathEntries(s);
-
-        // Build frame table: methodId -> frameIndex, and frames list (names)
-        Map<Integer, Integer> midToIdx = new HashMap<>();
-        List<String> frames = new ArrayList<>();
-
-        for (PathEntry e : entries) {
-            for (int i = 0; i < e.len; i++) {
-                int mid = e.frames[i];
-                if (!midToIdx.containsKey(mid)) {
-                    midToIdx.put(mid, frames.size());
-                    frames.add(MethodRegistry.nameFor(mid));
-                }
-            }
-        }
-
-        // JSON
-        w.println("{");
-        w.println("  \"$schema\": \"https://www.speedscope.app/file-format-schema.json\",");
-        w.println("  \"shared\": {");
-        w.println("    \"frames\": [");
-        for (int i = 0; i < frames.size(); i++) {
-            w.print("      { \"name\": \"");
-            w.print(escapeJson(frames.get(i)));
-            w.print("\" }");
-            if (i < frames.size() - 1) w.println(",");
-            else w.println();
-        }
-        w.println("    ]");
-        w.println("  },");
-        w.println("  \"profiles\": [");
-        w.println("    {");
-        w.println("      \"type\": \"sampled\",");
-        w.print("      \"name\": \""); w.print(escapeJson(profileName)); w.println("\",");
-        w.println("      \"unit\": \"nanoseconds\",");
-        w.println("      \"samples\": [");
-
-        for (int i = 0; i < entries.size(); i++) {
-            PathEntry e = entries.get(i);
-            w.print("        [");
-            for (int j = 0; j < e.len; j++) {
-                int idx = midToIdx.get(e.frames[j]);
-                w.print(idx);
-                if (j < e.len - 1) w.print(",");
-            }
-            w.print("]");
-            if (i < entries.size() - 1) w.println(",");
-            else w.println();
-        }
-
-        w.println("      ],");
-        w.println("      \"weights\": [");
-        for (int i = 0; i < entries.size(); i++) {
-            w.print("        ");
-            w.print(entries.get(i).weight);
-            if (i < entries.size() - 1) w.println(",");
-            else w.println();
-        }
-        w.println("      ]");
-        w.println("    }");
-        w.println("  ]");
-        w.println("}");
-    }
-
-    private static String toCollapsedStack(int[] frames, int len) {
+    static String toCollapsedStack(int[] frames, int len) {
         StringBuilder sb = new StringBuilder(128);
         for (int i = 0; i < len; i++) {
             if (i > 0) sb.append(';');
@@ -374,7 +1257,9 @@ public final class Profiler {
         return sb.toString();
     }
 
-    private static String escapeJson(String s) {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static String escapeJson(String s) {
         StringBuilder sb = new StringBuilder(s.length() + 16);
         for (int i = 0; i < s.length(); i++) {
             char c = s.charAt(i);
@@ -385,7 +1270,7 @@ public final class Profiler {
                 case '\r': sb.append("\\r"); break;
                 case '\t': sb.append("\\t"); break;
                 default:
-                    if (c < 32) sb.append(String.format("\\u%04x", (int) c));
+                    if (c < 32) sb.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 15]);
                     else sb.append(c);
             }
         }
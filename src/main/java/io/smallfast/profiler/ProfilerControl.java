@@ -0,0 +1,87 @@
+package io.smallfast.profiler;
+
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+
+public final class ProfilerControl implements ProfilerControlMBean {
+
+    static final String NAME = "io.smallfast.profiler:type=Profiler";
+
+    private ProfilerControl() {}
+
+    static void register() {
+        try {
+            ObjectName name = new ObjectName(NAME);
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new ProfilerControl(), name);
+            }
+        } catch (Exception e) {
+            System.err.println("[precise-profiler] could not register " + NAME + ": " + e);
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return FlameAgent.isRunning();
+    }
+
+    @Override
+    public boolean start() {
+        return FlameAgent.start();
+    }
+
+    @Override
+    public boolean stop() {
+        return FlameAgent.stop();
+    }
+
+    @Override
+    public void reset() {
+        Profiler.resetAll();
+    }
+
+    @Override
+    public String dump(String dir) throws IOException {
+        Path p = Path.of(dir).toAbsolutePath();
+        Profiler.dumpSpeedscopePerThread(p);
+        Profiler.dumpPercentilesPerThread(p);
+        return p.toString();
+    }
+
+    @Override
+    public String dumpBinary(String file) throws IOException {
+        Path p = Path.of(file).toAbsolutePath();
+        Profiler.dumpBinary(p);
+        return p.toString();
+    }
+
+    @Override
+    public String dumpPprof(String file) throws IOException {
+        Path p = Path.of(file).toAbsolutePath();
+        Profiler.dumpPprof(p);
+        return p.toString();
+    }
+
+    @Override
+    public String dumpFolded(String file) throws IOException {
+        Path p = Path.of(file).toAbsolutePath();
+        Profiler.dumpFolded(p);
+        return p.toString();
+    }
+
+    @Override
+    public String dumpMethods(String file) throws IOException {
+        Path p = Path.of(file).toAbsolutePath();
+        Profiler.dumpMethods(p);
+        return p.toString();
+    }
+
+    @Override
+    public String dumpSlowCalls(String file) throws IOException {
+        Path p = Path.of(file).toAbsolutePath();
+        Profiler.dumpSlowCalls(p);
+        return p.toString();
+    }
+}
@@ -0,0 +1,40 @@
+package io.smallfast.profiler;
+
+import java.io.IOException;
+
+/**
+ * JMX control of a loaded agent, registered as {@value ProfilerControl#NAME}.
+ * Reachable with jconsole, jmxterm, or {@code java -jar precise-profiler.jar ctl <pid> ...}.
+ */
+public interface ProfilerControlMBean {
+
+    /** Whether advice is currently woven in. */
+    boolean isRunning();
+
+    /** Weaves the advice back in after {@link #stop()}. False if already running. */
+    boolean start();
+
+    /** Retransforms every instrumented class back to its original bytecode. False if not running. */
+    boolean stop();
+
+    /** Starts a new interval, see {@link Profiler#resetAll()}. */
+    void reset();
+
+    /** Speedscope and percentile files per thread into {@code dir}; returns its absolute path. */
+    String dump(String dir) throws IOException;
+
+    /** One binary profile, see {@link Profiler#dumpBinary(java.nio.file.Path)}; returns its absolute path. */
+    String dumpBinary(String file) throws IOException;
+
+    /** One gzipped pprof profile, see {@link Profiler#dumpPprof(java.nio.file.Path)}; returns its absolute path. */
+    String dumpPprof(String file) throws IOException;
+
+    /** Folded stacks of all threads, see {@link Profiler#dumpFolded(java.nio.file.Path)}; returns its absolute path. */
+    String dumpFolded(String file) throws IOException;
+
+    /** Per-method rollup of all threads, see {@link Profiler#dumpMethods(java.nio.file.Path)}; returns its absolute path. */
+    String dumpMethods(String file) throws IOException;
+
+    /** Slow calls as a trace, see {@link Profiler#dumpSlowCalls(java.nio.file.Path)}; returns its absolute path. */
+    String dumpSlowCalls(String file) throws IOException;
+}
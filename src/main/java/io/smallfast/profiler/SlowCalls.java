@@ -0,0 +1,223 @@
+package io.smallfast.profiler;
+
+import java.io.PrintWriter;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Slow-call capture ({@code slowThreshold=}): every call whose total time
+ * reaches the threshold is recorded with its full call stack, start time and
+ * duration into a ring buffer of the calling thread, so tail latencies can be
+ * placed on a timeline next to what other threads were doing at that moment.
+ *
+ * The ring holds the last {@code slowBuffer} records of its thread and stores
+ * at most {@code slowDepth} frames of each stack, outermost first. It is
+ * allocated on the thread's first slow call, which is slow anyway; after that
+ * recording allocates nothing. Only the owning thread writes; readers use a
+ * per-slot sequence number and skip records that were overwritten while read.
+ *
+ * {@link #writeTrace} emits the Chrome trace event format, which speedscope,
+ * Perfetto and chrome://tracing all open.
+ */
+final class SlowCalls {
+
+    // Long.MAX_VALUE: off, so the hot path needs a single comparison.
+    static long THRESHOLD_NS = Long.MAX_VALUE;
+    private static int CAPACITY = 128;
+    private static int MAX_DEPTH = 128;
+
+    // Rings of reclaimed threads, newest last, so their records survive them.
+    private static final int MAX_EXITED = 64;
+    private static final ArrayDeque<Owned> EXITED = new ArrayDeque<>();
+
+    // Records starting before this (System.nanoTime) are left out, see Profiler.resetAll.
+    private static volatile long SINCE_NS = Long.MIN_VALUE;
+
+    private SlowCalls() {}
+
+    static void configure(long thresholdNs, int capacity, int maxDepth) {
+        THRESHOLD_NS = (thresholdNs > 0) ? thresholdNs : Long.MAX_VALUE;
+        CAPACITY = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        MAX_DEPTH = Math.max(1, maxDepth);
+    }
+
+    static boolean enabled() {
+        return THRESHOLD_NS != Long.MAX_VALUE;
+    }
+
+    static void reset() {
+        SINCE_NS = System.nanoTime();
+    }
+
+    // Caller holds Profiler's SNAPSHOT_LOCK.
+    static void keepExited(String threadName, long tid, Ring ring) {
+        if (ring == null) return;
+        EXITED.addLast(new Owned(threadName, tid, ring));
+        if (EXITED.size() > MAX_EXITED) EXITED.removeFirst();
+    }
+
+    // Caller holds Profiler's SNAPSHOT_LOCK.
+    static List<Owned> exited() {
+        return new ArrayList<>(EXITED);
+    }
+
+    /** A ring together with the thread it belongs to. */
+    static final class Owned {
+        final String threadName;
+        final long tid;
+        final Ring ring;
+
+        Owned(String threadName, long tid, Ring ring) {
+            this.threadName = threadName;
+            this.tid = tid;
+            this.ring = ring;
+        }
+    }
+
+    static final class Ring {
+        private static final VarHandle SEQ = MethodHandles.arrayElementVarHandle(long[].class);
+
+        private final int mask;
+        private final int maxDepth;
+        // per slot: number of the record in it plus one, 0 while it is being written
+        private final long[] seq;
+        private final long[] startNs;
+        private final long[] durationNs;
+        private final int[] methodId; // of the slow call itself
+        private final int[] depth; // full depth, frames beyond maxDepth are not stored
+        private final int[] frames; // maxDepth per slot
+        private long written;
+
+        Ring() {
+            int cap = CAPACITY;
+            this.mask = cap - 1;
+            this.maxDepth = MAX_DEPTH;
+            this.seq = new long[cap];
+            this.startNs = new long[cap];
+            this.durationNs = new long[cap];
+            this.methodId = new int[cap];
+            this.depth = new int[cap];
+            this.frames = new int[cap * maxDepth];
+        }
+
+        /** Owner only: the call in frame {@code d} of {@code s}, with frames 0..d as its stack. */
+        void record(Profiler.State s, int d, long start, long duration) {
+            int slot = (int) (written & mask);
+            SEQ.setOpaque(seq, slot, 0L);
+            VarHandle.storeStoreFence();
+            startNs[slot] = start;
+            durationNs[slot] = duration;
+            depth[slot] = d + 1;
+            int base = slot * maxDepth;
+            int n = Math.min(d + 1, maxDepth);
+            ArrayTree tree = s.tree;
+            if (tree != null) {
+                for (int i = 0; i < n; i++) frames[base + i] = tree.methodId[s.stackIndex[i]];
+                methodId[slot] = tree.methodId[s.stackIndex[d]];
+            } else {
+                for (int i = 0; i < n; i++) frames[base + i] = s.stackNode[i].methodId;
+                methodId[slot] = s.stackNode[d].methodId;
+            }
+            SEQ.setRelease(seq, slot, ++written);
+        }
+
+        // Consistent copies of the records in the ring, oldest first.
+        List<Record> read(long sinceNs) {
+            List<Record> out = new ArrayList<>();
+            for (int slot = 0; slot <= mask; slot++) {
+                long s1 = (long) SEQ.getAcquire(seq, slot);
+                if (s1 == 0) continue;
+                long start = startNs[slot];
+                long duration = durationNs[slot];
+                int mid = methodId[slot];
+                int d = depth[slot];
+                int[] f = Arrays.copyOfRange(frames, slot * maxDepth, slot * maxDepth + Math.min(d, maxDepth));
+                VarHandle.loadLoadFence();
+                if ((long) SEQ.getOpaque(seq, slot) != s1 || start < sinceNs) continue;
+                out.add(new Record(s1, start, duration, mid, d, f));
+            }
+            out.sort((a, b) -> Long.compare(a.number, b.number));
+            return out;
+        }
+    }
+
+    static final class Record {
+        final long number;
+        final long startNs;
+        final long durationNs;
+        final int methodId;
+        final int depth;
+        final int[] frames; // outermost first, at most slowDepth
+
+        Record(long number, long startNs, long durationNs, int methodId, int depth, int[] frames) {
+            this.number = number;
+            this.startNs = startNs;
+            this.durationNs = durationNs;
+            this.methodId = methodId;
+            this.depth = depth;
+            this.frames = frames;
+        }
+    }
+
+    /**
+     * One complete ("X") event per record, on the track of its thread, named
+     * after the slow method; the stack (outermost first, {@code ;}-separated)
+     * and its depth are event arguments. Timestamps are wall-clock microseconds.
+     */
+    static void writeTrace(PrintWriter w, List<Owned> rings) {
+        long sinceNs = SINCE_NS;
+        // nanoTime has no epoch: anchor it to the wall clock once, for all records
+        long wallOffsetNs = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+
+        w.println("{");
+        w.println("  \"displayTimeUnit\": \"ns\",");
+        w.println("  \"traceEvents\": [");
+        boolean first = true;
+        for (Owned o : rings) {
+            List<Record> records = o.ring.read(sinceNs);
+            if (records.isEmpty()) continue;
+
+            if (!first) w.println(",");
+            first = false;
+            w.print("    {\"ph\": \"M\", \"name\": \"thread_name\", \"pid\": 1, \"tid\": ");
+            w.print(o.tid);
+            w.print(", \"args\": {\"name\": \"");
+            w.print(Profiler.escapeJson(o.threadName));
+            w.print("\"}}");
+
+            for (Record r : records) {
+                w.println(",");
+                w.print("    {\"ph\": \"X\", \"cat\": \"slow\", \"name\": \"");
+                w.print(Profiler.escapeJson(MethodRegistry.nameFor(r.methodId)));
+                w.print("\", \"pid\": 1, \"tid\": ");
+                w.print(o.tid);
+                w.print(", \"ts\": ");
+                w.print(micros(r.startNs + wallOffsetNs));
+                w.print(", \"dur\": ");
+                w.print(micros(r.durationNs));
+                w.print(", \"args\": {\"depth\": ");
+                w.print(r.depth);
+                w.print(", \"stack\": \"");
+                for (int i = 0; i < r.frames.length; i++) {
+                    if (i > 0) w.print(';');
+                    w.print(Profiler.escapeJson(MethodRegistry.nameFor(r.frames[i])));
+                }
+                if (r.depth > r.frames.length) w.print(";...");
+                w.print("\"}}");
+            }
+        }
+        w.println();
+        w.println("  ]");
+        w.println("}");
+    }
+
+    // nanoseconds as microseconds with three decimals
+    private static String micros(long ns) {
+        long frac = ns % 1000;
+        return (ns / 1000) + "." + (frac < 10 ? "00" : frac < 100 ? "0" : "") + frac;
+    }
+}
@@ -0,0 +1,98 @@
+package io.smallfast.profiler;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recycles the per-thread frame stacks of {@link Profiler.State}: stacks a
+ * thread outgrew, and stacks of threads that were reclaimed. Only touched when
+ * a stack grows or a dead thread is reclaimed, never per call.
+ *
+ * Stacks start small and double, so capacities are powers of two and each has
+ * its own bounded free list.
+ */
+final class StackPool {
+
+    static final int INITIAL_CAPACITY = 16;
+
+    // below this, allocating is cheaper than pooling
+    private static final int MIN_POOLED_CAPACITY = 64;
+    private static final int MAX_PER_CAPACITY = 64;
+
+    private static final ConcurrentLinkedQueue<Frames>[] FREE = newQueues();
+    private static final AtomicInteger[] FREE_COUNT = newCounters();
+
+    private StackPool() {}
+
+    // One set of parallel frame arrays, all of the same capacity.
+    static final class Frames {
+        final Profiler.Node[] node;
+        final int[] index; // node indices, with tree=arrays
+        final long[] startNs;
+        final long[] childNs;
+        final int[] childCalls;
+        // Metrics counters, see Metrics; null while that metric is off. A start
+        // of -1 marks a frame that is not measured.
+        final long[] cpuStart, cpuChild;
+        final long[] allocStart, allocChild;
+
+        Frames(int capacity) {
+            this(new Profiler.Node[capacity], new int[capacity], new long[capacity], new long[capacity], new int[capacity],
+                    Metrics.cpu() ? new long[capacity] : null, Metrics.cpu() ? new long[capacity] : null,
+                    Metrics.alloc() ? new long[capacity] : null, Metrics.alloc() ? new long[capacity] : null);
+        }
+
+        Frames(Profiler.Node[] node, int[] index, long[] startNs, long[] childNs, int[] childCalls,
+               long[] cpuStart, long[] cpuChild, long[] allocStart, long[] allocChild) {
+            this.node = node;
+            this.index = index;
+            this.startNs = startNs;
+            this.childNs = childNs;
+            this.childCalls = childCalls;
+            this.cpuStart = cpuStart;
+            this.cpuChild = cpuChild;
+            this.allocStart = allocStart;
+            this.allocChild = allocChild;
+        }
+    }
+
+    /** Frames of exactly {@code capacity} slots, recycled if available. */
+    static Frames take(int capacity) {
+        if (capacity >= MIN_POOLED_CAPACITY) {
+            int slot = Integer.numberOfTrailingZeros(capacity);
+            Frames f = FREE[slot].poll();
+            if (f != null) {
+                FREE_COUNT[slot].decrementAndGet();
+                return f;
+            }
+        }
+        return new Frames(capacity);
+    }
+
+    /** Hands stacks back; the caller must not use them afterwards. */
+    static void give(Frames f) {
+        int capacity = f.node.length;
+        if (capacity < MIN_POOLED_CAPACITY || Integer.bitCount(capacity) != 1) return;
+        int slot = Integer.numberOfTrailingZeros(capacity);
+        if (FREE_COUNT[slot].incrementAndGet() > MAX_PER_CAPACITY) {
+            FREE_COUNT[slot].decrementAndGet();
+            return;
+        }
+        Arrays.fill(f.node, null); // don't keep dead trees reachable
+        FREE[slot].offer(f);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentLinkedQueue<Frames>[] newQueues() {
+        ConcurrentLinkedQueue<Frames>[] q = (ConcurrentLinkedQueue<Frames>[]) new ConcurrentLinkedQueue<?>[32];
+        for (int i = 0; i < q.length; i++) q[i] = new ConcurrentLinkedQueue<>();
+        return q;
+    }
+
+    private static AtomicInteger[] newCounters() {
+        AtomicInteger[] c = new AtomicInteger[32];
+        for (int i = 0; i < c.length; i++) c[i] = new AtomicInteger();
+        return c;
+    }
+}
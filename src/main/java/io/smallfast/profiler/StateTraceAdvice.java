@@ -0,0 +1,24 @@
+package io.smallfast.profiler;
+
+import net.bytebuddy.asm.Advice;
+
+/**
+ * Like {@link TraceAdvice}, but the thread's {@link Profiler.State} is looked up
+ * once on enter and passed to exit, together with the depth the call was pushed at.
+ */
+public final class StateTraceAdvice {
+
+    @Advice.OnMethodEnter
+    public static Profiler.State onEnter(@MethodId int methodId,
+                                         @Advice.Local("frame") int frame) {
+        Profiler.State s = Profiler.enterState(methodId);
+        frame = Profiler.topFrame(s);
+        return s;
+    }
+
+    @Advice.OnMethodExit(onThrowable = Throwable.class)
+    public static void onExit(@Advice.Enter Profiler.State s,
+                              @Advice.Local("frame") int frame) {
+        Profiler.exit(s, frame);
+    }
+}
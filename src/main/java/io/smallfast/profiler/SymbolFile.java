@@ -0,0 +1,97 @@
+package io.smallfast.profiler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * {@value #NAME} next to the binary dumps: one line per method,
+ * {@code <stable id in hex> <name>}, see {@link MethodRegistry}.
+ *
+ * The file is only ever appended to, by every run dumping into the
+ * directory, and holds each stable id once; so the ids of dumps from many
+ * runs and hosts copied into one place resolve from one file. Per file, a
+ * run remembers up to which method id it has written, so a dump appends only
+ * the methods that appeared since the last one.
+ *
+ * Runs in other JVMs may append at the same time: each update holds a lock
+ * on the whole file while it reads what others appended since its last one
+ * and appends its own lines.
+ */
+final class SymbolFile {
+
+    static final String NAME = "symbols.txt";
+
+    private static final Map<Path, Written> FILES = new HashMap<>();
+
+    private SymbolFile() {}
+
+    private static final class Written {
+        final Set<Long> stable = new HashSet<>();
+        int next = 1;   // method ids below it are written
+        long read = 0L; // bytes of the file already read
+    }
+
+    /** Appends the methods not yet in {@code dir}'s symbol file. */
+    static synchronized void update(Path dir) throws IOException {
+        Path file = dir.toAbsolutePath().resolve(NAME);
+        Written w = FILES.computeIfAbsent(file, f -> new Written());
+        int limit = MethodRegistry.idLimit();
+        if (w.next >= limit) return;
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock = ch.lock();
+            try {
+                read(ch, w);
+                StringBuilder out = new StringBuilder();
+                for (int id = w.next; id < limit; id++) {
+                    long stable = MethodRegistry.stableId(id);
+                    if (!w.stable.add(stable)) continue;
+                    String name = MethodRegistry.nameFor(id);
+                    if (name.endsWith(Adaptive.MARK)) name = name.substring(0, name.length() - Adaptive.MARK.length());
+                    out.append(Long.toHexString(stable)).append(' ').append(name).append('\n');
+                }
+                long at = ch.size();
+                if (at > w.read) out.insert(0, '\n'); // end a line cut short by a crashed run
+                ByteBuffer bytes = UTF_8.encode(out.toString());
+                while (bytes.hasRemaining()) at += ch.write(bytes, at);
+                w.read = at;
+            } finally {
+                lock.release();
+            }
+        }
+        w.next = limit;
+    }
+
+    // Ids of the lines appended since w.read by other runs; a last line
+    // without its newline is left out.
+    private static void read(FileChannel ch, Written w) throws IOException {
+        long size = ch.size();
+        if (size <= w.read) return;
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(size - w.read, Integer.MAX_VALUE));
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, w.read + buf.position()) < 0) break;
+        }
+        byte[] b = buf.array();
+        int line = 0;
+        for (int i = 0; i < buf.position(); i++) {
+            if (b[i] != '\n') continue;
+            int space = line;
+            while (space < i && b[space] != ' ') space++;
+            if (space > line && space < i) {
+                w.stable.add(Long.parseUnsignedLong(new String(b, line, space - line, UTF_8), 16));
+            }
+            line = i + 1;
+        }
+        w.read += line;
+    }
+}
@@ -0,0 +1,624 @@
+package io.smallfast.profiler;
+
+import org.HdrHistogram.Histogram;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+/**
+ * Immutable-after-capture copy of one call tree as parallel arrays. Parents
+ * always come first ({@code parent[i] < i}); index 0 is the synthetic root.
+ *
+ * The live tree is never reset or swapped: accumulators only ever grow and
+ * the owning thread is never asked to cooperate. An interval view is the
+ * difference of two snapshots taken at different epochs, see {@link #minus}.
+ */
+final class TreeSnapshot {
+
+    final String threadName;
+    final long tid;
+    final long epoch;
+    final long capturedAtNs;
+    final int metrics; // Metrics.CPU | Metrics.ALLOC | Metrics.INCLUSIVE: which of the metric columns exist
+
+    int size;
+    int[] parent;
+    int[] methodId;
+    long[] calls;
+    long[] selfNs;
+    long[] overheadNs;
+    Histogram[] hist; // entries nullable
+    // Self CPU time and allocated bytes, see Metrics; null unless in metrics.
+    long[] cpuNs;
+    long[] allocBytes;
+    Histogram[] cpuHist;
+    Histogram[] allocHist;
+    // Inclusive wall time, see Metrics; null unless in metrics.
+    long[] inclNs;
+    Histogram[] inclHist;
+    // Calls folded into the node by foldRecursion, see Governance; null unless on.
+    long[] recursions;
+    // Calls that overlapped a pause and their self times, which are not in
+    // hist, see Pauses; null unless on. Both or neither.
+    long[] pausedCalls;
+    Histogram[] pausedHist;
+
+    TreeSnapshot(String threadName, long tid, long epoch, long capturedAtNs, int capacity) {
+        this(threadName, tid, epoch, capturedAtNs, capacity, 0);
+    }
+
+    TreeSnapshot(String threadName, long tid, long epoch, long capturedAtNs, int capacity, int metrics) {
+        this.threadName = threadName;
+        this.tid = tid;
+        this.epoch = epoch;
+        this.capturedAtNs = capturedAtNs;
+        this.metrics = metrics;
+        this.parent = new int[capacity];
+        this.methodId = new int[capacity];
+        this.calls = new long[capacity];
+        this.selfNs = new long[capacity];
+        this.overheadNs = new long[capacity];
+        this.hist = new Histogram[capacity];
+        if ((metrics & Metrics.CPU) != 0) {
+            this.cpuNs = new long[capacity];
+            this.cpuHist = new Histogram[capacity];
+        }
+        if ((metrics & Metrics.ALLOC) != 0) {
+            this.allocBytes = new long[capacity];
+            this.allocHist = new Histogram[capacity];
+        }
+        if ((metrics & Metrics.INCLUSIVE) != 0) {
+            this.inclNs = new long[capacity];
+            this.inclHist = new Histogram[capacity];
+        }
+    }
+
+    /** Profile name: thread name and id, or just the name for aggregates (tid < 0). */
+    String label() {
+        return (tid < 0) ? threadName : threadName + "-" + tid;
+    }
+
+    /** Whether any node was called, i.e. the interval this view covers saw any activity. */
+    boolean hasCalls() {
+        for (int i = 1; i < size; i++) {
+            if (calls[i] != 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Copies the tree of {@code s} without stopping its owner.
+     *
+     * Tree shape is safe to walk concurrently because children are published
+     * with a release store of {@code childCount}. Self times are single-writer
+     * longs, and histograms are copied with {@link NodeHistogram#snapshot()},
+     * which recomputes totals from the counts it observed, so every copy is
+     * internally consistent even while the owner keeps recording. An
+     * {@link ArrayTree} is already laid out like a snapshot and copied in bulk.
+     */
+    static TreeSnapshot capture(Profiler.State s, long epoch) {
+        Pauses.Pending pending = s.pending;
+        if (s.tree != null) {
+            TreeSnapshot t = new TreeSnapshot(s.threadName, s.tid, epoch, System.nanoTime(), 0, Metrics.ENABLED);
+            s.tree.copyInto(t);
+            if (pending != null) pending.addTo(t, null);
+            return t;
+        }
+        TreeSnapshot t = new TreeSnapshot(s.threadName, s.tid, epoch, System.nanoTime(), 64, Metrics.ENABLED);
+        if (Governance.FOLD) t.recursions = new long[64];
+        if (Pauses.ON) t.withPauses();
+        Map<Profiler.Node, Integer> nodeIndex = (pending != null) ? new IdentityHashMap<>() : null;
+
+        Profiler.Node[] stack = new Profiler.Node[64];
+        int[] stackParent = new int[64];
+        int sp = 0;
+        stack[sp] = s.root;
+        stackParent[sp] = -1;
+        sp++;
+
+        while (sp > 0) {
+            sp--;
+            Profiler.Node n = stack[sp];
+            int idx = t.append(stackParent[sp], n.methodId);
+            if (nodeIndex != null) nodeIndex.put(n, idx);
+            t.calls[idx] = n.calls;
+            t.selfNs[idx] = n.totalSelfNs;
+            t.overheadNs[idx] = n.overheadNs;
+            NodeHistogram h = n.hist;
+            t.hist[idx] = (h == null) ? null : h.snapshot();
+            if (t.cpuNs != null) {
+                t.cpuNs[idx] = n.cpuNs;
+                h = n.cpuHist;
+                t.cpuHist[idx] = (h == null) ? null : h.snapshot();
+            }
+            if (t.allocBytes != null) {
+                t.allocBytes[idx] = n.allocBytes;
+                h = n.allocHist;
+                t.allocHist[idx] = (h == null) ? null : h.snapshot();
+            }
+            if (t.inclNs != null) {
+                t.inclNs[idx] = n.inclNs;
+                h = n.inclHist;
+                t.inclHist[idx] = (h == null) ? null : h.snapshot();
+            }
+            if (t.recursions != null) t.recursions[idx] = n.recursions;
+            if (t.pausedCalls != null) {
+                t.pausedCalls[idx] = n.pausedCalls;
+                h = n.pausedHist;
+                t.pausedHist[idx] = (h == null) ? null : h.snapshot();
+            }
+
+            int count = n.publishedChildCount();
+            Profiler.Node[] children = n.childNode;
+            if (sp + count > stack.length) {
+                int newCap = Math.max(stack.length << 1, sp + count);
+                stack = Arrays.copyOf(stack, newCap);
+                stackParent = Arrays.copyOf(stackParent, newCap);
+            }
+            // push in reverse so that children come out in insertion order
+            for (int i = count - 1; i >= 0; i--) {
+                stack[sp] = children[i];
+                stackParent[sp] = idx;
+                sp++;
+            }
+        }
+        if (pending != null) pending.addTo(t, nodeIndex);
+        return t;
+    }
+
+    /**
+     * Returns the interval view {@code this - base}. Nodes are matched by
+     * call path, nodes missing from {@code base} are taken as they are.
+     */
+    TreeSnapshot minus(TreeSnapshot base) {
+        TreeSnapshot d = new TreeSnapshot(threadName, tid, epoch, capturedAtNs, Math.max(size, 1), metrics);
+        if (recursions != null) d.recursions = new long[d.parent.length];
+        if (pausedCalls != null) d.withPauses();
+        PathIndex baseIndex = (base == null) ? null : PathIndex.of(base);
+        int[] toBase = new int[size];
+
+        for (int i = 0; i < size; i++) {
+            int p = parent[i];
+            int b;
+            if (baseIndex == null) b = -1;
+            else if (i == 0) b = 0;
+            else b = (toBase[p] < 0) ? -1 : baseIndex.find(toBase[p], methodId[i]);
+            toBase[i] = b;
+
+            int idx = d.append(p, methodId[i]);
+            if (b < 0) {
+                d.calls[idx] = calls[i];
+                d.selfNs[idx] = selfNs[i];
+                d.overheadNs[idx] = overheadNs[i];
+                d.hist[idx] = hist[i];
+                if (cpuNs != null) {
+                    d.cpuNs[idx] = cpuNs[i];
+                    d.cpuHist[idx] = cpuHist[i];
+                }
+                if (allocBytes != null) {
+                    d.allocBytes[idx] = allocBytes[i];
+                    d.allocHist[idx] = allocHist[i];
+                }
+                if (inclNs != null) {
+                    d.inclNs[idx] = inclNs[i];
+                    d.inclHist[idx] = inclHist[i];
+                }
+                if (recursions != null) d.recursions[idx] = recursions[i];
+                if (pausedCalls != null) {
+                    d.pausedCalls[idx] = pausedCalls[i];
+                    d.pausedHist[idx] = pausedHist[i];
+                }
+            } else {
+                d.calls[idx] = calls[i] - base.calls[b];
+                d.selfNs[idx] = selfNs[i] - base.selfNs[b];
+                d.overheadNs[idx] = overheadNs[i] - base.overheadNs[b];
+                d.hist[idx] = minus(hist[i], base.hist[b]);
+                // a baseline without the column is all zeros
+                if (cpuNs != null) {
+                    boolean has = base.cpuNs != null;
+                    d.cpuNs[idx] = cpuNs[i] - (has ? base.cpuNs[b] : 0);
+                    d.cpuHist[idx] = has ? minus(cpuHist[i], base.cpuHist[b]) : cpuHist[i];
+                }
+                if (allocBytes != null) {
+                    boolean has = base.allocBytes != null;
+                    d.allocBytes[idx] = allocBytes[i] - (has ? base.allocBytes[b] : 0);
+                    d.allocHist[idx] = has ? minus(allocHist[i], base.allocHist[b]) : allocHist[i];
+                }
+                if (inclNs != null) {
+                    boolean has = base.inclNs != null;
+                    d.inclNs[idx] = inclNs[i] - (has ? base.inclNs[b] : 0);
+                    d.inclHist[idx] = has ? minus(inclHist[i], base.inclHist[b]) : inclHist[i];
+                }
+                if (recursions != null) {
+                    d.recursions[idx] = recursions[i] - (base.recursions != null ? base.recursions[b] : 0);
+                }
+                if (pausedCalls != null) {
+                    boolean has = base.pausedCalls != null;
+                    d.pausedCalls[idx] = pausedCalls[i] - (has ? base.pausedCalls[b] : 0);
+                    d.pausedHist[idx] = has ? minus(pausedHist[i], base.pausedHist[b]) : pausedHist[i];
+                }
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Sums two trees by call path into a new snapshot named {@code name}.
+     * Either input may be null. Inputs are not modified.
+     */
+    static TreeSnapshot merge(TreeSnapshot a, TreeSnapshot b, String name, long tid) {
+        Merger m = null;
+        if (a != null) m = new Merger(a);
+        if (b != null) {
+            if (m == null) m = new Merger(b);
+            else m.add(new Merger(b));
+        }
+        return (m == null) ? new TreeSnapshot(name, tid, 0, 0, 1).withRoot() : m.toSnapshot(name, tid, null);
+    }
+
+    /**
+     * Sums many trees by call path with a fork/join pairwise reduction on
+     * {@code pool}. Inputs are not modified. Tree shapes are merged first;
+     * histograms are only collected per node on the way up and summed once
+     * at the end, so each merged node allocates at most one histogram.
+     */
+    static TreeSnapshot mergeAll(List<TreeSnapshot> parts, String name, ForkJoinPool pool) {
+        if (parts.isEmpty()) return new TreeSnapshot(name, -1L, 0, 0, 1).withRoot();
+        Merger m = pool.invoke(new MergeTask(parts, 0, parts.size()));
+        return m.toSnapshot(name, -1L, pool);
+    }
+
+    // Adds the pause columns, sized like the others.
+    TreeSnapshot withPauses() {
+        pausedCalls = new long[parent.length];
+        pausedHist = new Histogram[parent.length];
+        return this;
+    }
+
+    private TreeSnapshot withRoot() {
+        append(-1, 0);
+        return this;
+    }
+
+    private static final class MergeTask extends RecursiveTask<Merger> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<TreeSnapshot> parts;
+        private final int from, to;
+
+        MergeTask(List<TreeSnapshot> parts, int from, int to) {
+            this.parts = parts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Merger compute() {
+            if (to - from == 1) return new Merger(parts.get(from));
+            int mid = (from + to) >>> 1;
+            MergeTask left = new MergeTask(parts, from, mid);
+            left.fork();
+            Merger right = new MergeTask(parts, mid, to).compute();
+            Merger l = left.join();
+            // fold the smaller tree into the larger one
+            if (l.size >= right.size) {
+                l.add(right);
+                return l;
+            }
+            right.add(l);
+            return right;
+        }
+    }
+
+    // Mutable merge accumulator, exclusively owned by one merge.
+    private static final class Merger {
+        long epoch, capturedAtNs;
+        int metrics;
+        int size;
+        int[] parent, methodId;
+        long[] calls, selfNs, overheadNs;
+        long[] cpuNs, allocBytes, inclNs; // null unless in metrics
+        long[] recursions, pausedCalls; // null unless a tree has them
+        final PathIndex index;
+        final Parts hist = new Parts();
+        final Parts cpuHist = new Parts();
+        final Parts allocHist = new Parts();
+        final Parts inclHist = new Parts();
+        final Parts pausedHist = new Parts();
+
+        Merger(TreeSnapshot t) {
+            epoch = t.epoch;
+            capturedAtNs = t.capturedAtNs;
+            metrics = t.metrics;
+            size = t.size;
+            int cap = Math.max(1, size);
+            parent = Arrays.copyOf(t.parent, cap);
+            methodId = Arrays.copyOf(t.methodId, cap);
+            calls = Arrays.copyOf(t.calls, cap);
+            selfNs = Arrays.copyOf(t.selfNs, cap);
+            overheadNs = Arrays.copyOf(t.overheadNs, cap);
+            if (t.cpuNs != null) cpuNs = Arrays.copyOf(t.cpuNs, cap);
+            if (t.allocBytes != null) allocBytes = Arrays.copyOf(t.allocBytes, cap);
+            if (t.inclNs != null) inclNs = Arrays.copyOf(t.inclNs, cap);
+            if (t.recursions != null) recursions = Arrays.copyOf(t.recursions, cap);
+            if (t.pausedCalls != null) pausedCalls = Arrays.copyOf(t.pausedCalls, cap);
+            index = PathIndex.of(t);
+            hist.init(cap, t.hist, size);
+            cpuHist.init(cap, t.cpuHist, size);
+            allocHist.init(cap, t.allocHist, size);
+            inclHist.init(cap, t.inclHist, size);
+            pausedHist.init(cap, t.pausedHist, size);
+        }
+
+        void add(Merger o) {
+            epoch = Math.max(epoch, o.epoch);
+            capturedAtNs = Math.max(capturedAtNs, o.capturedAtNs);
+            // a tree without a metric column counts as all zeros
+            if (o.cpuNs != null && cpuNs == null) cpuNs = new long[parent.length];
+            if (o.allocBytes != null && allocBytes == null) allocBytes = new long[parent.length];
+            if (o.inclNs != null && inclNs == null) inclNs = new long[parent.length];
+            if (o.recursions != null && recursions == null) recursions = new long[parent.length];
+            if (o.pausedCalls != null && pausedCalls == null) pausedCalls = new long[parent.length];
+            metrics |= o.metrics;
+            int[] toThis = new int[o.size];
+            for (int i = 0; i < o.size; i++) {
+                int idx;
+                if (i == 0) {
+                    idx = 0;
+                } else {
+                    int p = toThis[o.parent[i]];
+                    idx = index.find(p, o.methodId[i]);
+                    if (idx < 0) {
+                        idx = appendNode(p, o.methodId[i]);
+                        index.put(p, o.methodId[i], idx);
+                    }
+                }
+                toThis[i] = idx;
+                calls[idx] += o.calls[i];
+                selfNs[idx] += o.selfNs[i];
+                overheadNs[idx] += o.overheadNs[i];
+                if (o.cpuNs != null) cpuNs[idx] += o.cpuNs[i];
+                if (o.allocBytes != null) allocBytes[idx] += o.allocBytes[i];
+                if (o.inclNs != null) inclNs[idx] += o.inclNs[i];
+                if (o.recursions != null) recursions[idx] += o.recursions[i];
+                if (o.pausedCalls != null) pausedCalls[idx] += o.pausedCalls[i];
+                hist.addAll(idx, o.hist, i);
+                cpuHist.addAll(idx, o.cpuHist, i);
+                allocHist.addAll(idx, o.allocHist, i);
+                inclHist.addAll(idx, o.inclHist, i);
+                pausedHist.addAll(idx, o.pausedHist, i);
+            }
+        }
+
+        TreeSnapshot toSnapshot(String name, long tid, ForkJoinPool pool) {
+            TreeSnapshot t = new TreeSnapshot(name, tid, epoch, capturedAtNs, Math.max(1, size), metrics);
+            if (recursions != null) t.recursions = new long[t.parent.length];
+            if (pausedCalls != null) t.withPauses();
+            for (int i = 0; i < size; i++) {
+                int idx = t.append(parent[i], methodId[i]);
+                t.calls[idx] = calls[i];
+                t.selfNs[idx] = selfNs[i];
+                t.overheadNs[idx] = overheadNs[i];
+                if (t.cpuNs != null && cpuNs != null) t.cpuNs[idx] = cpuNs[i];
+                if (t.allocBytes != null && allocBytes != null) t.allocBytes[idx] = allocBytes[i];
+                if (t.inclNs != null && inclNs != null) t.inclNs[idx] = inclNs[i];
+                if (recursions != null) t.recursions[idx] = recursions[i];
+                if (pausedCalls != null) t.pausedCalls[idx] = pausedCalls[i];
+            }
+            if (pool == null) {
+                for (int i = 0; i < size; i++) sumParts(t, i);
+            } else {
+                pool.submit(() -> IntStream.range(0, size).parallel().forEach(i -> sumParts(t, i))).join();
+            }
+            return t;
+        }
+
+        private void sumParts(TreeSnapshot t, int node) {
+            t.hist[node] = hist.sum(node);
+            if (t.cpuHist != null) t.cpuHist[node] = cpuHist.sum(node);
+            if (t.allocHist != null) t.allocHist[node] = allocHist.sum(node);
+            if (t.inclHist != null) t.inclHist[node] = inclHist.sum(node);
+            if (t.pausedHist != null) t.pausedHist[node] = pausedHist.sum(node);
+        }
+
+        private int appendNode(int p, int mid) {
+            if (size == parent.length) {
+                int newCap = size << 1;
+                parent = Arrays.copyOf(parent, newCap);
+                methodId = Arrays.copyOf(methodId, newCap);
+                calls = Arrays.copyOf(calls, newCap);
+                selfNs = Arrays.copyOf(selfNs, newCap);
+                overheadNs = Arrays.copyOf(overheadNs, newCap);
+                if (cpuNs != null) cpuNs = Arrays.copyOf(cpuNs, newCap);
+                if (allocBytes != null) allocBytes = Arrays.copyOf(allocBytes, newCap);
+                if (inclNs != null) inclNs = Arrays.copyOf(inclNs, newCap);
+                if (recursions != null) recursions = Arrays.copyOf(recursions, newCap);
+                if (pausedCalls != null) pausedCalls = Arrays.copyOf(pausedCalls, newCap);
+                hist.grow(newCap);
+                cpuHist.grow(newCap);
+                allocHist.grow(newCap);
+                inclHist.grow(newCap);
+                pausedHist.grow(newCap);
+            }
+            int idx = size++;
+            parent[idx] = p;
+            methodId[idx] = mid;
+            return idx;
+        }
+    }
+
+    // Per-node linked lists of contributing histograms (shared, read-only),
+    // summed once at the end so each merged node allocates at most one histogram.
+    private static final class Parts {
+        int[] firstPart, lastPart;
+        Histogram[] parts = new Histogram[16];
+        int[] nextPart = new int[16];
+        int partCount;
+
+        void init(int capacity, Histogram[] hist, int size) {
+            firstPart = new int[capacity];
+            lastPart = new int[capacity];
+            Arrays.fill(firstPart, -1);
+            if (hist == null) return;
+            for (int i = 0; i < size; i++) {
+                if (hist[i] != null) add(i, hist[i]);
+            }
+        }
+
+        void grow(int capacity) {
+            int oldCap = firstPart.length;
+            firstPart = Arrays.copyOf(firstPart, capacity);
+            lastPart = Arrays.copyOf(lastPart, capacity);
+            Arrays.fill(firstPart, oldCap, capacity, -1);
+        }
+
+        // Appends every part of node i of o to node.
+        void addAll(int node, Parts o, int i) {
+            for (int q = o.firstPart[i]; q >= 0; q = o.nextPart[q]) {
+                add(node, o.parts[q]);
+            }
+        }
+
+        Histogram sum(int node) {
+            int q = firstPart[node];
+            if (q < 0) return null;
+            if (nextPart[q] < 0) return parts[q];
+            Histogram sum = parts[q].copy();
+            for (q = nextPart[q]; q >= 0; q = nextPart[q]) sum.add(parts[q]);
+            return sum;
+        }
+
+        private void add(int node, Histogram h) {
+            if (partCount == parts.length) {
+                parts = Arrays.copyOf(parts, partCount << 1);
+                nextPart = Arrays.copyOf(nextPart, partCount << 1);
+            }
+            int q = partCount++;
+            parts[q] = h;
+            nextPart[q] = -1;
+            if (firstPart[node] < 0) firstPart[node] = q;
+            else nextPart[lastPart[node]] = q;
+            lastPart[node] = q;
+        }
+    }
+
+    private static Histogram minus(Histogram cur, Histogram base) {
+        if (cur == null || base == null || base.getTotalCount() == 0) return cur;
+        Histogram h = cur.copy();
+        h.subtract(base);
+        return h;
+    }
+
+    // Adds a node with zeroed accumulators and returns its index.
+    private int append(int parentIdx, int mid) {
+        if (size == parent.length) {
+            int newCap = size << 1;
+            parent = Arrays.copyOf(parent, newCap);
+            methodId = Arrays.copyOf(methodId, newCap);
+            calls = Arrays.copyOf(calls, newCap);
+            selfNs = Arrays.copyOf(selfNs, newCap);
+            overheadNs = Arrays.copyOf(overheadNs, newCap);
+            hist = Arrays.copyOf(hist, newCap);
+            if (cpuNs != null) {
+                cpuNs = Arrays.copyOf(cpuNs, newCap);
+                cpuHist = Arrays.copyOf(cpuHist, newCap);
+            }
+            if (allocBytes != null) {
+                allocBytes = Arrays.copyOf(allocBytes, newCap);
+                allocHist = Arrays.copyOf(allocHist, newCap);
+            }
+            if (inclNs != null) {
+                inclNs = Arrays.copyOf(inclNs, newCap);
+                inclHist = Arrays.copyOf(inclHist, newCap);
+            }
+            if (recursions != null) recursions = Arrays.copyOf(recursions, newCap);
+            if (pausedCalls != null) {
+                pausedCalls = Arrays.copyOf(pausedCalls, newCap);
+                pausedHist = Arrays.copyOf(pausedHist, newCap);
+            }
+        }
+        int idx = size++;
+        parent[idx] = parentIdx;
+        methodId[idx] = mid;
+        return idx;
+    }
+
+    // Open-addressed (parentIdx, methodId) -> index lookup, growable.
+    static final class PathIndex {
+        private long[] keys;
+        private int[] values;
+        private int mask;
+        private int count;
+
+        PathIndex(int expected) {
+            int cap = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+            keys = new long[cap];
+            values = new int[cap];
+            mask = cap - 1;
+            Arrays.fill(values, -1);
+        }
+
+        static PathIndex of(TreeSnapshot t) {
+            PathIndex index = new PathIndex(t.size);
+            for (int i = 1; i < t.size; i++) {
+                index.put(t.parent[i], t.methodId[i], i);
+            }
+            return index;
+        }
+
+        int find(int parentIdx, int mid) {
+            long k = key(parentIdx, mid);
+            int slot = mix(k) & mask;
+            while (values[slot] >= 0) {
+                if (keys[slot] == k) return values[slot];
+                slot = (slot + 1) & mask;
+            }
+            return -1;
+        }
+
+        void put(int parentIdx, int mid, int v) {
+            if ((count + 1) * 2 > keys.length) rehash();
+            long k = key(parentIdx, mid);
+            int slot = mix(k) & mask;
+            while (values[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = k;
+            values[slot] = v;
+            count++;
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            int cap = oldKeys.length << 1;
+            keys = new long[cap];
+            values = new int[cap];
+            mask = cap - 1;
+            Arrays.fill(values, -1);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] < 0) continue;
+                int slot = mix(oldKeys[i]) & mask;
+                while (values[slot] >= 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+
+        private static long key(int parentIdx, int mid) {
+            return ((long) parentIdx << 32) | (mid & 0xffffffffL);
+        }
+
+        private static int mix(long k) {
+            k *= 0x9E3779B97F4A7C15L;
+            return (int) (k ^ (k >>> 32));
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package io.smallfast.profiler;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntFunction;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Speedscope, percentile CSV and collapsed-stack (folded) export of a
+ * {@link TreeSnapshot}, streamed into a {@link DumpOutput} straight from a
+ * depth-first walk of the tree.
+ *
+ * The walk keeps the current path in one int array and needs no stack:
+ * children are linked through two int arrays built in one pass. Nothing is
+ * allocated per path; stacks are written as the cached name bytes of their
+ * frames, and speedscope frame indexes come from an int array indexed by
+ * methodId. Paths come out in tree order, each context's after the paths
+ * outside any (see {@link Contexts}), rather than sorted by weight.
+ */
+final class TreeWriter {
+
+    private static final byte[] JSON_HEAD = DumpOutput.ascii(
+            "{\n  \"$schema\": \"https://www.speedscope.app/file-format-schema.json\",\n  \"profiles\": [\n");
+    private static final byte[] PROFILE_HEAD = DumpOutput.ascii("    {\n      \"type\": \"sampled\",\n      \"name\": \"");
+    private static final byte[] UNIT = DumpOutput.ascii("\",\n      \"unit\": \"");
+    private static final byte[] SAMPLES = DumpOutput.ascii("\",\n      \"samples\": [");
+    private static final byte[] WEIGHTS = DumpOutput.ascii("\n      ],\n      \"weights\": [");
+    private static final byte[] PROFILE_TAIL = DumpOutput.ascii("\n      ]\n    }");
+    private static final byte[] NEXT_PROFILE = DumpOutput.ascii(",\n");
+    private static final byte[] SAMPLE = DumpOutput.ascii("\n        [");
+    private static final byte[] NEXT_SAMPLE = DumpOutput.ascii(",\n        [");
+    private static final byte[] WEIGHT = DumpOutput.ascii("\n        ");
+    private static final byte[] NEXT_WEIGHT = DumpOutput.ascii(",\n        ");
+    private static final byte[] SHARED = DumpOutput.ascii("\n  ],\n  \"shared\": {\n    \"frames\": [");
+    private static final byte[] FRAME = DumpOutput.ascii("\n      { \"name\": \"");
+    private static final byte[] FRAME_TAIL = DumpOutput.ascii("\" }");
+    private static final byte[] JSON_TAIL = DumpOutput.ascii("\n    ]\n  }\n}\n");
+    private static final byte[] NO_PERCENTILES = DumpOutput.ascii(",,,,,0,");
+    private static final byte[] NONE = DumpOutput.ascii(",none");
+    private static final byte[] NO_METRIC = DumpOutput.ascii(",,,,,");
+
+    private TreeWriter() {}
+
+    /** Receives the paths of a walk: node {@code i}, whose path is {@code path[0..depth)}. */
+    private interface PathSink {
+        void path(int i, int[] path, int depth) throws IOException;
+    }
+
+    /**
+     * Child links of a snapshot, and walks over it. Children are visited in
+     * index order, which is insertion order for both tree layouts.
+     */
+    private static final class Shape {
+        final TreeSnapshot t;
+        final int[] firstChild;
+        final int[] nextSibling;
+        final boolean[] hasSelf; // the node or a descendant has self time
+        int[] path = new int[64];
+
+        Shape(TreeSnapshot t) {
+            this.t = t;
+            int n = t.size;
+            firstChild = new int[n];
+            nextSibling = new int[n];
+            hasSelf = new boolean[n];
+            Arrays.fill(firstChild, -1);
+            for (int i = n - 1; i >= 1; i--) {
+                int p = t.parent[i];
+                nextSibling[i] = firstChild[p];
+                firstChild[p] = i;
+                if (t.selfNs[i] > 0) hasSelf[i] = true;
+                if (hasSelf[i]) hasSelf[p] = true;
+            }
+        }
+
+        /** Children of the root: those outside any context in order, then contexts by id. */
+        int[] tops() {
+            int count = 0;
+            for (int c = (t.size > 0) ? firstChild[0] : -1; c >= 0; c = nextSibling[c]) count++;
+            int[] out = new int[count];
+            int k = 0;
+            for (int c = (t.size > 0) ? firstChild[0] : -1; c >= 0; c = nextSibling[c]) {
+                if (!Contexts.isContext(t.methodId[c])) out[k++] = c;
+            }
+            int plain = k;
+            for (int c = (t.size > 0) ? firstChild[0] : -1; c >= 0; c = nextSibling[c]) {
+                if (Contexts.isContext(t.methodId[c])) out[k++] = c;
+            }
+            // contexts by methodId, as they were sorted before; there are few
+            for (int i = plain + 1; i < count; i++) {
+                int v = out[i], j = i - 1;
+                while (j >= plain && t.methodId[out[j]] > t.methodId[v]) {
+                    out[j + 1] = out[j];
+                    j--;
+                }
+                out[j + 1] = v;
+            }
+            return out;
+        }
+
+        /** Preorder over the subtree of {@code top}, calling {@code sink} for nodes with self time. */
+        void walk(int top, PathSink sink) throws IOException {
+            int i = top;
+            int depth = 0;
+            while (true) {
+                if (depth == path.length) path = Arrays.copyOf(path, depth << 1);
+                path[depth++] = t.methodId[i];
+                if (t.selfNs[i] > 0) sink.path(i, path, depth);
+                int c = firstChild[i];
+                while (c >= 0 && !hasSelf[c]) c = nextSibling[c];
+                if (c >= 0) {
+                    i = c;
+                    continue;
+                }
+                // up until a sibling with self time is left
+                while (true) {
+                    depth--;
+                    if (i == top) return;
+                    int s = nextSibling[i];
+                    while (s >= 0 && !hasSelf[s]) s = nextSibling[s];
+                    if (s >= 0) {
+                        i = s;
+                        break;
+                    }
+                    i = t.parent[i];
+                }
+            }
+        }
+    }
+
+    // ---------------- speedscope ----------------
+
+    // Speedscope frame table: frame index by methodId, -1 until a path names it.
+    private static final class Frames {
+        final int[] frameOf;
+        int[] methodOf = new int[64];
+        int count;
+
+        Frames(int maxMethodId) {
+            frameOf = new int[maxMethodId + 1];
+            Arrays.fill(frameOf, -1);
+        }
+
+        int of(int mid) {
+            int f = frameOf[mid];
+            if (f >= 0) return f;
+            f = count++;
+            if (f == methodOf.length) methodOf = Arrays.copyOf(methodOf, f << 1);
+            methodOf[f] = mid;
+            return frameOf[mid] = f;
+        }
+    }
+
+    /**
+     * One sampled profile per context, and per weight: self time, and if the
+     * tree has them, overhead-corrected self time, CPU time and allocated
+     * bytes. Frames go last, once every path has named its frames.
+     */
+    static void speedscope(DumpOutput out, TreeSnapshot t, String profileName) throws IOException {
+        Shape shape = new Shape(t);
+        int maxMid = 0;
+        boolean calibrated = false;
+        for (int i = 1; i < t.size; i++) {
+            maxMid = Math.max(maxMid, t.methodId[i]);
+            if (t.selfNs[i] > 0 && t.overheadNs[i] != 0) calibrated = true;
+        }
+        Frames frames = new Frames(maxMid);
+
+        out.write(JSON_HEAD);
+        int[] tops = shape.tops();
+        boolean first = true;
+        int k = 0;
+        while (k < tops.length) {
+            // one group: every top outside a context, or one context
+            int from = k;
+            int context = Contexts.isContext(t.methodId[tops[k]]) ? t.methodId[tops[k]] : 0;
+            k++;
+            if (context == 0) {
+                while (k < tops.length && !Contexts.isContext(t.methodId[tops[k]])) k++;
+            }
+            int to = k;
+            boolean any = false;
+            for (int g = from; g < to; g++) any |= shape.hasSelf[tops[g]];
+            if (!any) continue;
+
+            String name = (context == 0) ? profileName : profileName + " [" + Contexts.labelOf(context) + "]";
+            if (!first) out.write(NEXT_PROFILE);
+            first = false;
+            sampledProfile(out, shape, tops, from, to, frames, name, "nanoseconds", i -> t.selfNs[i]);
+            if (calibrated) {
+                out.write(NEXT_PROFILE);
+                sampledProfile(out, shape, tops, from, to, frames,
+                        name + " (overhead-corrected)", "nanoseconds", i -> t.selfNs[i] - t.overheadNs[i]);
+            }
+            if (t.cpuNs != null) {
+                out.write(NEXT_PROFILE);
+                sampledProfile(out, shape, tops, from, to, frames, name + " (cpu)", "nanoseconds", i -> t.cpuNs[i]);
+            }
+            if (t.allocBytes != null) {
+                out.write(NEXT_PROFILE);
+                sampledProfile(out, shape, tops, from, to, frames, name + " (alloc)", "bytes", i -> t.allocBytes[i]);
+            }
+        }
+        if (first) sampledProfile(out, shape, tops, 0, 0, frames, profileName, "nanoseconds", i -> 0);
+
+        out.write(SHARED);
+        for (int f = 0; f < frames.count; f++) {
+            if (f > 0) out.write((byte) ',');
+            out.write(FRAME).write(MethodRegistry.json(frames.methodOf[f])).write(FRAME_TAIL);
+        }
+        out.write(JSON_TAIL);
+    }
+
+    // Samples and weights each take one walk over the group's tops.
+    private static void sampledProfile(DumpOutput out, Shape shape, int[] tops, int from, int to, Frames frames,
+                                       String name, String unit, IntToLongFunction weight) throws IOException {
+        out.write(PROFILE_HEAD).write(Profiler.escapeJson(name)).write(UNIT).write(unit).write(SAMPLES);
+        long[] written = {0};
+        for (int g = from; g < to; g++) {
+            shape.walk(tops[g], (i, path, depth) -> {
+                out.write(written[0]++ == 0 ? SAMPLE : NEXT_SAMPLE);
+                for (int d = 0; d < depth; d++) {
+                    if (d > 0) out.write((byte) ',');
+                    out.write(frames.of(path[d]));
+                }
+                out.write((byte) ']');
+            });
+        }
+        out.write(WEIGHTS);
+        written[0] = 0;
+        for (int g = from; g < to; g++) {
+            shape.walk(tops[g], (i, path, depth) -> {
+                out.write(written[0]++ == 0 ? WEIGHT : NEXT_WEIGHT).write(weight.applyAsLong(i));
+            });
+        }
+        out.write(PROFILE_TAIL);
+    }
+
+    // ---------------- percentile CSV ----------------
+
+    /**
+     * The header and one row per path with self time, see
+     * {@link Profiler#percentilesHeader(int, boolean, boolean)}. Paths without a histogram
+     * (below histMinCalls, downgraded, or refused by histBudget) get empty
+     * percentiles and precision "none"; count < calls means the histogram
+     * missed some calls. precision is the largest relative error of the
+     * percentile values. With pauses, the histogram leaves out the calls that
+     * overlapped a pause, and the last columns show those and all calls.
+     */
+    static void percentilesCsv(DumpOutput out, TreeSnapshot t, boolean histograms) throws IOException {
+        out.write(Profiler.percentilesHeader(t.metrics, t.recursions != null, t.pausedCalls != null))
+                .write((byte) '\n');
+        if (!histograms) {
+            out.write("Histograms disabled.\n");
+            return;
+        }
+        Shape shape = new Shape(t);
+        String[] precision = new String[8]; // formatted once per number of digits
+        PathSink row = (i, path, depth) -> {
+            stack(out, path, depth);
+            Histogram h = t.hist[i];
+            if (h != null) {
+                percentileCells(out, h);
+                out.write((byte) ',').write(h.getTotalCount()).write((byte) ',');
+            } else {
+                out.write(NO_PERCENTILES);
+            }
+            out.write(t.selfNs[i]).write((byte) ',');
+            out.write(t.selfNs[i] - t.overheadNs[i]).write((byte) ',');
+            out.write(t.calls[i]);
+            if (h == null) {
+                out.write(NONE);
+            } else {
+                int digits = h.getNumberOfSignificantValueDigits();
+                String p = precision[digits];
+                if (p == null) {
+                    p = precision[digits] = String.format(Locale.ROOT, "%.2g%%", NodeHistogram.relativeError(h) * 100.0);
+                }
+                out.write((byte) ',').write(p);
+            }
+            if (t.cpuNs != null) metricCells(out, t.cpuHist[i], t.cpuNs[i]);
+            if (t.allocBytes != null) metricCells(out, t.allocHist[i], t.allocBytes[i]);
+            if (t.inclNs != null) metricCells(out, t.inclHist[i], t.inclNs[i]);
+            if (t.recursions != null) out.write((byte) ',').write(t.recursions[i]);
+            if (t.pausedCalls != null) pauseCells(out, h, t.pausedHist[i], t.pausedCalls[i]);
+            out.write((byte) '\n');
+        };
+        for (int top : shape.tops()) {
+            if (shape.hasSelf[top]) shape.walk(top, row);
+        }
+    }
+
+    // ",p50,p90,p99,p999,p100,total": percentiles of a metric and its total
+    private static void metricCells(DumpOutput out, Histogram h, long total) throws IOException {
+        if (h != null) {
+            percentileCells(out, h);
+        } else {
+            out.write(NO_METRIC);
+        }
+        out.write((byte) ',').write(total);
+    }
+
+    // ",paused_calls,paused_p99,paused_p100,with_pauses_p99,with_pauses_p999,with_pauses_p100"
+    private static void pauseCells(DumpOutput out, Histogram h, Histogram paused, long pausedCalls) throws IOException {
+        out.write((byte) ',').write(pausedCalls);
+        Histogram all = h;
+        if (paused != null && paused.getTotalCount() > 0) {
+            out.write((byte) ',').write(paused.getValueAtPercentile(99.0));
+            out.write((byte) ',').write(paused.getMaxValue());
+            all = paused.copy();
+            if (h != null) all.add(h);
+        } else {
+            out.write((byte) ',').write((byte) ',');
+        }
+        if (all != null) {
+            out.write((byte) ',').write(all.getValueAtPercentile(99.0));
+            out.write((byte) ',').write(all.getValueAtPercentile(99.9));
+            out.write((byte) ',').write(all.getMaxValue());
+        } else {
+            out.write((byte) ',').write((byte) ',').write((byte) ',');
+        }
+    }
+
+    // ",p50,p90,p99,p999,p100"
+    private static void percentileCells(DumpOutput out, Histogram h) throws IOException {
+        out.write((byte) ',').write(h.getValueAtPercentile(50.0));
+        out.write((byte) ',').write(h.getValueAtPercentile(90.0));
+        out.write((byte) ',').write(h.getValueAtPercentile(99.0));
+        out.write((byte) ',').write(h.getValueAtPercentile(99.9));
+        out.write((byte) ',').write(h.getMaxValue());
+    }
+
+    // ---------------- collapsed ----------------
+
+    /** One "frame;frame;frame weight" line per path, as read by flamegraph.pl and friends. */
+    static void collapsed(DumpOutput out, TreeSnapshot t, boolean corrected) throws IOException {
+        collapsed(out, t, corrected, null);
+    }
+
+    /**
+     * Folded stacks of all {@code trees} in one file, each below a root frame
+     * naming its thread, so that a flame graph shows the threads side by side.
+     */
+    static void folded(DumpOutput out, List<TreeSnapshot> trees) throws IOException {
+        for (TreeSnapshot t : trees) {
+            String thread = t.label().replace(';', '_');
+            collapsed(out, t, false, (thread + ';').getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void collapsed(DumpOutput out, TreeSnapshot t, boolean corrected, byte[] prefix) throws IOException {
+        Shape shape = new Shape(t);
+        PathSink line = (i, path, depth) -> {
+            if (prefix != null) out.write(prefix);
+            stack(out, path, depth);
+            out.write((byte) ' ').write(corrected ? t.selfNs[i] - t.overheadNs[i] : t.selfNs[i]).write((byte) '\n');
+        };
+        for (int top : shape.tops()) {
+            if (shape.hasSelf[top]) shape.walk(top, line);
+        }
+    }
+
+    private static void stack(DumpOutput out, int[] path, int depth) throws IOException {
+        for (int d = 0; d < depth; d++) {
+            if (d > 0) out.write((byte) ';');
+            out.write(MethodRegistry.utf8(path[d]));
+        }
+    }
+
+    // ---------------- files ----------------
+
+    /** Writes one file per tree. */
+    interface FileWriter {
+        void write(DumpOutput out, TreeSnapshot t) throws IOException;
+    }
+
+    /**
+     * Writes {@code trees} in parallel, one file each, the k-th named
+     * {@code fileOf(k)}; {@code .gz} is appended with {@code gzip}.
+     */
+    static void writeAll(List<TreeSnapshot> trees, IntFunction<Path> fileOf, boolean gzip, FileWriter writer)
+            throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, Math.min(trees.size(), Runtime.getRuntime().availableProcessors())));
+        try {
+            ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[trees.size()];
+            for (int k = 0; k < tasks.length; k++) {
+                TreeSnapshot t = trees.get(k);
+                Path file = withGzip(fileOf.apply(k), gzip);
+                tasks[k] = pool.submit(() -> {
+                    try (DumpOutput out = DumpOutput.open(file, gzip)) {
+                        writer.write(out, t);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            for (ForkJoinTask<?> task : tasks) task.join();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    static Path withGzip(Path file, boolean gzip) {
+        return gzip ? file.resolveSibling(file.getFileName() + ".gz") : file;
+    }
+}